@@ -0,0 +1,307 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.engines.TwofishEngine;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.EAXBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+
+/**
+ * The chunked AEAD encryption of version 2 symmetrically encrypted
+ * integrity protected data packets, RFC 9580 section 5.13.2.
+ *
+ * The message key and the fixed part of the nonce are derived from the
+ * session key and a salt with HKDF-SHA256. The data is split in chunks of
+ * a power-of-two size, each encrypted and authenticated on its own, with
+ * the chunk index in the nonce. A final tag over the total length guards
+ * against truncation.
+ *
+ * EAX and GCM are supported. OCB is not in this Bouncy Castle version.
+ * Only 128-bit block ciphers can be used.
+ *
+ * An instance holds no cipher state, so chunks can be processed by any
+ * number of threads, each with its own AEADBlockCipher from newCipher().
+**/
+class AeadCipher {
+	/// AEAD algorithm identifiers.
+	static final int EAX = 1;
+	static final int OCB = 2;
+	static final int GCM = 3;
+
+	static final int TAG_LENGTH = 16;
+	static final int SALT_LENGTH = 32;
+
+	/// The packet version.
+	static final int VERSION = 2;
+
+	/// Chunk size octets, and the size is 1 << (octet + 6).
+	static final int MIN_CHUNK_SIZE_OCTET = 0;
+	static final int MAX_CHUNK_SIZE_OCTET = 16;
+
+	private final int cipherAlgorithm;
+	private final int aeadAlgorithm;
+	private final int chunkSize;
+	private final KeyParameter key;
+	private final byte[] iv;
+	private final byte[] info;
+
+	/**
+	 * Derive the message key and nonce of a packet.
+	 *
+	 * @param cipherAlgorithm the symmetric key algorithm.
+	 * @param aeadAlgorithm the AEAD algorithm.
+	 * @param chunkSizeOctet the encoded chunk size.
+	 * @param sessionKey the session key.
+	 * @param salt the SALT_LENGTH bytes of salt of the packet.
+	**/
+	AeadCipher(int cipherAlgorithm, int aeadAlgorithm, int chunkSizeOctet, byte[] sessionKey, byte[] salt) throws IOException {
+		if (chunkSizeOctet < MIN_CHUNK_SIZE_OCTET || chunkSizeOctet > MAX_CHUNK_SIZE_OCTET)
+			throw new IOException("invalid AEAD chunk size: " + chunkSizeOctet);
+
+		int keyLength = getKeyLength(cipherAlgorithm);
+
+		if (sessionKey.length != keyLength)
+			throw new IOException("session key does not match the cipher");
+
+		this.cipherAlgorithm = cipherAlgorithm;
+		this.aeadAlgorithm = aeadAlgorithm;
+		this.chunkSize = 1 << (chunkSizeOctet + 6);
+		this.info = new byte[] {
+			(byte) (0xC0 | PacketTags.SYM_ENC_INTEGRITY_PRO),
+			(byte) VERSION,
+			(byte) cipherAlgorithm,
+			(byte) aeadAlgorithm,
+			(byte) chunkSizeOctet,
+		};
+
+		int nonceLength = getNonceLength(aeadAlgorithm);
+		byte[] m = hkdf(salt, sessionKey, info, keyLength + nonceLength - 8);
+
+		this.key = new KeyParameter(m, 0, keyLength);
+		this.iv = new byte[nonceLength - 8];
+		System.arraycopy(m, keyLength, iv, 0, iv.length);
+	}
+
+	/**
+	 * Return the number of plaintext bytes in a full chunk.
+	**/
+	int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Return the packet body bytes preceding the salt.
+	**/
+	byte[] getHeader() {
+		byte[] ret = new byte[info.length - 1];
+
+		System.arraycopy(info, 1, ret, 0, ret.length);
+
+		return ret;
+	}
+
+	/**
+	 * Return a cipher for use with processChunk() by one thread.
+	**/
+	AEADBlockCipher newCipher() throws IOException {
+		return createCipher(cipherAlgorithm, aeadAlgorithm);
+	}
+
+	/**
+	 * Encrypt or decrypt a chunk.
+	 *
+	 * When encrypting, TAG_LENGTH bytes more than len are written; when
+	 * decrypting, len includes the tag, and TAG_LENGTH bytes less are
+	 * written.
+	 *
+	 * @return the number of bytes written to out.
+	 * @throws IOException if authentication fails.
+	**/
+	int processChunk(AEADBlockCipher cipher, boolean encrypt, long index, byte[] in, int off, int len, byte[] out, int outOff) throws IOException {
+		cipher.init(encrypt, new AEADParameters(key, TAG_LENGTH * 8, getNonce(index), info));
+
+		int n = cipher.processBytes(in, off, len, out, outOff);
+
+		try {
+			return n + cipher.doFinal(out, outOff + n);
+		} catch (InvalidCipherTextException ex) {
+			throw new IOException("AEAD authentication failed in chunk " + index);
+		}
+	}
+
+	/**
+	 * Compute the final tag, after chunkCount chunks holding length
+	 * bytes of plaintext.
+	**/
+	byte[] getFinalTag(AEADBlockCipher cipher, long chunkCount, long length) throws IOException {
+		byte[] ad = new byte[info.length + 8];
+
+		System.arraycopy(info, 0, ad, 0, info.length);
+		putLong(ad, info.length, length);
+
+		cipher.init(true, new AEADParameters(key, TAG_LENGTH * 8, getNonce(chunkCount), ad));
+
+		byte[] tag = new byte[TAG_LENGTH];
+
+		try {
+			cipher.doFinal(tag, 0);
+		} catch (InvalidCipherTextException ex) {
+			throw new IOException(ex);
+		}
+
+		return tag;
+	}
+
+	private byte[] getNonce(long index) {
+		byte[] nonce = new byte[iv.length + 8];
+
+		System.arraycopy(iv, 0, nonce, 0, iv.length);
+		putLong(nonce, iv.length, index);
+
+		return nonce;
+	}
+
+	/**
+	 * Return the encoded chunk size for a size in bytes.
+	 *
+	 * @throws IllegalArgumentException if the size cannot be encoded.
+	**/
+	static int getChunkSizeOctet(int chunkSize) {
+		for (int c = MIN_CHUNK_SIZE_OCTET; c <= MAX_CHUNK_SIZE_OCTET; ++c) {
+			if (chunkSize == 1 << (c + 6))
+				return c;
+		}
+
+		throw new IllegalArgumentException("AEAD chunk size must be a power of two from 64 B to 4 MiB: " + chunkSize);
+	}
+
+	static int getNonceLength(int aeadAlgorithm) throws IOException {
+		switch (aeadAlgorithm) {
+		case EAX: return 16;
+		case OCB: return 15;
+		case GCM: return 12;
+		}
+
+		throw new IOException("unknown AEAD algorithm: " + aeadAlgorithm);
+	}
+
+	/**
+	 * Return the key length in bytes of a 128-bit block cipher.
+	**/
+	static int getKeyLength(int cipherAlgorithm) throws IOException {
+		switch (cipherAlgorithm) {
+		case SymmetricKeyAlgorithmTags.AES_128: return 16;
+		case SymmetricKeyAlgorithmTags.AES_192: return 24;
+		case SymmetricKeyAlgorithmTags.AES_256: return 32;
+		case SymmetricKeyAlgorithmTags.TWOFISH: return 32;
+		}
+
+		throw new IOException("AEAD needs a 128-bit block cipher, not algorithm " + cipherAlgorithm);
+	}
+
+	static AEADBlockCipher createCipher(int cipherAlgorithm, int aeadAlgorithm) throws IOException {
+		BlockCipher engine;
+
+		getKeyLength(cipherAlgorithm);
+
+		if (cipherAlgorithm == SymmetricKeyAlgorithmTags.TWOFISH)
+			engine = new TwofishEngine();
+		else
+			engine = new AESFastEngine();
+
+		switch (aeadAlgorithm) {
+		case EAX: return new EAXBlockCipher(engine);
+		case GCM: return new GCMBlockCipher(engine);
+		case OCB: throw new IOException("OCB is not supported");
+		}
+
+		throw new IOException("unknown AEAD algorithm: " + aeadAlgorithm);
+	}
+
+	/**
+	 * Encrypt or decrypt a single message, like the session key of a
+	 * version 6 symmetric-key encrypted session key packet.
+	 *
+	 * @throws IOException if authentication fails.
+	**/
+	static byte[] process(int cipherAlgorithm, int aeadAlgorithm, boolean encrypt, byte[] key, byte[] nonce, byte[] ad, byte[] data) throws IOException {
+		AEADBlockCipher cipher = createCipher(cipherAlgorithm, aeadAlgorithm);
+
+		cipher.init(encrypt, new AEADParameters(new KeyParameter(key), TAG_LENGTH * 8, nonce, ad));
+
+		byte[] out = new byte[cipher.getOutputSize(data.length)];
+		int n = cipher.processBytes(data, 0, data.length, out, 0);
+
+		try {
+			n += cipher.doFinal(out, n);
+		} catch (InvalidCipherTextException ex) {
+			throw new IOException("AEAD authentication failed: wrong key or pass phrase");
+		}
+
+		if (n == out.length) return out;
+
+		byte[] ret = new byte[n];
+
+		System.arraycopy(out, 0, ret, 0, n);
+
+		return ret;
+	}
+
+	/**
+	 * HKDF with SHA-256, RFC 5869.
+	 *
+	 * @param salt the salt, or null for none.
+	**/
+	static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int length) {
+		HMac mac = new HMac(new SHA256Digest());
+		int hashLength = mac.getMacSize();
+
+		if (salt == null)
+			salt = new byte[hashLength];
+
+		byte[] prk = new byte[hashLength];
+
+		mac.init(new KeyParameter(salt));
+		mac.update(ikm, 0, ikm.length);
+		mac.doFinal(prk, 0);
+
+		byte[] ret = new byte[length];
+		byte[] t = new byte[hashLength];
+		int tLen = 0;
+
+		mac.init(new KeyParameter(prk));
+
+		for (int i = 1, off = 0; off < length; ++i) {
+			mac.update(t, 0, tLen);
+			mac.update(info, 0, info.length);
+			mac.update((byte) i);
+			mac.doFinal(t, 0);
+			tLen = hashLength;
+
+			int n = Math.min(hashLength, length - off);
+
+			System.arraycopy(t, 0, ret, off, n);
+			off += n;
+		}
+
+		return ret;
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; --i) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPUtil;
+
+
+/**
+ * Writes AEAD encrypted data, like PGPEncryptedDataGenerator does CFB.
+ *
+ * The output is a version 2 symmetrically encrypted integrity protected
+ * data packet (RFC 9580,) preceded by version 6 session key packets,
+ * one per added method. Public keys must be RSA or ElGamal; pass phrases
+ * use an iterated and salted SHA-256 S2K.
+ *
+ * @see AeadCipher
+**/
+class AeadEncryptedDataGenerator {
+	/// S2K iteration count, as encoded. Same as PGPEncryptedDataGenerator.
+	private static final int S2K_COUNT = 0x60;
+
+	private final int cipherAlgorithm;
+	private final int aeadAlgorithm;
+	private final int chunkSizeOctet;
+	private final SecureRandom random;
+	private final List<Object> methods = new ArrayList<Object>();
+
+	/**
+	 * Construct a new generator.
+	 *
+	 * @param cipherAlgorithm a 128-bit block cipher.
+	 * @param aeadAlgorithm AeadCipher.EAX or AeadCipher.GCM.
+	 * @param chunkSize the plaintext bytes per chunk, a power of two.
+	**/
+	AeadEncryptedDataGenerator(int cipherAlgorithm, int aeadAlgorithm, int chunkSize, SecureRandom random) {
+		this.cipherAlgorithm = cipherAlgorithm;
+		this.aeadAlgorithm = aeadAlgorithm;
+		this.chunkSizeOctet = AeadCipher.getChunkSizeOctet(chunkSize);
+		this.random = random;
+	}
+
+	void addMethod(PGPPublicKey key) {
+		methods.add(key);
+	}
+
+	void addMethod(char[] passPhrase) {
+		methods.add(passPhrase);
+	}
+
+	/**
+	 * Write the session key packets and the start of the encrypted data
+	 * packet, and return a stream for the data to encrypt.
+	 *
+	 * Closing the returned stream finishes the packet, without closing
+	 * out.
+	 *
+	 * @param buffer the buffer for partial body lengths.
+	**/
+	OutputStream open(OutputStream out, byte[] buffer) throws IOException {
+		if (methods.isEmpty())
+			throw new IOException("no encryption methods specified");
+
+		byte[] sessionKey = new byte[AeadCipher.getKeyLength(cipherAlgorithm)];
+
+		random.nextBytes(sessionKey);
+
+		try {
+			for (Object method : methods) {
+				if (method instanceof PGPPublicKey)
+					writePacket(out, PacketTags.PUBLIC_KEY_ENC_SESSION, encodePublicKeySessionPacket((PGPPublicKey) method, sessionKey));
+				else
+					writePacket(out, PacketTags.SYMMETRIC_KEY_ENC_SESSION, encodeSymmetricKeySessionPacket((char[]) method, sessionKey));
+			}
+		} catch (PGPException ex) {
+			throw new IOException(ex);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException(ex);
+		}
+
+		byte[] salt = new byte[AeadCipher.SALT_LENGTH];
+
+		random.nextBytes(salt);
+
+		AeadCipher cipher = new AeadCipher(cipherAlgorithm, aeadAlgorithm, chunkSizeOctet, sessionKey, salt);
+		BCPGOutputStream pkOut = new BCPGOutputStream(out, PacketTags.SYM_ENC_INTEGRITY_PRO, buffer);
+
+		pkOut.write(cipher.getHeader());
+		pkOut.write(salt);
+
+		return new ChunkingOutputStream(pkOut, cipher);
+	}
+
+	private byte[] encodePublicKeySessionPacket(PGPPublicKey key, byte[] sessionKey) throws IOException, PGPException, GeneralSecurityException {
+		byte[] fingerprint = key.getFingerprint();
+		Cipher c;
+
+		switch (key.getAlgorithm()) {
+		case PublicKeyAlgorithmTags.RSA_ENCRYPT:
+		case PublicKeyAlgorithmTags.RSA_GENERAL:
+			c = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+			break;
+
+		case PublicKeyAlgorithmTags.ELGAMAL_ENCRYPT:
+		case PublicKeyAlgorithmTags.ELGAMAL_GENERAL:
+			c = Cipher.getInstance("ElGamal/ECB/PKCS1Padding", "BC");
+			break;
+
+		default:
+			throw new PGPException("unsupported public key algorithm: " + key.getAlgorithm());
+		}
+
+		// Version 6 packets have no algorithm octet before the key.
+		byte[] m = new byte[sessionKey.length + 2];
+		int check = 0;
+
+		System.arraycopy(sessionKey, 0, m, 0, sessionKey.length);
+
+		for (int i = 0; i < sessionKey.length; ++i)
+			check += sessionKey[i] & 0xFF;
+
+		m[sessionKey.length] = (byte) (check >> 8);
+		m[sessionKey.length + 1] = (byte) check;
+
+		c.init(Cipher.ENCRYPT_MODE, key.getKey("BC"), random);
+
+		byte[] encrypted = c.doFinal(m);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		bout.write(6);
+		bout.write(1 + fingerprint.length);
+		bout.write(key.getVersion());
+		bout.write(fingerprint);
+		bout.write(key.getAlgorithm());
+
+		if (key.getAlgorithm() == PublicKeyAlgorithmTags.RSA_ENCRYPT || key.getAlgorithm() == PublicKeyAlgorithmTags.RSA_GENERAL) {
+			writeMpi(bout, encrypted, 0, encrypted.length);
+		} else {
+			writeMpi(bout, encrypted, 0, encrypted.length / 2);
+			writeMpi(bout, encrypted, encrypted.length / 2, encrypted.length / 2);
+		}
+
+		return bout.toByteArray();
+	}
+
+	private byte[] encodeSymmetricKeySessionPacket(char[] passPhrase, byte[] sessionKey) throws IOException, PGPException, GeneralSecurityException {
+		byte[] s2kSalt = new byte[8];
+
+		random.nextBytes(s2kSalt);
+
+		S2K s2k = new S2K(HashAlgorithmTags.SHA256, s2kSalt, S2K_COUNT);
+		ByteArrayOutputStream s2kOut = new ByteArrayOutputStream();
+
+		s2k.encode(new BCPGOutputStream(s2kOut));
+
+		byte[] s2kBytes = s2kOut.toByteArray();
+		byte[] info = getSymmetricKeyInfo(cipherAlgorithm, aeadAlgorithm);
+		byte[] kek = AeadCipher.hkdf(
+			null,
+			PGPUtil.makeKeyFromPassPhrase(cipherAlgorithm, s2k, passPhrase, "BC").getEncoded(),
+			info,
+			sessionKey.length);
+		byte[] iv = new byte[AeadCipher.getNonceLength(aeadAlgorithm)];
+
+		random.nextBytes(iv);
+
+		byte[] encrypted = AeadCipher.process(cipherAlgorithm, aeadAlgorithm, true, kek, iv, info, sessionKey);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		bout.write(6);
+		bout.write(3 + s2kBytes.length + iv.length);
+		bout.write(cipherAlgorithm);
+		bout.write(aeadAlgorithm);
+		bout.write(s2kBytes.length);
+		bout.write(s2kBytes);
+		bout.write(iv);
+		bout.write(encrypted);
+
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Return the HKDF info, and associated data, of a version 6
+	 * symmetric-key encrypted session key packet.
+	**/
+	static byte[] getSymmetricKeyInfo(int cipherAlgorithm, int aeadAlgorithm) {
+		return new byte[] {
+			(byte) (0xC0 | PacketTags.SYMMETRIC_KEY_ENC_SESSION),
+			6,
+			(byte) cipherAlgorithm,
+			(byte) aeadAlgorithm,
+		};
+	}
+
+	private static void writeMpi(OutputStream out, byte[] b, int off, int len) throws IOException {
+		BigInteger v = new BigInteger(1, copyOfRange(b, off, len));
+		byte[] value = v.toByteArray();
+		int start = (value[0] == 0 ? 1 : 0);
+		int bits = v.bitLength();
+
+		out.write(bits >> 8);
+		out.write(bits);
+		out.write(value, start, value.length - start);
+	}
+
+	private static byte[] copyOfRange(byte[] b, int off, int len) {
+		byte[] ret = new byte[len];
+
+		System.arraycopy(b, off, ret, 0, len);
+
+		return ret;
+	}
+
+	private static void writePacket(OutputStream out, int tag, byte[] body) throws IOException {
+		BCPGOutputStream pkOut = new BCPGOutputStream(out, tag, body.length);
+
+		pkOut.write(body);
+		pkOut.flush();
+	}
+
+	/**
+	 * Encrypts whole chunks as they fill up.
+	**/
+	private static class ChunkingOutputStream extends OutputStream {
+		private final BCPGOutputStream out;
+		private final AeadCipher cipher;
+		private final AEADBlockCipher aead;
+		private final BufferPool pool = BufferPool.getInstance();
+		private byte[] plain;
+		private byte[] encrypted;
+		private int plainLen;
+		private long index;
+		private long length;
+		private final byte[] oneByte = new byte[1];
+
+		public ChunkingOutputStream(BCPGOutputStream out, AeadCipher cipher) throws IOException {
+			this.out = out;
+			this.cipher = cipher;
+			this.aead = cipher.newCipher();
+			this.plain = pool.borrow(cipher.getChunkSize());
+			this.encrypted = pool.borrow(cipher.getChunkSize() + AeadCipher.TAG_LENGTH);
+		}
+
+		public void write(int b) throws IOException {
+			oneByte[0] = (byte) b;
+			write(oneByte, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			int chunkSize = cipher.getChunkSize();
+
+			while (len > 0) {
+				if (plainLen == chunkSize)
+					writeChunk();
+
+				int n = Math.min(len, chunkSize - plainLen);
+
+				System.arraycopy(b, off, plain, plainLen, n);
+				plainLen += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Flush the underlying stream, without the unfinished chunk.
+		**/
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			if (plain == null) return;
+
+			if (plainLen > 0)
+				writeChunk();
+
+			out.write(cipher.getFinalTag(aead, index, length));
+			out.finish();
+			out.flush();
+
+			pool.release(plain);
+			pool.release(encrypted);
+			plain = null;
+			encrypted = null;
+		}
+
+		private void writeChunk() throws IOException {
+			int n = cipher.processChunk(aead, true, index, plain, 0, plainLen, encrypted, 0);
+
+			out.write(encrypted, 0, n);
+			length += plainLen;
+			plainLen = 0;
+			++index;
+		}
+	}
+}
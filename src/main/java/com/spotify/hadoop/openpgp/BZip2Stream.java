@@ -0,0 +1,213 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import static java.lang.Math.*;
+
+
+/**
+ * The block structure of BZip2 streams, for cutting and stitching them.
+ *
+ * A stream is the "BZh" header and a block size digit, then blocks
+ * starting with BLOCK_MAGIC, and END_MAGIC followed by the combined CRC
+ * of the blocks. Each block holds the CRC of its own data after the
+ * magic. Blocks are not byte-aligned, so they are copied bit by bit.
+ *
+ * The CRC is the big-endian CRC-32 of BZip2, not that of java.util.zip.
+**/
+class BZip2Stream {
+	/// The bits starting a block: the BCD digits of pi.
+	static final long BLOCK_MAGIC = 0x314159265359L;
+
+	/// The bits ending a stream: the BCD digits of the square root of pi.
+	static final long END_MAGIC = 0x177245385090L;
+
+	/// The bits of a magic number.
+	static final int MAGIC_BITS = 48;
+
+	/// "BZh", without the block size digit.
+	static final long HEADER = 0x425A68L;
+
+	/// The bytes of the header, with the block size digit.
+	static final int HEADER_SIZE = 4;
+
+	private static final int[] CRC_TABLE = createCrcTable();
+
+	/**
+	 * Return the CRC updated with some data.
+	 *
+	 * Start from -1, and invert the result.
+	**/
+	static int updateCrc(int crc, byte[] b, int off, int len) {
+		for (int end = off + len; off < end; ++off)
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b[off]) & 0xFF];
+
+		return crc;
+	}
+
+	/**
+	 * Return the combined CRC of a stream, updated with that of a block.
+	**/
+	static int combineCrc(int combined, int blockCrc) {
+		return ((combined << 1) | (combined >>> 31)) ^ blockCrc;
+	}
+
+	/**
+	 * Return n bits, at most 64, starting at a bit offset.
+	**/
+	static long readBits(byte[] b, long bitOff, int n) {
+		long ret = 0;
+
+		for (long end = bitOff + n; bitOff < end; ++bitOff)
+			ret = (ret << 1) | ((b[(int) (bitOff >>> 3)] >>> (7 - (int) (bitOff & 7))) & 1);
+
+		return ret;
+	}
+
+	/**
+	 * Return the bit offset of the END_MAGIC of a whole stream, or -1 if
+	 * there is none.
+	 *
+	 * The magic is followed by the combined CRC, and up to seven bits of
+	 * padding.
+	**/
+	static long findEnd(byte[] b, int len) {
+		for (int pad = 0; pad < 8; ++pad) {
+			long off = len * 8L - pad - MAGIC_BITS - 32;
+
+			if (off >= HEADER_SIZE * 8 && readBits(b, off, MAGIC_BITS) == END_MAGIC)
+				return off;
+		}
+
+		return -1;
+	}
+
+	private static int[] createCrcTable() {
+		int[] ret = new int[256];
+
+		for (int i = 0; i < 256; ++i) {
+			int c = i << 24;
+
+			for (int j = 0; j < 8; ++j)
+				c = (c < 0 ? (c << 1) ^ 0x04C11DB7 : c << 1);
+
+			ret[i] = c;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Gathers bits, most significant first, into a growing array.
+	**/
+	static class Writer {
+		private byte[] buf;
+		private int len;
+		/// The bits of the unfinished byte, in the low bitCount bits.
+		private int bitBuf;
+		private int bitCount;
+
+		public Writer(int capacity) {
+			this.buf = new byte[max(capacity, 16)];
+		}
+
+		/**
+		 * Write the low n bits of a value, at most 64.
+		**/
+		public void writeBits(long value, int n) {
+			while (n > 0) {
+				int k = min(n, 8 - bitCount);
+
+				bitBuf = (bitBuf << k) | ((int) (value >>> (n - k)) & ((1 << k) - 1));
+				bitCount += k;
+				n -= k;
+
+				if (bitCount == 8) {
+					put(bitBuf);
+					bitBuf = 0;
+					bitCount = 0;
+				}
+			}
+		}
+
+		/**
+		 * Write bits of an array, starting at a bit offset.
+		**/
+		public void writeBits(byte[] b, long bitOff, long bitLen) {
+			int head = (int) min(bitLen, (8 - (bitOff & 7)) & 7);
+
+			if (head > 0) {
+				int shift = 8 - (int) (bitOff & 7) - head;
+
+				writeBits((b[(int) (bitOff >>> 3)] & 0xFF) >>> shift, head);
+				bitOff += head;
+				bitLen -= head;
+			}
+
+			int off = (int) (bitOff >>> 3);
+			int n = (int) (bitLen >>> 3);
+
+			ensureCapacity(n + 1);
+
+			if (bitCount == 0) {
+				System.arraycopy(b, off, buf, len, n);
+				len += n;
+				off += n;
+			} else {
+				for (int end = off + n; off < end; ++off) {
+					int v = b[off] & 0xFF;
+
+					buf[len++] = (byte) ((bitBuf << (8 - bitCount)) | (v >>> bitCount));
+					bitBuf = v & ((1 << bitCount) - 1);
+				}
+			}
+
+			int tail = (int) (bitLen & 7);
+
+			if (tail > 0)
+				writeBits((b[off] & 0xFF) >>> (8 - tail), tail);
+		}
+
+		/**
+		 * Pad the last byte with zero bits.
+		**/
+		public void align() {
+			if (bitCount > 0)
+				writeBits(0, 8 - bitCount);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+
+		/**
+		 * Return the number of whole bytes written.
+		**/
+		public int size() {
+			return len;
+		}
+
+		/**
+		 * Write the whole bytes to a stream, and forget them. An unfinished
+		 * byte is kept.
+		**/
+		public void drainTo(OutputStream out) throws IOException {
+			out.write(buf, 0, len);
+			len = 0;
+		}
+
+		private void put(int b) {
+			ensureCapacity(1);
+			buf[len++] = (byte) b;
+		}
+
+		private void ensureCapacity(int n) {
+			if (len + n <= buf.length) return;
+
+			byte[] b = new byte[max(len + n, buf.length * 2)];
+
+			System.arraycopy(buf, 0, b, 0, len);
+			buf = b;
+		}
+	}
+}
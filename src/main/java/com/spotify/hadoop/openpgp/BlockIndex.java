@@ -0,0 +1,163 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.fs.Path;
+
+
+/**
+ * An index of the messages of a file, mapping plaintext offsets to the
+ * file offsets where decryption can start.
+ *
+ * It is written next to the file, as foo.gpg.idx for foo.gpg, by the
+ * stream returned from OpenPgpCodec#createIndexedOutputStream(), and used
+ * by OpenPgpSeekableInputStream. It is most useful for the block format,
+ * where there is a message every spotify.hadoop.openpgp.blockSize bytes.
+ *
+ * The format is a four byte magic number, followed by one pair of big
+ * endian 64-bit integers, plaintext offset and file offset, per message.
+**/
+public class BlockIndex {
+	/// The file name extension of index files.
+	public static final String EXTENSION = ".idx";
+
+	private static final int MAGIC = 0x4F504958;
+
+	private final long[] plaintextOffsets;
+	private final long[] fileOffsets;
+
+	private BlockIndex(long[] plaintextOffsets, long[] fileOffsets) {
+		this.plaintextOffsets = plaintextOffsets;
+		this.fileOffsets = fileOffsets;
+	}
+
+	/**
+	 * Return the path of the index of a file.
+	**/
+	public static Path getIndexPath(Path file) {
+		return file.suffix(EXTENSION);
+	}
+
+	/**
+	 * Read an index, and close the stream.
+	**/
+	public static BlockIndex read(InputStream in) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+
+		try {
+			if (din.readInt() != MAGIC)
+				throw new IOException("Not an OpenPGP block index");
+
+			long[] plain = new long[16];
+			long[] file = new long[16];
+			int n = 0;
+
+			for (;;) {
+				long p;
+
+				try {
+					p = din.readLong();
+				} catch (EOFException ex) {
+					break;
+				}
+
+				if (n == plain.length) {
+					plain = copyOf(plain, n * 2);
+					file = copyOf(file, n * 2);
+				}
+
+				plain[n] = p;
+				file[n] = din.readLong();
+
+				if (n > 0 && (plain[n] < plain[n - 1] || file[n] <= file[n - 1]))
+					throw new IOException("OpenPGP block index is not sorted");
+
+				++n;
+			}
+
+			return new BlockIndex(copyOf(plain, n), copyOf(file, n));
+		} finally {
+			din.close();
+		}
+	}
+
+	/**
+	 * Return the number of messages.
+	**/
+	public int size() {
+		return plaintextOffsets.length;
+	}
+
+	public long getPlaintextOffset(int i) {
+		return plaintextOffsets[i];
+	}
+
+	public long getFileOffset(int i) {
+		return fileOffsets[i];
+	}
+
+	/**
+	 * Return the last message starting at or before a plaintext offset,
+	 * or -1 if there is none.
+	**/
+	public int find(long plaintextOffset) {
+		int lo = 0;
+		int hi = plaintextOffsets.length;
+
+		// Empty messages share their offset with the next one, so look
+		// for the last match.
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+
+			if (plaintextOffsets[mid] <= plaintextOffset)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo - 1;
+	}
+
+	private static long[] copyOf(long[] a, int n) {
+		long[] ret = new long[n];
+
+		System.arraycopy(a, 0, ret, 0, Math.min(n, a.length));
+
+		return ret;
+	}
+
+	/**
+	 * Writes an index, one message at a time.
+	**/
+	static class Writer {
+		private final DataOutputStream out;
+		private boolean started;
+
+		public Writer(OutputStream out) {
+			this.out = new DataOutputStream(out);
+		}
+
+		public void add(long plaintextOffset, long fileOffset) throws IOException {
+			start();
+			out.writeLong(plaintextOffset);
+			out.writeLong(fileOffset);
+		}
+
+		public void close() throws IOException {
+			start();
+			out.close();
+		}
+
+		private void start() throws IOException {
+			if (started) return;
+
+			out.writeInt(MAGIC);
+			started = true;
+		}
+	}
+}
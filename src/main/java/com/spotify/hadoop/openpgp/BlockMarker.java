@@ -0,0 +1,300 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.bouncycastle.bcpg.PacketTags;
+
+
+/**
+ * The marker packet starting each message of the block format.
+ *
+ * RFC 4880 section 5.8 says a marker packet must be ignored when
+ * received, so GnuPG and Bouncy Castle read a block format file as any
+ * other stream of concatenated messages. A reader positioned anywhere in
+ * the file can find the start of the next message by looking for a marker
+ * followed by a packet that may start a message.
+ *
+ * Unencrypted output holds the plaintext as is, so such bytes can also
+ * occur by chance, or on purpose. A candidate is only accepted if the
+ * packets following it parse as a whole message, ending at the end of
+ * the file or at the next marker, or as its first MAX_CHUNKS partial
+ * body chunks. Walking all the chunks of a large message would seek
+ * through most of the block.
+**/
+class BlockMarker {
+	/// The complete marker packet, old format header included.
+	static final byte[] PACKET = { (byte) (0x80 | (PacketTags.MARKER << 2)), 3, 'P', 'G', 'P' };
+
+	/// The number of bytes needed to recognize a marker.
+	private static final int MATCH_LENGTH = PACKET.length + 6 + 1;
+
+	/// The partial body chunks of a data packet enough to confirm a marker.
+	static final int MAX_CHUNKS = 8;
+
+	private BlockMarker() {
+	}
+
+	static void write(OutputStream out) throws IOException {
+		out.write(PACKET, 0, PACKET.length);
+	}
+
+	/**
+	 * Return the position of the first confirmed marker at or after pos,
+	 * or -1 if there is none.
+	 *
+	 * The stream is left at an unspecified position.
+	**/
+	static long find(FSDataInputStream in, long pos) throws IOException {
+		byte[] buf = new byte[1 << 16];
+		long bufPos = pos;
+		int len = 0;
+
+		in.seek(pos);
+
+		for (;;) {
+			int n = in.read(buf, len, buf.length - len);
+
+			if (n < 0) return -1;
+
+			len += n;
+
+			for (int i = 0; i + MATCH_LENGTH <= len; ++i) {
+				if (!matches(buf, i)) continue;
+
+				if (confirm(in, bufPos + i))
+					return bufPos + i;
+
+				in.seek(bufPos + len);
+			}
+
+			// Keep what could be the beginning of a marker.
+			int keep = Math.min(len, MATCH_LENGTH - 1);
+
+			System.arraycopy(buf, len - keep, buf, 0, keep);
+			bufPos += len - keep;
+			len = keep;
+		}
+	}
+
+	/**
+	 * Return true if b holds a marker packet at off, followed by the
+	 * header and first body byte of a packet that may start a message.
+	**/
+	static boolean matches(byte[] b, int off) {
+		for (int i = 0; i < PACKET.length; ++i) {
+			if (b[off + i] != PACKET[i])
+				return false;
+		}
+
+		off += PACKET.length;
+
+		int ctb = b[off] & 0xFF;
+		int tag;
+		int headerLength;
+
+		if ((ctb & 0x80) == 0) {
+			return false;
+		} else if ((ctb & 0x40) == 0) {
+			tag = (ctb >> 2) & 0xF;
+
+			switch (ctb & 3) {
+			case 0: headerLength = 2; break;
+			case 1: headerLength = 3; break;
+			case 2: headerLength = 5; break;
+			default: headerLength = 1;
+			}
+		} else {
+			int l = b[off + 1] & 0xFF;
+
+			tag = ctb & 0x3F;
+
+			if (l < 192)
+				headerLength = 2;
+			else if (l < 224)
+				headerLength = 3;
+			else if (l == 255)
+				headerLength = 6;
+			else
+				headerLength = 2;
+		}
+
+		int first = b[off + headerLength] & 0xFF;
+
+		switch (tag) {
+		case PacketTags.PUBLIC_KEY_ENC_SESSION:
+			return first == 3;
+
+		case PacketTags.SYMMETRIC_KEY_ENC_SESSION:
+			return first == 4;
+
+		case PacketTags.COMPRESSED_DATA:
+			return first <= 3;
+
+		case PacketTags.LITERAL_DATA:
+			return first == 'b' || first == 't' || first == 'u';
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Return true if the packets after a marker at pos form a message:
+	 * session key and one-pass signature packets, a data packet, and
+	 * signature packets, followed by the end of the file or a marker.
+	 *
+	 * Only the packet headers are read, skipping the bodies. A data
+	 * packet of indeterminate length extends to the end of the file, so
+	 * it ends the check, and so do MAX_CHUNKS partial body chunks.
+	 *
+	 * The stream is left at an unspecified position.
+	**/
+	static boolean confirm(FSDataInputStream in, long pos) throws IOException {
+		byte[] b = new byte[PACKET.length];
+		boolean data = false;
+
+		pos += PACKET.length;
+
+		for (;;) {
+			in.seek(pos);
+
+			int n = readFully(in, b, PACKET.length);
+
+			if (n == 0) {
+				// The last body must end at the end of the file, not past it.
+				in.seek(pos - 1);
+
+				return data && in.read() >= 0;
+			}
+
+			if (data && n == PACKET.length && matches(b, PACKET))
+				return true;
+
+			int ctb = b[0] & 0xFF;
+			int tag;
+			boolean isData = false;
+
+			if ((ctb & 0x80) == 0) return false;
+
+			if ((ctb & 0x40) == 0)
+				tag = (ctb >> 2) & 0xF;
+			else
+				tag = ctb & 0x3F;
+
+			switch (tag) {
+			case PacketTags.PUBLIC_KEY_ENC_SESSION:
+			case PacketTags.SYMMETRIC_KEY_ENC_SESSION:
+			case PacketTags.ONE_PASS_SIGNATURE:
+				if (data) return false;
+
+				break;
+
+			case PacketTags.SIGNATURE:
+				if (!data) return false;
+
+				break;
+
+			case PacketTags.COMPRESSED_DATA:
+			case PacketTags.SYMMETRIC_KEY_ENC:
+			case PacketTags.LITERAL_DATA:
+			case PacketTags.SYM_ENC_INTEGRITY_PRO:
+				if (data) return false;
+
+				data = true;
+				isData = true;
+
+				break;
+
+			default:
+				return false;
+			}
+
+			if ((ctb & 0x40) == 0) {
+				int lengthType = ctb & 3;
+
+				// Indeterminate length, only for data.
+				if (lengthType == 3) return isData;
+
+				int size = 1 << lengthType;
+
+				if (n < 1 + size) return false;
+
+				long length = 0;
+
+				for (int i = 1; i <= size; ++i)
+					length = (length << 8) | (b[i] & 0xFF);
+
+				pos += 1 + size + length;
+
+				continue;
+			}
+
+			// New format, with partial body lengths for data only.
+			++pos;
+
+			for (int chunks = 0; ; ++chunks) {
+				in.seek(pos);
+				n = readFully(in, b, 5);
+
+				if (n == 0) return false;
+
+				int l = b[0] & 0xFF;
+
+				if (l < 192) {
+					pos += 1 + l;
+				} else if (l < 224) {
+					if (n < 2) return false;
+
+					pos += 2 + ((l - 192) << 8) + (b[1] & 0xFF) + 192;
+				} else if (l == 255) {
+					if (n < 5) return false;
+
+					long length = 0;
+
+					for (int i = 1; i <= 4; ++i)
+						length = (length << 8) | (b[i] & 0xFF);
+
+					pos += 5 + length;
+				} else {
+					if (!isData) return false;
+					if (chunks == MAX_CHUNKS) return true;
+
+					pos += 1 + (1 << (l & 0x1F));
+
+					continue;
+				}
+
+				break;
+			}
+		}
+	}
+
+	private static boolean matches(byte[] b, byte[] prefix) {
+		for (int i = 0; i < prefix.length; ++i) {
+			if (b[i] != prefix[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read up to len bytes into b, and return the number read, which is
+	 * less only at the end of the stream.
+	**/
+	private static int readFully(FSDataInputStream in, byte[] b, int len) throws IOException {
+		int ret = 0;
+
+		while (ret < len) {
+			int n = in.read(b, ret, len - ret);
+
+			if (n < 0) break;
+
+			ret += n;
+		}
+
+		return ret;
+	}
+}
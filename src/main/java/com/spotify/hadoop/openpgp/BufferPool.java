@@ -0,0 +1,126 @@
+package com.spotify.hadoop.openpgp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A bounded pool of byte arrays, in power-of-two size classes.
+ *
+ * Stream chains allocate buffers of the same few sizes over and over,
+ * and drop them when the stream is closed. Borrowing them from here
+ * instead keeps them out of the young generation when many small files
+ * are written.
+ *
+ * Released arrays are kept until the total size of kept arrays reaches
+ * the capacity; beyond that, and for arrays larger than the largest size
+ * class, they are left to the garbage collector. Arrays are not cleared
+ * between uses.
+**/
+public class BufferPool {
+	/// The smallest size class.
+	public static final int MIN_SIZE = 1 << 9;
+
+	/// The largest size class. Larger arrays are never pooled.
+	public static final int MAX_SIZE = 1 << 20;
+
+	/// The default number of bytes kept by the shared pool.
+	public static final long DEFAULT_CAPACITY = 16L << 20;
+
+	private static final BufferPool INSTANCE = new BufferPool(DEFAULT_CAPACITY);
+
+	private final long capacity;
+	private final List<List<byte[]>> classes = new ArrayList<List<byte[]>>();
+	private long size;
+
+	/**
+	 * Construct a new, empty pool.
+	 *
+	 * @param capacity the maximum number of bytes to keep.
+	**/
+	public BufferPool(long capacity) {
+		this.capacity = capacity;
+
+		for (int n = MIN_SIZE; n <= MAX_SIZE; n <<= 1)
+			classes.add(new ArrayList<byte[]>());
+	}
+
+	/**
+	 * Return the pool shared by all streams in this process.
+	**/
+	public static BufferPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Return an array of at least the given length.
+	 *
+	 * The length is rounded up to a power of two, unless it is larger
+	 * than MAX_SIZE.
+	**/
+	public byte[] borrow(int length) {
+		if (length > MAX_SIZE)
+			return new byte[length];
+
+		int i = getSizeClass(length);
+
+		synchronized (this) {
+			List<byte[]> free = classes.get(i);
+
+			if (!free.isEmpty()) {
+				byte[] ret = free.remove(free.size() - 1);
+
+				size -= ret.length;
+
+				return ret;
+			}
+		}
+
+		return new byte[MIN_SIZE << i];
+	}
+
+	/**
+	 * Give back an array borrowed from this pool.
+	 *
+	 * The caller must not use the array afterwards. Arrays that are not
+	 * of a size class are ignored.
+	**/
+	public void release(byte[] b) {
+		if (b == null || b.length < MIN_SIZE || b.length > MAX_SIZE || Integer.bitCount(b.length) != 1)
+			return;
+
+		synchronized (this) {
+			if (size + b.length > capacity)
+				return;
+
+			classes.get(getSizeClass(b.length)).add(b);
+			size += b.length;
+		}
+	}
+
+	/**
+	 * Return the number of bytes currently kept.
+	**/
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Drop all kept arrays.
+	**/
+	public synchronized void clear() {
+		for (List<byte[]> free : classes)
+			free.clear();
+
+		size = 0;
+	}
+
+	private static int getSizeClass(int length) {
+		int i = 0;
+
+		while ((MIN_SIZE << i) < length)
+			++i;
+
+		return i;
+	}
+}
@@ -0,0 +1,358 @@
+package com.spotify.hadoop.openpgp;
+
+import java.security.GeneralSecurityException;
+import static java.lang.Math.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.engines.BlowfishEngine;
+import org.bouncycastle.crypto.engines.CAST5Engine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.engines.TwofishEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.openpgp.PGPException;
+
+
+/**
+ * OpenPGP CFB encryption and decryption of whole buffers.
+ *
+ * The streams of PGPEncryptedDataGenerator and PGPEncryptedData run
+ * the Bouncy Castle CFB cipher a byte at a time, behind a
+ * CipherOutputStream that copies every write. This processes whole
+ * arrays a block at a time, and in place when given the same array and
+ * offset for input and output.
+ *
+ * With Bouncy Castle, the block cipher engine is used directly. With
+ * another provider implementing the plain CFB mode, its cipher is used
+ * instead, since it may use the AES instructions of the processor.
+ *
+ * With resynchronization, as without integrity protection, the first
+ * block size plus two bytes are processed with a zero IV, and the rest
+ * with the last block of them as IV.
+**/
+abstract class CfbCipher {
+	private final int blockSize;
+	private final byte[] prefix;
+	private int prefixLen;
+	/// The current ciphertext block up to pos, and the previous after it.
+	private final byte[] register;
+	private final byte[] keyStream;
+	private int pos;
+	private boolean encrypt;
+
+	protected CfbCipher(int blockSize, boolean resync) {
+		this.blockSize = blockSize;
+		this.prefix = new byte[resync ? blockSize + 2 : 0];
+		this.register = new byte[blockSize];
+		this.keyStream = new byte[blockSize];
+	}
+
+	/**
+	 * Return a new cipher for an OpenPGP symmetric key algorithm.
+	 *
+	 * @param provider the JCE provider to prefer.
+	 * @param resync true for the OpenPGP CFB mode with resynchronization.
+	**/
+	static CfbCipher getInstance(int algorithm, String provider, boolean resync) throws PGPException, GeneralSecurityException {
+		String name = GnuPgUtils.getSymmetricCipherName(algorithm);
+		String transformation = name + "/CFB/NoPadding";
+
+		if (GnuPgUtils.getCipherProvider(transformation, provider).equals("BC")) {
+			BlockCipher engine = createEngine(algorithm);
+
+			if (engine != null)
+				return new EngineCfbCipher(engine, resync);
+
+			provider = "BC";
+		}
+
+		return new JceCfbCipher(
+			Cipher.getInstance(transformation, provider),
+			Cipher.getInstance(name + "/ECB/NoPadding", provider),
+			name,
+			resync);
+	}
+
+	/**
+	 * Return the Bouncy Castle engine of an algorithm, or null if there
+	 * is none.
+	**/
+	private static BlockCipher createEngine(int algorithm) {
+		switch (algorithm) {
+		case SymmetricKeyAlgorithmTags.TRIPLE_DES: return new DESedeEngine();
+		case SymmetricKeyAlgorithmTags.CAST5: return new CAST5Engine();
+		case SymmetricKeyAlgorithmTags.BLOWFISH: return new BlowfishEngine();
+		case SymmetricKeyAlgorithmTags.DES: return new DESEngine();
+		case SymmetricKeyAlgorithmTags.AES_128: return new AESFastEngine();
+		case SymmetricKeyAlgorithmTags.AES_192: return new AESFastEngine();
+		case SymmetricKeyAlgorithmTags.AES_256: return new AESFastEngine();
+		case SymmetricKeyAlgorithmTags.TWOFISH: return new TwofishEngine();
+		}
+
+		return null;
+	}
+
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Initialize the cipher with a zero IV.
+	**/
+	void init(boolean encrypt, byte[] key) throws GeneralSecurityException {
+		init(encrypt, key, new byte[blockSize], 0);
+	}
+
+	/**
+	 * Initialize the cipher.
+	 *
+	 * @param iv the array holding the IV, at ivOff.
+	**/
+	void init(boolean encrypt, byte[] key, byte[] iv, int ivOff) throws GeneralSecurityException {
+		this.encrypt = encrypt;
+		prefixLen = 0;
+		initCipher(encrypt, key);
+		resync(iv, ivOff);
+	}
+
+	/**
+	 * Return the largest length up to len that ends processing on a block
+	 * boundary, or len if there is none.
+	 *
+	 * Callers choosing how much to process at a time should prefer it: a
+	 * JCE cipher is re-initialized after each partial block.
+	**/
+	int getAlignedLength(int len) {
+		int head = 0;
+
+		if (prefixLen < prefix.length) {
+			// The resync starts a new block after the prefix.
+			head = prefix.length - prefixLen;
+
+			if (len <= head) return len;
+		} else if (pos < blockSize) {
+			head = min(len, blockSize - pos);
+		}
+
+		int n = head + (len - head) / blockSize * blockSize;
+
+		return (n > 0 ? n : len);
+	}
+
+	/**
+	 * Encrypt or decrypt in place.
+	**/
+	void process(byte[] b, int off, int len) throws GeneralSecurityException {
+		process(b, off, len, b, off);
+	}
+
+	/**
+	 * Encrypt or decrypt len bytes of in into out.
+	 *
+	 * The ranges may be the same, but must not otherwise overlap.
+	**/
+	void process(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+		if (prefixLen < prefix.length) {
+			int n = min(len, prefix.length - prefixLen);
+
+			// Keep the ciphertext of the prefix, for the resync.
+			if (!encrypt) System.arraycopy(in, inOff, prefix, prefixLen, n);
+
+			processBytes(in, inOff, n, out, outOff);
+
+			if (encrypt) System.arraycopy(out, outOff, prefix, prefixLen, n);
+
+			prefixLen += n;
+			inOff += n;
+			outOff += n;
+			len -= n;
+
+			if (prefixLen == prefix.length)
+				resync(prefix, 2);
+		}
+
+		processBytes(in, inOff, len, out, outOff);
+	}
+
+	/**
+	 * Restart the CFB mode with a new IV, keeping the key.
+	**/
+	private void resync(byte[] iv, int ivOff) {
+		System.arraycopy(iv, ivOff, register, 0, blockSize);
+		pos = blockSize;
+		resetBlocks();
+	}
+
+	private void processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+		while (len > 0) {
+			if (pos == blockSize && len >= blockSize) {
+				int n = len - len % blockSize;
+
+				processBlocks(register, encrypt, in, inOff, n, out, outOff);
+				inOff += n;
+				outOff += n;
+				len -= n;
+
+				continue;
+			}
+
+			if (pos == blockSize) {
+				encryptBlock(register, keyStream);
+				resetBlocks();
+				pos = 0;
+			}
+
+			int n = min(len, blockSize - pos);
+
+			for (int i = 0; i < n; ++i) {
+				byte b = in[inOff + i];
+				byte c = (byte) (b ^ keyStream[pos + i]);
+
+				register[pos + i] = (encrypt ? c : b);
+				out[outOff + i] = c;
+			}
+
+			pos += n;
+			inOff += n;
+			outOff += n;
+			len -= n;
+		}
+	}
+
+	protected abstract void initCipher(boolean encrypt, byte[] key) throws GeneralSecurityException;
+
+	/**
+	 * Run the block cipher forward over a single block.
+	**/
+	protected abstract void encryptBlock(byte[] in, byte[] out) throws GeneralSecurityException;
+
+	/**
+	 * Process whole blocks in CFB mode, starting from the given IV, and
+	 * leave the last ciphertext block in it.
+	 *
+	 * Consecutive calls continue from the IV of the first call, until
+	 * resetBlocks() is called.
+	**/
+	protected abstract void processBlocks(byte[] iv, boolean encrypt, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException;
+
+	/**
+	 * Called when the IV of the next processBlocks() call does not follow
+	 * from the previous call.
+	**/
+	protected void resetBlocks() {
+	}
+
+	/**
+	 * CFB over a Bouncy Castle block cipher engine.
+	**/
+	private static class EngineCfbCipher extends CfbCipher {
+		private final BlockCipher engine;
+		private final int blockSize;
+		private final byte[] keyStream;
+
+		public EngineCfbCipher(BlockCipher engine, boolean resync) {
+			super(engine.getBlockSize(), resync);
+			this.engine = engine;
+			this.blockSize = engine.getBlockSize();
+			this.keyStream = new byte[blockSize];
+		}
+
+		protected void initCipher(boolean encrypt, byte[] key) {
+			// CFB only runs the block cipher forward.
+			engine.init(true, new KeyParameter(key));
+		}
+
+		protected void encryptBlock(byte[] in, byte[] out) {
+			engine.processBlock(in, 0, out, 0);
+		}
+
+		protected void processBlocks(byte[] iv, boolean encrypt, byte[] in, int inOff, int len, byte[] out, int outOff) {
+			// The feedback is the previous ciphertext block, read back
+			// from in or out.
+			byte[] fb = iv;
+			int fbOff = 0;
+
+			for (int end = inOff + len; inOff < end; inOff += blockSize, outOff += blockSize) {
+				engine.processBlock(fb, fbOff, keyStream, 0);
+
+				if (encrypt) {
+					for (int i = 0; i < blockSize; ++i)
+						out[outOff + i] = (byte) (in[inOff + i] ^ keyStream[i]);
+
+					fb = out;
+					fbOff = outOff;
+
+					if (inOff + blockSize == end)
+						System.arraycopy(out, outOff, iv, 0, blockSize);
+				} else {
+					// Keep the ciphertext, which may be overwritten.
+					System.arraycopy(in, inOff, iv, 0, blockSize);
+
+					for (int i = 0; i < blockSize; ++i)
+						out[outOff + i] = (byte) (iv[i] ^ keyStream[i]);
+
+					fb = iv;
+					fbOff = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * CFB from a JCE provider.
+	 *
+	 * Runs of whole blocks go through the CFB cipher of the provider,
+	 * re-initialized only when the IV does not follow from the previous
+	 * run. Partial blocks use its ECB cipher for the key stream.
+	**/
+	private static class JceCfbCipher extends CfbCipher {
+		private final Cipher cfb;
+		private final Cipher ecb;
+		private final String name;
+		private int mode;
+		private SecretKeySpec key;
+		private boolean synced;
+
+		public JceCfbCipher(Cipher cfb, Cipher ecb, String name, boolean resync) {
+			super(cfb.getBlockSize(), resync);
+			this.cfb = cfb;
+			this.ecb = ecb;
+			this.name = name;
+		}
+
+		protected void initCipher(boolean encrypt, byte[] key) throws GeneralSecurityException {
+			this.mode = (encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
+			this.key = new SecretKeySpec(key, name);
+			ecb.init(Cipher.ENCRYPT_MODE, this.key);
+		}
+
+		protected void encryptBlock(byte[] in, byte[] out) throws GeneralSecurityException {
+			ecb.doFinal(in, 0, in.length, out, 0);
+		}
+
+		protected void processBlocks(byte[] iv, boolean encrypt, byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+			if (!synced) {
+				cfb.init(mode, key, new IvParameterSpec(iv));
+				synced = true;
+			}
+
+			// Keep the ciphertext, which may be overwritten.
+			if (!encrypt) System.arraycopy(in, inOff + len - iv.length, iv, 0, iv.length);
+
+			if (cfb.update(in, inOff, len, out, outOff) != len)
+				throw new GeneralSecurityException("short CFB update");
+
+			if (encrypt) System.arraycopy(out, outOff + len - iv.length, iv, 0, iv.length);
+		}
+
+		protected void resetBlocks() {
+			synced = false;
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.bcpg.SymmetricKeyEncSessionPacket;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPUtil;
+
+
+/**
+ * Writes CFB encrypted data, like PGPEncryptedDataGenerator, with the
+ * data cipher from any JCE provider.
+ *
+ * PGPEncryptedDataGenerator takes a single provider for the data cipher,
+ * the public key cipher and the S2K digest, so it cannot use a JDK
+ * provider for AES. Here, only the data cipher comes from the given
+ * provider, and everything else from Bouncy Castle. Its stream also
+ * encrypts a byte at a time; this one encrypts whole buffers in place
+ * with a CfbCipher, and hashes each write in one go.
+ *
+ * The output is the same: version 3 public key and version 4 symmetric
+ * key encrypted session key packets, followed by a symmetrically
+ * encrypted integrity protected data packet with a modification
+ * detection code, or a symmetrically encrypted data packet without
+ * integrity protection.
+**/
+class CfbEncryptedDataGenerator {
+	/// S2K iteration count, as encoded. Same as PGPEncryptedDataGenerator.
+	private static final int S2K_COUNT = 0x60;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final int algorithm;
+	private final boolean integrity;
+	private final String provider;
+	private final List<PipelineOutputStream> pipes;
+	private final SecureRandom random;
+	private final List<Object> methods = new ArrayList<Object>();
+
+	/**
+	 * Construct a new generator.
+	 *
+	 * @param algorithm the symmetric key algorithm.
+	 * @param integrity whether to add a modification detection code.
+	 * @param provider the JCE provider of the data cipher.
+	 * @param pipes the list to add a PipelineOutputStream hashing the
+	 *              modification detection code on another thread to, so
+	 *              the caller can abort it, or null to hash on the
+	 *              writing thread.
+	**/
+	CfbEncryptedDataGenerator(int algorithm, boolean integrity, String provider, List<PipelineOutputStream> pipes, SecureRandom random) {
+		this.algorithm = algorithm;
+		this.integrity = integrity;
+		this.provider = provider;
+		this.pipes = pipes;
+		this.random = random;
+	}
+
+	void addMethod(PGPPublicKey key) {
+		methods.add(key);
+	}
+
+	void addMethod(char[] passPhrase) {
+		methods.add(passPhrase);
+	}
+
+	/**
+	 * Write the session key packets and the start of the encrypted data
+	 * packet, and return a stream for the data to encrypt.
+	 *
+	 * Closing the returned stream finishes the packet, without closing
+	 * out.
+	 *
+	 * @param buffer the buffer for partial body lengths.
+	**/
+	OutputStream open(OutputStream out, byte[] buffer) throws IOException {
+		if (methods.isEmpty())
+			throw new IOException("no encryption methods specified");
+
+		try {
+			String name = GnuPgUtils.getSymmetricCipherName(algorithm);
+			byte[] sessionKey;
+			BCPGOutputStream pkOut = new BCPGOutputStream(out);
+
+			if (methods.size() == 1 && methods.get(0) instanceof char[]) {
+				// A lone pass phrase gives the session key.
+				S2K s2k = createS2K();
+
+				sessionKey = PGPUtil.makeKeyFromPassPhrase(algorithm, s2k, (char[]) methods.get(0), "BC").getEncoded();
+				pkOut.writePacket(new SymmetricKeyEncSessionPacket(algorithm, s2k, null));
+			} else {
+				sessionKey = new byte[GnuPgUtils.getSymmetricKeyLength(algorithm)];
+				random.nextBytes(sessionKey);
+
+				for (Object method : methods) {
+					if (method instanceof PGPPublicKey)
+						pkOut.writePacket(encodePublicKeySessionPacket((PGPPublicKey) method, sessionKey));
+					else
+						pkOut.writePacket(encodeSymmetricKeySessionPacket(name, (char[]) method, sessionKey));
+				}
+			}
+
+			CfbCipher c = CfbCipher.getInstance(algorithm, provider, !integrity);
+
+			c.init(true, sessionKey);
+
+			BCPGOutputStream dataOut;
+			MessageDigest digest = null;
+
+			if (integrity) {
+				dataOut = new BCPGOutputStream(out, PacketTags.SYM_ENC_INTEGRITY_PRO, buffer);
+				dataOut.write(1);
+				digest = MessageDigest.getInstance("SHA-1");
+			} else {
+				dataOut = new BCPGOutputStream(out, PacketTags.SYMMETRIC_KEY_ENC, buffer);
+			}
+
+			OutputStream ret = new EncryptingOutputStream(dataOut, c, digest, pipes);
+			byte[] prefix = new byte[c.getBlockSize() + 2];
+
+			random.nextBytes(prefix);
+			prefix[prefix.length - 2] = prefix[prefix.length - 4];
+			prefix[prefix.length - 1] = prefix[prefix.length - 3];
+			ret.write(prefix);
+
+			return ret;
+		} catch (PGPException ex) {
+			throw new IOException(ex);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private S2K createS2K() {
+		byte[] salt = new byte[8];
+
+		random.nextBytes(salt);
+
+		return new S2K(HashAlgorithmTags.SHA1, salt, S2K_COUNT);
+	}
+
+	/**
+	 * Return the algorithm, session key and checksum, as encrypted in
+	 * session key packets.
+	**/
+	private byte[] encodeSessionKey(byte[] sessionKey) {
+		byte[] m = new byte[1 + sessionKey.length + 2];
+		int check = 0;
+
+		m[0] = (byte) algorithm;
+		System.arraycopy(sessionKey, 0, m, 1, sessionKey.length);
+
+		for (int i = 0; i < sessionKey.length; ++i)
+			check += sessionKey[i] & 0xFF;
+
+		m[m.length - 2] = (byte) (check >> 8);
+		m[m.length - 1] = (byte) check;
+
+		return m;
+	}
+
+	private PublicKeyEncSessionPacket encodePublicKeySessionPacket(PGPPublicKey key, byte[] sessionKey) throws PGPException, GeneralSecurityException {
+		Cipher c;
+
+		switch (key.getAlgorithm()) {
+		case PublicKeyAlgorithmTags.RSA_ENCRYPT:
+		case PublicKeyAlgorithmTags.RSA_GENERAL:
+			c = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+			break;
+
+		case PublicKeyAlgorithmTags.ELGAMAL_ENCRYPT:
+		case PublicKeyAlgorithmTags.ELGAMAL_GENERAL:
+			c = Cipher.getInstance("ElGamal/ECB/PKCS1Padding", "BC");
+			break;
+
+		default:
+			throw new PGPException("unsupported public key algorithm: " + key.getAlgorithm());
+		}
+
+		c.init(Cipher.ENCRYPT_MODE, key.getKey("BC"), random);
+
+		byte[] encrypted = c.doFinal(encodeSessionKey(sessionKey));
+		BigInteger[] data;
+
+		if (key.getAlgorithm() == PublicKeyAlgorithmTags.RSA_ENCRYPT || key.getAlgorithm() == PublicKeyAlgorithmTags.RSA_GENERAL) {
+			data = new BigInteger[] { new BigInteger(1, encrypted) };
+		} else {
+			byte[] a = new byte[encrypted.length / 2];
+			byte[] b = new byte[encrypted.length / 2];
+
+			System.arraycopy(encrypted, 0, a, 0, a.length);
+			System.arraycopy(encrypted, a.length, b, 0, b.length);
+			data = new BigInteger[] { new BigInteger(1, a), new BigInteger(1, b) };
+		}
+
+		return new PublicKeyEncSessionPacket(key.getKeyID(), key.getAlgorithm(), data);
+	}
+
+	private SymmetricKeyEncSessionPacket encodeSymmetricKeySessionPacket(String name, char[] passPhrase, byte[] sessionKey) throws PGPException, GeneralSecurityException {
+		S2K s2k = createS2K();
+		Cipher c = Cipher.getInstance(name + "/CFB/NoPadding", "BC");
+
+		c.init(
+			Cipher.ENCRYPT_MODE,
+			PGPUtil.makeKeyFromPassPhrase(algorithm, s2k, passPhrase, "BC"),
+			new IvParameterSpec(new byte[c.getBlockSize()]));
+
+		byte[] m = encodeSessionKey(sessionKey);
+		byte[] encrypted = new byte[1 + sessionKey.length];
+
+		// No checksum in this packet.
+		c.doFinal(m, 0, encrypted.length, encrypted, 0);
+
+		return new SymmetricKeyEncSessionPacket(algorithm, s2k, encrypted);
+	}
+
+	/**
+	 * Encrypts the data in a pooled buffer, and appends the modification
+	 * detection code packet on close, if there is a digest.
+	 *
+	 * The buffer is encrypted up to a block boundary when it fills up,
+	 * keeping the rest for the next time.
+	 *
+	 * When pipelined, the data is hashed on another thread, through a
+	 * PipelineOutputStream.
+	**/
+	private static class EncryptingOutputStream extends OutputStream {
+		private final BCPGOutputStream out;
+		private final CfbCipher cipher;
+		private final MessageDigest digest;
+		private final PipelineOutputStream digestOut;
+		private final BufferPool pool = BufferPool.getInstance();
+		private byte[] buf;
+		private int bufLen;
+		private final byte[] oneByte = new byte[1];
+
+		public EncryptingOutputStream(BCPGOutputStream out, CfbCipher cipher, final MessageDigest digest, List<PipelineOutputStream> pipes) {
+			this.out = out;
+			this.cipher = cipher;
+			this.digest = digest;
+			this.buf = pool.borrow(BUFFER_SIZE);
+
+			if (digest != null && pipes != null) {
+				this.digestOut = new PipelineOutputStream(new OutputStream() {
+					public void write(int b) {
+						digest.update((byte) b);
+					}
+
+					public void write(byte[] b, int off, int len) {
+						digest.update(b, off, len);
+					}
+				});
+				pipes.add(digestOut);
+			} else {
+				this.digestOut = null;
+			}
+		}
+
+		public void write(int b) throws IOException {
+			oneByte[0] = (byte) b;
+			write(oneByte, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (digestOut != null)
+				digestOut.write(b, off, len);
+			else if (digest != null)
+				digest.update(b, off, len);
+
+			append(b, off, len);
+		}
+
+		/**
+		 * Flush the underlying stream, without what is left in the buffer.
+		**/
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			if (buf == null) return;
+
+			if (digestOut != null)
+				digestOut.close();
+
+			if (digest != null) {
+				// The MDC packet header is part of the hash.
+				byte[] mdc = new byte[2 + 20];
+
+				mdc[0] = (byte) (0xC0 | PacketTags.MOD_DETECTION_CODE);
+				mdc[1] = 20;
+				digest.update(mdc, 0, 2);
+
+				try {
+					digest.digest(mdc, 2, 20);
+				} catch (GeneralSecurityException ex) {
+					throw new IOException(ex);
+				}
+
+				append(mdc, 0, mdc.length);
+			}
+
+			encrypt(bufLen);
+			out.finish();
+			out.flush();
+
+			pool.release(buf);
+			buf = null;
+		}
+
+		private void append(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (bufLen == buf.length)
+					encrypt(cipher.getAlignedLength(bufLen));
+
+				int n = Math.min(len, buf.length - bufLen);
+
+				System.arraycopy(b, off, buf, bufLen, n);
+				bufLen += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Encrypt the first len bytes of the buffer in place, and write
+		 * them.
+		**/
+		private void encrypt(int len) throws IOException {
+			try {
+				cipher.process(buf, 0, len);
+			} catch (GeneralSecurityException ex) {
+				throw new IOException(ex);
+			}
+
+			out.write(buf, 0, len);
+			System.arraycopy(buf, len, buf, 0, bufLen - len);
+			bufLen -= len;
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.File;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+
+/**
+ * The resolved settings used to create OpenPGP output streams.
+ *
+ * A profile is immutable, and can be shared by any number of compressors
+ * and threads. Configuration parsing and key lookup is done once, when
+ * the profile is created.
+ *
+ * Configuration entries used:
+ *
+ * * spotify.hadoop.openpgp.buffersize
+ * * spotify.hadoop.openpgp.compression
+ * * spotify.hadoop.openpgp.compression.threads
+ * * spotify.hadoop.openpgp.encryption
+ * * spotify.hadoop.openpgp.encryption.chunkSize
+ * * spotify.hadoop.openpgp.encryption.mode
+ * * spotify.hadoop.openpgp.encrypt.keyId
+ * * spotify.hadoop.openpgp.encrypt.passPhrase
+ * * spotify.hadoop.openpgp.format
+ * * spotify.hadoop.openpgp.pipeline
+ * * spotify.hadoop.openpgp.provider
+ * * spotify.hadoop.openpgp.integrity.sign
+ * * spotify.hadoop.openpgp.pubring.path
+ * * spotify.hadoop.openpgp.secring.path
+ * * spotify.hadoop.openpgp.sign.hash
+ * * spotify.hadoop.openpgp.sign.keyId
+ * * spotify.hadoop.openpgp.sign.keyPassPhrase
+ *
+ * Note that the default settings has no encryption and no compression,
+ * thus just creating an OpenPGP literal data packet.
+ *
+ * The encryption mode is "cfb" by default, the CFB mode of RFC 4880 that
+ * all implementations read. Setting it to "gcm" or "eax" writes chunked
+ * AEAD encrypted data instead, see AeadCipher, which needs a 128-bit block
+ * cipher and defaults to "aes_128." Readers need RFC 9580 support.
+ * Compression cannot be "bzip2" then, since OpenPgpPacketDecoder, the
+ * only reader of AEAD encrypted data here, does not decompress BZip2.
+ *
+ * The provider setting names the JCE provider of the data cipher in CFB
+ * mode, "BC" by default; the OpenPGP packets are always handled by Bouncy
+ * Castle. "jdk" picks the JDK's own AES implementation, which the JVM runs
+ * with the AES instructions of the processor, and makes "aes_128" the
+ * default encryption algorithm. Algorithms the provider lacks, like CAST5,
+ * fall back to Bouncy Castle.
+ *
+ * Setting pipeline to true runs compression, encryption and the
+ * modification detection code hash of each stream on threads of their
+ * own, see PipelineOutputStream, so a single writer can use several
+ * cores. The output is the same. It is off by default, and only used by
+ * streams writing directly to a file, not by OpenPgpCompressor.
+ *
+ * Setting compression to "auto" samples the start of each stream, and
+ * writes a "zip" compressed data packet only if the sample compresses by
+ * a tenth or more. Already compressed data is written as literal data
+ * directly. See OpenPgpCompressor#getAutoCompressedCount() for counts of
+ * the decisions.
+ *
+ * Setting compression.threads above one compresses "zip", "zlib",
+ * "bzip2" and "auto" data in that many blocks at a time, see
+ * ParallelDeflaterOutputStream and ParallelBZip2OutputStream. The output
+ * differs from single-threaded compression, but any decompressor reads
+ * it. It is one by default.
+**/
+public class EncryptionProfile {
+	private final Object key;
+	private final int encryptionAlgorithm;
+	private final boolean integrity;
+	private final int compressionAlgorithm;
+	private final int format;
+	private final int bufferSize;
+	private final PGPPrivateKey signingKey;
+	private final int signingKeyAlgorithm;
+	private final int hashAlgorithm;
+	private final int aeadAlgorithm;
+	private final int chunkSize;
+	private final String cipherProvider;
+	private final boolean pipelined;
+	private final int compressionThreads;
+
+	/**
+	 * Construct a new profile.
+	 *
+	 * @param key the encryption key (PGPPublicKey) or pass phrase (String,) or null.
+	 * @param encryptionAlgorithm the encryption algorithm.
+	 * @param integrity whether to add an integrity check or not, for CFB.
+	 * @param compressionAlgorithm the compression algorithm, or
+	 *                             OpenPgpCompressor.AUTO_COMPRESSION.
+	 * @param format the format of the literal data.
+	 * @param bufferSize the size of the Bouncy Castle buffers.
+	 * @param signingKey the unlocked signing key, or null to not sign.
+	 * @param signingKeyAlgorithm the public key algorithm of signingKey.
+	 * @param hashAlgorithm the hash algorithm of the signature.
+	 * @param aeadAlgorithm AeadCipher.EAX or AeadCipher.GCM, or zero for CFB.
+	 * @param chunkSize the plaintext bytes per AEAD chunk, a power of two.
+	 * @param cipherProvider the JCE provider of the CFB data cipher.
+	 * @param pipelined whether to run the stages of a stream on threads
+	 *                  of their own.
+	 * @param compressionThreads the number of blocks to compress at a time.
+	**/
+	public EncryptionProfile(Object key, int encryptionAlgorithm, boolean integrity, int compressionAlgorithm, int format, int bufferSize, PGPPrivateKey signingKey, int signingKeyAlgorithm, int hashAlgorithm, int aeadAlgorithm, int chunkSize, String cipherProvider, boolean pipelined, int compressionThreads) {
+		this.key = key;
+		this.encryptionAlgorithm = encryptionAlgorithm;
+		this.integrity = integrity;
+		this.compressionAlgorithm = compressionAlgorithm;
+		this.format = format;
+		this.bufferSize = bufferSize;
+		this.signingKey = signingKey;
+		this.signingKeyAlgorithm = signingKeyAlgorithm;
+		this.hashAlgorithm = hashAlgorithm;
+		this.aeadAlgorithm = aeadAlgorithm;
+		this.chunkSize = chunkSize;
+		this.cipherProvider = cipherProvider;
+		this.pipelined = pipelined;
+		this.compressionThreads = compressionThreads;
+	}
+
+	/**
+	 * Create a profile from configuration.
+	 *
+	 * See the class help for more information.
+	 *
+	 * @throws KeyNotFoundException if the configured key could not be found.
+	**/
+	public static EncryptionProfile fromConfiguration(Configuration conf) {
+		Object key = getKey(conf);
+		boolean hasKey = key != null;
+		PGPSecretKey signingKey = getSigningKey(conf);
+		int aeadAlgorithm = getAeadAlgorithm(conf);
+		String cipherProvider = getCipherProvider(conf);
+		int encryptionAlgorithm = getEncryptionAlgorithm(conf, hasKey, aeadAlgorithm != 0 || !cipherProvider.equals("BC"));
+		int compressionAlgorithm = getCompressionAlgorithm(conf);
+
+		if (aeadAlgorithm != 0 && encryptionAlgorithm != PGPEncryptedDataGenerator.NULL && compressionAlgorithm == PGPCompressedDataGenerator.BZIP2)
+			throw new IllegalArgumentException("bzip2 compression cannot be read back in an AEAD encryption mode, use zip or zlib");
+
+		return new EncryptionProfile(
+			key,
+			encryptionAlgorithm,
+			wantsIntegrity(conf, hasKey),
+			compressionAlgorithm,
+			getFormat(conf),
+			getBufferSize(conf),
+			signingKey != null ? extractPrivateKey(signingKey, conf) : null,
+			signingKey != null ? signingKey.getPublicKey().getAlgorithm() : 0,
+			getHashAlgorithm(conf),
+			aeadAlgorithm,
+			getChunkSize(conf),
+			cipherProvider,
+			wantsPipeline(conf),
+			getCompressionThreads(conf));
+	}
+
+	/**
+	 * Return the encryption key to be used.
+	 *
+	 * @return a PGPPublicKey, String, or null.
+	**/
+	public Object getKey() {
+		return key;
+	}
+
+	public int getEncryptionAlgorithm() {
+		return encryptionAlgorithm;
+	}
+
+	public boolean wantsIntegrity() {
+		return integrity;
+	}
+
+	/**
+	 * Return the compression algorithm, or
+	 * OpenPgpCompressor.AUTO_COMPRESSION.
+	**/
+	public int getCompressionAlgorithm() {
+		return compressionAlgorithm;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Return the unlocked key to sign the literal data with.
+	 *
+	 * @return a key, or null if the data is not to be signed.
+	**/
+	public PGPPrivateKey getSigningKey() {
+		return signingKey;
+	}
+
+	public int getSigningKeyAlgorithm() {
+		return signingKeyAlgorithm;
+	}
+
+	public int getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * Return the AEAD algorithm, or zero for the CFB mode.
+	**/
+	public int getAeadAlgorithm() {
+		return aeadAlgorithm;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public String getCipherProvider() {
+		return cipherProvider;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+
+	/**
+	 * Return the public key ring file, as specified in configuration.
+	 *
+	 * Falls back to the GnuPG default.
+	**/
+	private static File getPubringFile(Configuration conf) {
+		String path = conf.get("spotify.hadoop.openpgp.pubring.path");
+
+		if (path != null)
+			return new File(path);
+
+		return GnuPgUtils.getDefaultPubringFile();
+	}
+
+	/**
+	 * Return the encryption key to be used.
+	 *
+	 * If a public key is found, that is returned, else a pass phrase
+	 * String is returned, or null.
+	 *
+	 * @return a PGPPublicKey, String, or null.
+	**/
+	private static Object getKey(Configuration conf) {
+		PGPPublicKey pubKey = getPublicKey(conf, conf.get("spotify.hadoop.openpgp.encrypt.keyId"));
+
+		if (pubKey != null) return pubKey;
+
+		// Encrypt with a pass phrase only. This is like using "gpg -c".
+		return conf.get("spotify.hadoop.openpgp.encrypt.passPhrase");
+	}
+
+	/**
+	 * Look up the given key ID in the configured pubring file.
+	 *
+	 * The key ring is shared with other profiles, and is only read
+	 * again if the file changes.
+	 *
+	 * @return an object, or null.
+	**/
+	private static PGPPublicKey getPublicKey(Configuration conf, String id) {
+		if (id == null) return null;
+
+		try {
+			return GnuPgUtils.getPublicKeyIndex(getPubringFile(conf)).getPublicKey(id);
+		} catch (Exception ex) {
+			throw new KeyNotFoundException(ex);
+		}
+	}
+
+	/**
+	 * Return the secret key ring file, as specified in configuration.
+	 *
+	 * Falls back to the GnuPG default.
+	**/
+	private static File getSecringFile(Configuration conf) {
+		String path = conf.get("spotify.hadoop.openpgp.secring.path");
+
+		if (path != null)
+			return new File(path);
+
+		return GnuPgUtils.getDefaultSecringFile();
+	}
+
+	/**
+	 * Look up the signing key in the configured secring file.
+	 *
+	 * @return a key, or null if spotify.hadoop.openpgp.sign.keyId is unset.
+	**/
+	private static PGPSecretKey getSigningKey(Configuration conf) {
+		String id = conf.get("spotify.hadoop.openpgp.sign.keyId");
+
+		if (id == null) return null;
+
+		PGPSecretKey key;
+
+		try {
+			key = GnuPgUtils.getSecretKey(GnuPgUtils.getSecretKeyRingCollection(getSecringFile(conf)), id);
+		} catch (KeyNotFoundException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new KeyNotFoundException(ex);
+		}
+
+		if (!key.isSigningKey())
+			throw new IncompatibleKeyException("not a signing key: " + id);
+
+		return key;
+	}
+
+	/**
+	 * Unlock the signing key, with the pass phrase in
+	 * spotify.hadoop.openpgp.sign.keyPassPhrase.
+	 *
+	 * This is done once per profile, not once per stream.
+	**/
+	private static PGPPrivateKey extractPrivateKey(PGPSecretKey key, Configuration conf) {
+		try {
+			return key.extractPrivateKey(conf.get("spotify.hadoop.openpgp.sign.keyPassPhrase", "").toCharArray(), "BC");
+		} catch (Exception ex) {
+			throw new KeyNotFoundException(ex);
+		}
+	}
+
+	/**
+	 * Return an identifier of the hash algorithm of signatures.
+	 *
+	 * Defaults to "sha256."
+	**/
+	private static int getHashAlgorithm(Configuration conf) {
+		String algo = conf.get("spotify.hadoop.openpgp.sign.hash", "sha256");
+
+		return OpenPgpCompressor.HASH_ALGORITHMS.get(algo.toUpperCase());
+	}
+
+	/**
+	 * Return an identifier of the format of the literal data.
+	 *
+	 * @return a constant from PGPLiteralData, defaulting to "binary."
+	 *
+	 * @see PGPLiteralData#BINARY
+	 * @see PGPLiteralData#TEXT
+	 * @see PGPLiteralData#UTF8
+	**/
+	private static int getFormat(Configuration conf) {
+		String format = conf.get("spotify.hadoop.openpgp.format", "binary");
+
+		if (format.equals("binary")) return PGPLiteralDataGenerator.BINARY;
+		else if (format.equals("text")) return PGPLiteralDataGenerator.TEXT;
+		else if (format.equals("utf-8")) return PGPLiteralDataGenerator.UTF8;
+
+		throw new RuntimeException("unknown format");
+	}
+
+	/**
+	 * Return an identifier of the compression algorithm to use, or
+	 * OpenPgpCompressor.AUTO_COMPRESSION for "auto."
+	 *
+	 * Defaults to "uncompressed."
+	**/
+	private static int getCompressionAlgorithm(Configuration conf) {
+		String algo = conf.get("spotify.hadoop.openpgp.compression", "uncompressed");
+
+		if (algo.equalsIgnoreCase("auto"))
+			return OpenPgpCompressor.AUTO_COMPRESSION;
+
+		return OpenPgpCompressor.COMPRESSION_ALGORITHMS.get(algo.toUpperCase());
+	}
+
+	/**
+	 * Return the number of blocks to compress at a time.
+	 *
+	 * Defaults to 1.
+	**/
+	private static int getCompressionThreads(Configuration conf) {
+		return conf.getInt("spotify.hadoop.openpgp.compression.threads", 1);
+	}
+
+	/**
+	 * Return an identifier of the encryption algorithm to use.
+	 *
+	 * This defaults to "cast5" if a key could be found, or "aes_128" in
+	 * AEAD mode or with a JDK cipher provider, else "null."
+	**/
+	private static int getEncryptionAlgorithm(Configuration conf, boolean hasKey, boolean preferAes) {
+		String algo = conf.get("spotify.hadoop.openpgp.encryption");
+
+		if (algo == null)
+			algo = (hasKey ? (preferAes ? "aes_128" : "cast5") : "null");
+
+		return OpenPgpCompressor.ENCRYPTION_ALGORITHMS.get(algo.toUpperCase());
+	}
+
+	/**
+	 * Return an identifier of the AEAD algorithm to use, or zero for
+	 * the CFB mode.
+	 *
+	 * Defaults to "cfb."
+	**/
+	private static int getAeadAlgorithm(Configuration conf) {
+		String mode = conf.get("spotify.hadoop.openpgp.encryption.mode", "cfb");
+
+		if (mode.equals("cfb")) return 0;
+		else if (mode.equals("eax")) return AeadCipher.EAX;
+		else if (mode.equals("gcm")) return AeadCipher.GCM;
+		else if (mode.equals("ocb")) throw new RuntimeException("OCB is not supported by this Bouncy Castle version");
+
+		throw new RuntimeException("unknown encryption mode");
+	}
+
+	/**
+	 * Return the name of the JCE provider of the data cipher.
+	 *
+	 * Defaults to "BC."
+	 *
+	 * @see GnuPgUtils#resolveCipherProvider(String)
+	**/
+	static String getCipherProvider(Configuration conf) {
+		return GnuPgUtils.resolveCipherProvider(conf.get("spotify.hadoop.openpgp.provider", "BC"));
+	}
+
+	/**
+	 * Return the number of plaintext bytes per AEAD chunk.
+	 *
+	 * Defaults to 256 kB.
+	**/
+	private static int getChunkSize(Configuration conf) {
+		int chunkSize = conf.getInt("spotify.hadoop.openpgp.encryption.chunkSize", 1 << 18);
+
+		AeadCipher.getChunkSizeOctet(chunkSize);
+
+		return chunkSize;
+	}
+
+	/**
+	 * Return true if the stream should be signed.
+	 *
+	 * Defaults to true iff a key could be found.
+	**/
+	private static boolean wantsIntegrity(Configuration conf, boolean hasKey) {
+		return conf.getBoolean("spotify.hadoop.openpgp.integrity.sign", hasKey);
+	}
+
+	/**
+	 * Return true if the stages of a stream should run on threads of
+	 * their own.
+	 *
+	 * Defaults to false.
+	**/
+	private static boolean wantsPipeline(Configuration conf) {
+		return conf.getBoolean("spotify.hadoop.openpgp.pipeline", false);
+	}
+
+	/**
+	 * Return the default buffer size for Bouncy Castle buffers.
+	 *
+	 * Defaults to 16 kB.
+	**/
+	private static int getBufferSize(Configuration conf) {
+		return conf.getInt("spotify.hadoop.openpgp.buffersize", 1 << 14);
+	}
+}
@@ -4,14 +4,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
 
+import javax.crypto.Cipher;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPublicKey;
-import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
 import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
 import org.bouncycastle.openpgp.PGPUtil;
 
@@ -20,6 +28,18 @@ public class GnuPgUtils {
 	public static final String PUBRING_FILE_NAME = "pubring.gpg";
 	public static final String SECRING_FILE_NAME = "secring.gpg";
 
+	private static final KeyRingCache<PublicKeyIndex> PUBLIC_KEY_RINGS = new KeyRingCache<PublicKeyIndex>() {
+		protected PublicKeyIndex load(File file) throws IOException, PGPException {
+			return new PublicKeyIndex(createPublicKeyRingCollection(file));
+		}
+	};
+
+	private static final KeyRingCache<PGPSecretKeyRingCollection> SECRET_KEY_RINGS = new KeyRingCache<PGPSecretKeyRingCollection>() {
+		protected PGPSecretKeyRingCollection load(File file) throws IOException, PGPException {
+			return createSecretKeyRingCollection(file);
+		}
+	};
+
 	public static PGPPublicKeyRingCollection createPublicKeyRingCollection() throws IOException, PGPException {
 		return createPublicKeyRingCollection(getDefaultPubringFile());
 	}
@@ -34,6 +54,27 @@ public class GnuPgUtils {
 		}
 	}
 
+	/**
+	 * Return the public key ring collection of the given file.
+	 *
+	 * The collection is shared by the whole process, and the file is
+	 * only parsed again if its size or modification time has changed.
+	**/
+	public static PGPPublicKeyRingCollection getPublicKeyRingCollection(File pubring) throws IOException, PGPException {
+		return getPublicKeyIndex(pubring).getKeyRings();
+	}
+
+	/**
+	 * Return an index of the keys in the given file.
+	 *
+	 * The index is cached like the collection.
+	 *
+	 * @see #getPublicKeyRingCollection(File)
+	**/
+	public static PublicKeyIndex getPublicKeyIndex(File pubring) throws IOException, PGPException {
+		return PUBLIC_KEY_RINGS.get(pubring);
+	}
+
 	public static File getDefaultPubringFile() {
 		String path = System.getenv("GNUPGHOME");
 
@@ -43,29 +84,18 @@ public class GnuPgUtils {
 		return new File(System.getProperty("user.home") + File.separator + ".gnupg", PUBRING_FILE_NAME);
 	}
 
+	/**
+	 * Look up an encryption key by hex ID or fingerprint.
+	 *
+	 * This builds a new index of the collection for every call. Use
+	 * getPublicKeyIndex(File) for repeated lookups.
+	 *
+	 * @see PublicKeyIndex#getPublicKey(String)
+	**/
 	public static PGPPublicKey getPublicKey(PGPPublicKeyRingCollection col, String id) {
 		if (id == null) return null;
 
-		long lid = Long.parseLong(id, 0x10);
-		long mask = (1L << (4 * id.length())) - 1;
-
-		for (Iterator<PGPPublicKeyRing> rit = col.getKeyRings(); rit.hasNext();) {
-			for (Iterator<PGPPublicKey> kit = rit.next().getPublicKeys(); kit.hasNext();) {
-				PGPPublicKey key = kit.next();
-
-				if ((key.getKeyID() & mask) == lid) {
-					if (!key.isEncryptionKey())
-						throw new IncompatibleKeyException("not an encryption key: " + id);
-
-					if (key.isRevoked())
-						throw new IncompatibleKeyException("key is revoked: " + id);
-
-					return key;
-				}
-			}
-		}
-
-		throw new KeyNotFoundException("key not found: " + id);
+		return new PublicKeyIndex(col).getPublicKey(id);
 	}
 
 	public static PGPSecretKeyRingCollection createSecretKeyRingCollection() throws IOException, PGPException {
@@ -82,6 +112,15 @@ public class GnuPgUtils {
 		}
 	}
 
+	/**
+	 * Return the secret key ring collection of the given file.
+	 *
+	 * @see #getPublicKeyRingCollection(File)
+	**/
+	public static PGPSecretKeyRingCollection getSecretKeyRingCollection(File secring) throws IOException, PGPException {
+		return SECRET_KEY_RINGS.get(secring);
+	}
+
 	public static File getDefaultSecringFile() {
 		String path = System.getenv("GNUPGHOME");
 
@@ -91,6 +130,113 @@ public class GnuPgUtils {
 		return new File(System.getProperty("user.home") + File.separator + ".gnupg", SECRING_FILE_NAME);
 	}
 
+	/**
+	 * Return the JCE name of an OpenPGP symmetric key algorithm.
+	 *
+	 * @throws PGPException if the algorithm is unknown.
+	**/
+	public static String getSymmetricCipherName(int algorithm) throws PGPException {
+		switch (algorithm) {
+		case SymmetricKeyAlgorithmTags.IDEA: return "IDEA";
+		case SymmetricKeyAlgorithmTags.TRIPLE_DES: return "DESEDE";
+		case SymmetricKeyAlgorithmTags.CAST5: return "CAST5";
+		case SymmetricKeyAlgorithmTags.BLOWFISH: return "Blowfish";
+		case SymmetricKeyAlgorithmTags.SAFER: return "SAFER";
+		case SymmetricKeyAlgorithmTags.DES: return "DES";
+		case SymmetricKeyAlgorithmTags.AES_128: return "AES";
+		case SymmetricKeyAlgorithmTags.AES_192: return "AES";
+		case SymmetricKeyAlgorithmTags.AES_256: return "AES";
+		case SymmetricKeyAlgorithmTags.TWOFISH: return "Twofish";
+		}
+
+		throw new PGPException("unknown symmetric algorithm: " + algorithm);
+	}
+
+	/**
+	 * Return the key length in bytes of an OpenPGP symmetric key
+	 * algorithm.
+	 *
+	 * @throws PGPException if the algorithm is unknown.
+	**/
+	public static int getSymmetricKeyLength(int algorithm) throws PGPException {
+		switch (algorithm) {
+		case SymmetricKeyAlgorithmTags.IDEA: return 16;
+		case SymmetricKeyAlgorithmTags.TRIPLE_DES: return 24;
+		case SymmetricKeyAlgorithmTags.CAST5: return 16;
+		case SymmetricKeyAlgorithmTags.BLOWFISH: return 16;
+		case SymmetricKeyAlgorithmTags.SAFER: return 16;
+		case SymmetricKeyAlgorithmTags.DES: return 8;
+		case SymmetricKeyAlgorithmTags.AES_128: return 16;
+		case SymmetricKeyAlgorithmTags.AES_192: return 24;
+		case SymmetricKeyAlgorithmTags.AES_256: return 32;
+		case SymmetricKeyAlgorithmTags.TWOFISH: return 32;
+		}
+
+		throw new PGPException("unknown symmetric algorithm: " + algorithm);
+	}
+
+	/**
+	 * Resolve the name of the JCE provider to use for symmetric ciphers.
+	 *
+	 * "jdk" selects the first installed provider other than Bouncy
+	 * Castle implementing AES/CFB/NoPadding, where the JVM can use the
+	 * AES instructions of the processor, or "BC" if there is none. Other
+	 * names are returned as is.
+	**/
+	public static String resolveCipherProvider(String name) {
+		if (!name.equals("jdk")) return name;
+
+		for (Provider provider : Security.getProviders()) {
+			if (provider.getName().equals("BC")) continue;
+
+			try {
+				Cipher.getInstance("AES/CFB/NoPadding", provider);
+
+				return provider.getName();
+			} catch (GeneralSecurityException ex) {
+				// Try the next one.
+			}
+		}
+
+		return "BC";
+	}
+
+	/**
+	 * Return provider if it implements the cipher transformation, else
+	 * "BC".
+	 *
+	 * JDK providers lack CAST5 and the OpenPGP CFB mode, for example.
+	**/
+	public static String getCipherProvider(String transformation, String provider) {
+		if (!provider.equals("BC")) {
+			try {
+				Cipher.getInstance(transformation, provider);
+
+				return provider;
+			} catch (GeneralSecurityException ex) {
+				// Fall back to Bouncy Castle.
+			}
+		}
+
+		return "BC";
+	}
+
+	/**
+	 * Return a cipher from the given provider, or from Bouncy Castle if
+	 * it does not implement the transformation.
+	**/
+	public static Cipher getCipher(String transformation, String provider) throws GeneralSecurityException {
+		if (!provider.equals("BC")) {
+			try {
+				return Cipher.getInstance(transformation, provider);
+			} catch (GeneralSecurityException ex) {
+				// Fall back to Bouncy Castle.
+			}
+		}
+
+		return Cipher.getInstance(transformation, "BC");
+	}
+
 	public static PGPPrivateKey getPrivateKey(PGPSecretKeyRingCollection col, long id, String passPhrase) throws KeyNotFoundException, PGPException, NoSuchProviderException {
 		PGPSecretKey key = col.getSecretKey(id);
 
@@ -99,4 +245,88 @@ public class GnuPgUtils {
 
 		return key.extractPrivateKey(passPhrase.toCharArray(), "BC");
 	}
+
+	/**
+	 * Look up a secret key by hex ID or fingerprint.
+	 *
+	 * @param id a key ID suffix or a fingerprint, optionally prefixed by "0x".
+	 * @throws KeyNotFoundException if there is no such key.
+	**/
+	public static PGPSecretKey getSecretKey(PGPSecretKeyRingCollection col, String id) throws PGPException {
+		String hex = id.toUpperCase();
+
+		if (hex.startsWith("0X"))
+			hex = hex.substring(2);
+
+		if (hex.length() > 0) {
+			for (Iterator<?> rings = col.getKeyRings(); rings.hasNext();) {
+				for (Iterator<?> keys = ((PGPSecretKeyRing) rings.next()).getSecretKeys(); keys.hasNext();) {
+					PGPSecretKey key = (PGPSecretKey) keys.next();
+
+					if (hex.length() > 16) {
+						if (hex.equals(PublicKeyIndex.toHex(key.getPublicKey().getFingerprint())))
+							return key;
+					} else if (String.format("%016X", key.getKeyID()).endsWith(hex)) {
+						return key;
+					}
+				}
+			}
+		}
+
+		throw new KeyNotFoundException("key not found: " + id);
+	}
+
+	/**
+	 * A thread-safe cache of parsed key ring files, keyed by path.
+	 *
+	 * Entries are validated against the size and modification time of
+	 * the file on every lookup. Note that a rewrite within the file
+	 * system's time resolution, keeping the size, goes unnoticed.
+	**/
+	private static abstract class KeyRingCache<T> {
+		private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<String, Entry<T>>();
+
+		public T get(File file) throws IOException, PGPException {
+			String path = file.getAbsolutePath();
+			Entry<T> entry = entries.get(path);
+
+			if (entry != null && entry.isCurrent(file))
+				return entry.value;
+
+			synchronized (this) {
+				entry = entries.get(path);
+
+				if (entry != null && entry.isCurrent(file))
+					return entry.value;
+
+				// Stat before parsing, so a concurrent change causes
+				// a reload on the next lookup.
+				long size = file.length();
+				long mtime = file.lastModified();
+
+				entry = new Entry<T>(load(file), size, mtime);
+				entries.put(path, entry);
+
+				return entry.value;
+			}
+		}
+
+		protected abstract T load(File file) throws IOException, PGPException;
+	}
+
+	private static class Entry<T> {
+		public final T value;
+		public final long size;
+		public final long mtime;
+
+		public Entry(T value, long size, long mtime) {
+			this.value = value;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		public boolean isCurrent(File file) {
+			return file.length() == size && file.lastModified() == mtime;
+		}
+	}
 }
@@ -46,13 +46,36 @@ public class MultipleClosingOutputStream extends FilterOutputStream {
 		this.streams.add(out);
 	}
 
+	/**
+	 * Write to the last stream.
+	 *
+	 * FilterOutputStream would write one byte at a time.
+	**/
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
 	/**
 	 * Close this stream.
 	 *
-	 * Closes all registered streams in reverse order.
+	 * Closes all registered streams in reverse order. If one fails, the
+	 * others are still closed, and the first failure is thrown.
 	**/
 	public void close() throws IOException {
-		for (int i = streams.size() - 1; i >= 0; --i)
-			streams.get(i).close();
+		IOException failure = null;
+		RuntimeException runtimeFailure = null;
+
+		for (int i = streams.size() - 1; i >= 0; --i) {
+			try {
+				streams.get(i).close();
+			} catch (IOException ex) {
+				if (failure == null && runtimeFailure == null) failure = ex;
+			} catch (RuntimeException ex) {
+				if (failure == null && runtimeFailure == null) runtimeFailure = ex;
+			}
+		}
+
+		if (failure != null) throw failure;
+		if (runtimeFailure != null) throw runtimeFailure;
 	}
 }
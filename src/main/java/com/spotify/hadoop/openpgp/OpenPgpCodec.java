@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.security.Security;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.io.compress.Compressor;
@@ -12,18 +14,107 @@ import org.apache.hadoop.io.compress.Decompressor;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class OpenPgpCodec extends AbstractCompressionCodec {
+	private volatile EncryptionProfile profile;
+
 	public OpenPgpCodec() {
 		super();
 		ensureBouncyCastleProvider();
 	}
 
+	/**
+	 * Create an output stream writing directly to out.
+	 *
+	 * No compressor is involved. Use createOutputStream(out, compressor)
+	 * to go through one.
+	 *
+	 * If spotify.hadoop.openpgp.blockSize is set, the output is in block
+	 * format, with a new message started after that many bytes of
+	 * plaintext. See createInputStream(in, start, end).
+	**/
+	public CompressionOutputStream createOutputStream(OutputStream out) throws IOException {
+		return new OpenPgpCompressionOutputStream(out, getEncryptionProfile(), getBlockSize());
+	}
+
+	/**
+	 * Create an input stream reading directly from in.
+	 *
+	 * No decompressor is involved, unless the configuration asks for the
+	 * stream thread of OpenPgpDecompressor. Use createInputStream(in,
+	 * decompressor) to always go through one.
+	**/
+	public CompressionInputStream createInputStream(InputStream in) throws IOException {
+		if (OpenPgpDecompressor.wantsStreamThread(getConf()))
+			return super.createInputStream(in);
+
+		return new OpenPgpCompressionInputStream(in, getConf());
+	}
+
+	/**
+	 * Create an output stream like createOutputStream(out), also writing
+	 * a BlockIndex of its messages.
+	 *
+	 * The index should be written to BlockIndex#getIndexPath() of the
+	 * file. It is only useful with spotify.hadoop.openpgp.blockSize set.
+	 *
+	 * @param out the file.
+	 * @param indexOut the index file.
+	**/
+	public CompressionOutputStream createIndexedOutputStream(OutputStream out, OutputStream indexOut) throws IOException {
+		return new OpenPgpCompressionOutputStream(out, getEncryptionProfile(), getBlockSize(), indexOut);
+	}
+
+	/**
+	 * Create a seekable plaintext stream over a file and its index.
+	 *
+	 * @param in the file.
+	 * @param indexIn the index file, read and closed at once.
+	**/
+	public OpenPgpSeekableInputStream createSeekableInputStream(FSDataInputStream in, InputStream indexIn) throws IOException {
+		return new OpenPgpSeekableInputStream(in, BlockIndex.read(indexIn), getConf());
+	}
+
+	/**
+	 * Create an input stream reading the messages of a file that start
+	 * within a split.
+	 *
+	 * In a block format file, each split gets the messages starting in
+	 * it, and since messages end at line breaks, each split gets whole
+	 * lines. A file not in block format is read entirely by the split
+	 * starting at zero, and the other splits get nothing.
+	 *
+	 * @param in the file.
+	 * @param start the position of the split.
+	 * @param end the position after the split.
+	**/
+	public CompressionInputStream createInputStream(FSDataInputStream in, long start, long end) throws IOException {
+		long pos = (start == 0 ? 0 : BlockMarker.find(in, start));
+		OpenPgpCompressionInputStream ret = new OpenPgpCompressionInputStream(in, getConf());
+
+		if (pos < 0) {
+			ret.setMessageLimit(0);
+		} else {
+			in.seek(pos);
+			ret.setMessageLimit(end - pos);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Return the plaintext size of the messages of block format output,
+	 * or zero for a single message.
+	**/
+	private long getBlockSize() {
+		return getConf().getLong("spotify.hadoop.openpgp.blockSize", 0);
+	}
+
 	public Class<? extends Compressor> getCompressorType() {
 		return OpenPgpCompressor.class;
 	}
 
 	public Compressor createCompressor() {
 		try {
-			return new OpenPgpCompressor(getConf());
+			return new OpenPgpCompressor(getConf(), getEncryptionProfile());
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
@@ -37,6 +128,30 @@ public class OpenPgpCodec extends AbstractCompressionCodec {
 		return new OpenPgpDecompressor(getConf());
 	}
 
+	/**
+	 * Set the configuration, forgetting the encryption profile resolved
+	 * from the previous one.
+	 *
+	 * The profile is only resolved when first needed for writing, so
+	 * hosts that only decompress do not need the keys of the writer.
+	**/
+	public void setConf(Configuration conf) {
+		super.setConf(conf);
+		profile = null;
+	}
+
+	/**
+	 * Return the encryption profile shared by all compressors of this codec.
+	 *
+	 * @throws KeyNotFoundException if the configured key could not be found.
+	**/
+	public EncryptionProfile getEncryptionProfile() {
+		if (profile == null)
+			profile = EncryptionProfile.fromConfiguration(getConf());
+
+		return profile;
+	}
+
 	public String getDefaultExtension() {
 		return ".gpg";
 	}
@@ -0,0 +1,374 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import static java.lang.Math.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+
+/**
+ * A compression input stream reading OpenPGP messages.
+ *
+ * Unlike DecompressorStream with an OpenPgpDecompressor, the messages are
+ * decoded on the caller's thread, straight from the underlying stream,
+ * without going through Decompressor#decompress() and its buffers.
+ *
+ * Concatenated messages are read one after the other. Messages the packet
+ * decoder does not support are handed to the Bouncy Castle stream chain,
+ * still on the caller's thread. The chain reads exactly one message, so
+ * the decoder starts over on the input after it.
+**/
+public class OpenPgpCompressionInputStream extends CompressionInputStream {
+	private final OpenPgpDecompressor.PrivateKeyFactory keyFactory;
+	private final String passPhrase;
+	private final boolean verifyIntegrity;
+	private final OpenPgpDecompressor.PublicKeyFactory signatureKeys;
+	private String cipherProvider = "BC";
+	private int decompressionThreads = 1;
+	private final OpenPgpPacketDecoder decoder;
+	private final byte[] buffer;
+	/// Number of valid bytes in buffer.
+	private int bufferEnd;
+	/// The underlying stream has reached its end.
+	private boolean eof;
+	/// Number of bytes read from the underlying stream.
+	private long inputPos;
+	/// Position of the current message in the underlying stream.
+	private long messageStart;
+	/// Messages starting at or after this position are not read.
+	private long messageLimit = Long.MAX_VALUE;
+	/// Input left unread by a fallback, to read before in, or null.
+	private byte[] pending;
+	private int pendingPos;
+	/// Set when the decoder gave up on the current message.
+	private InputStream fallback;
+	/// The input of the fallback, from the start of its message.
+	private FallbackInputStream fallbackInput;
+	private final byte[] oneByte = new byte[1];
+
+	/**
+	 * Construct a new stream, taking keys and pass phrases from the same
+	 * settings as OpenPgpDecompressor.
+	 *
+	 * @param in the stream to read messages from.
+	 * @param conf the configuration.
+	**/
+	public OpenPgpCompressionInputStream(InputStream in, Configuration conf) throws IOException {
+		this(
+			in,
+			new OpenPgpDecompressor.ConfiguredPrivateKeyFactory(conf),
+			OpenPgpDecompressor.getDecryptionPassPhrase(conf),
+			OpenPgpDecompressor.wantsIntegrityVerification(conf),
+			OpenPgpDecompressor.getSignatureKeyFactory(conf),
+			conf.getInt("io.file.buffer.size", 4096));
+
+		decoder.setParallelism(OpenPgpDecompressor.getDecryptionThreads(conf));
+		cipherProvider = EncryptionProfile.getCipherProvider(conf);
+		decoder.setCipherProvider(cipherProvider);
+		decompressionThreads = OpenPgpDecompressor.getDecompressionThreads(conf);
+	}
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param in the stream to read messages from.
+	 * @param keyFactory the source of private keys, or null.
+	 * @param passPhrase the pass phrase for symmetrically encrypted messages.
+	 * @param bufferSize the number of bytes to read from in at a time.
+	**/
+	OpenPgpCompressionInputStream(InputStream in, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, int bufferSize) throws IOException {
+		this(in, keyFactory, passPhrase, false, bufferSize);
+	}
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param in the stream to read messages from.
+	 * @param keyFactory the source of private keys, or null.
+	 * @param passPhrase the pass phrase for symmetrically encrypted messages.
+	 * @param verifyIntegrity whether to check the modification detection code.
+	 * @param bufferSize the number of bytes to read from in at a time.
+	**/
+	OpenPgpCompressionInputStream(InputStream in, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, boolean verifyIntegrity, int bufferSize) throws IOException {
+		this(in, keyFactory, passPhrase, verifyIntegrity, null, bufferSize);
+	}
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param in the stream to read messages from.
+	 * @param keyFactory the source of private keys, or null.
+	 * @param passPhrase the pass phrase for symmetrically encrypted messages.
+	 * @param verifyIntegrity whether to check the modification detection code.
+	 * @param signatureKeys the source of public keys to verify signatures
+	 *                      with, or null to not verify them.
+	 * @param bufferSize the number of bytes to read from in at a time.
+	**/
+	OpenPgpCompressionInputStream(InputStream in, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, boolean verifyIntegrity, OpenPgpDecompressor.PublicKeyFactory signatureKeys, int bufferSize) throws IOException {
+		super(in);
+		this.keyFactory = keyFactory;
+		this.passPhrase = passPhrase;
+		this.verifyIntegrity = verifyIntegrity;
+		this.signatureKeys = signatureKeys;
+		this.decoder = new OpenPgpPacketDecoder(keyFactory, passPhrase, verifyIntegrity, signatureKeys);
+		this.buffer = new byte[bufferSize];
+	}
+
+	public int read() throws IOException {
+		int n = read(oneByte, 0, 1);
+
+		if (n < 0) return n;
+
+		return oneByte[0] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+
+		if (messageStart >= messageLimit) return -1;
+
+		for (;;) {
+			int n;
+
+			if (fallback != null) {
+				n = fallback.read(b, off, len);
+
+				if (n >= 0) return n;
+
+				endFallback();
+
+				if (messageStart >= messageLimit || !fill()) return -1;
+
+				continue;
+			}
+
+			try {
+				n = decoder.decode(b, off, len);
+			} catch (UnsupportedStreamException ex) {
+				createFallback();
+
+				continue;
+			}
+
+			if (n > 0) return n;
+
+			if (n == 0) {
+				if (!fill())
+					decoder.finish();
+			} else {
+				int remaining = decoder.getRemaining();
+
+				messageStart = inputPos - remaining;
+
+				if (messageStart >= messageLimit) return -1;
+
+				if (remaining == 0) {
+					if (!fill()) return -1;
+
+					remaining = bufferEnd;
+				}
+
+				// Start over on the next concatenated message.
+				decoder.reset();
+				decoder.setInput(buffer, bufferEnd - remaining, remaining);
+			}
+		}
+	}
+
+	/**
+	 * Close the underlying stream, and stop decoding.
+	 *
+	 * Parallel decryption and decompression tasks still running are
+	 * cancelled, and the buffers of the fallback given back.
+	**/
+	public void close() throws IOException {
+		try {
+			if (fallback != null)
+				fallback.close();
+		} finally {
+			fallback = null;
+			fallbackInput = null;
+			decoder.reset();
+			super.close();
+		}
+	}
+
+	/**
+	 * Forget the current message, to read a new one from the current
+	 * position of the underlying stream.
+	**/
+	public void resetState() throws IOException {
+		decoder.reset();
+		bufferEnd = 0;
+		eof = false;
+		inputPos = 0;
+		messageStart = 0;
+		pending = null;
+		fallback = null;
+		fallbackInput = null;
+	}
+
+	/**
+	 * Stop before the first message starting limit or more bytes into
+	 * the underlying stream, counting from construction or the last
+	 * resetState().
+	**/
+	void setMessageLimit(long limit) {
+		messageLimit = limit;
+	}
+
+	/**
+	 * Read more input into the buffer, and give it to the decoder.
+	 *
+	 * @return false at the end of the underlying stream.
+	**/
+	private boolean fill() throws IOException {
+		if (eof) return false;
+
+		int n;
+
+		if (pending != null) {
+			n = min(buffer.length, pending.length - pendingPos);
+			System.arraycopy(pending, pendingPos, buffer, 0, n);
+			pendingPos += n;
+
+			if (pendingPos == pending.length)
+				pending = null;
+		} else {
+			n = in.read(buffer, 0, buffer.length);
+		}
+
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+
+		bufferEnd = n;
+		inputPos += n;
+		decoder.setInput(buffer, 0, n);
+
+		return true;
+	}
+
+	/**
+	 * Create a Bouncy Castle stream chain over everything the decoder has
+	 * consumed of the current message, and the rest of the input.
+	 *
+	 * What is already read from in is gathered into a single prefix, so
+	 * the stream chain is as deep after many fallbacks as after one.
+	**/
+	private void createFallback() throws IOException {
+		byte[] consumed = decoder.getConsumedInput();
+		int remaining = decoder.getRemaining();
+		int pendingLen = (pending != null ? pending.length - pendingPos : 0);
+		byte[] prefix = new byte[consumed.length + remaining + pendingLen];
+
+		System.arraycopy(consumed, 0, prefix, 0, consumed.length);
+		System.arraycopy(buffer, bufferEnd - remaining, prefix, consumed.length, remaining);
+
+		if (pending != null)
+			System.arraycopy(pending, pendingPos, prefix, consumed.length + remaining, pendingLen);
+
+		pending = null;
+		fallbackInput = new FallbackInputStream(prefix, in);
+		fallback = OpenPgpDecompressor.createInputStream(fallbackInput, verifyIntegrity, keyFactory, passPhrase, signatureKeys, cipherProvider, decompressionThreads);
+	}
+
+	/**
+	 * Go back to the decoder, for the message after the one read by the
+	 * fallback.
+	 *
+	 * The stream chain reads the encrypted data packet to its end, and
+	 * nothing after it, so the next message starts where it stopped: in
+	 * what it left of the prefix, or in in.
+	**/
+	private void endFallback() {
+		messageStart += fallbackInput.getCount();
+		inputPos = messageStart;
+
+		if (fallbackInput.getPrefixRemaining() > 0) {
+			pending = fallbackInput.getPrefix();
+			pendingPos = pending.length - fallbackInput.getPrefixRemaining();
+		}
+
+		bufferEnd = 0;
+		eof = false;
+		fallback = null;
+		fallbackInput = null;
+		decoder.reset();
+	}
+
+	/**
+	 * Reads a prefix, then the underlying stream, counting the bytes read.
+	**/
+	private static class FallbackInputStream extends FilterInputStream {
+		private final byte[] prefix;
+		private int prefixPos;
+		private long count;
+		private final byte[] oneByte = new byte[1];
+
+		public FallbackInputStream(byte[] prefix, InputStream in) {
+			super(in);
+			this.prefix = prefix;
+		}
+
+		public int read() throws IOException {
+			int n = read(oneByte, 0, 1);
+
+			return (n < 0 ? -1 : oneByte[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n;
+
+			if (prefixPos < prefix.length) {
+				n = min(len, prefix.length - prefixPos);
+				System.arraycopy(prefix, prefixPos, b, off, n);
+				prefixPos += n;
+			} else {
+				n = in.read(b, off, len);
+			}
+
+			if (n > 0) count += n;
+
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long ret;
+
+			if (prefixPos < prefix.length) {
+				ret = min(n, prefix.length - prefixPos);
+				prefixPos += ret;
+			} else {
+				ret = in.skip(n);
+			}
+
+			if (ret > 0) count += ret;
+
+			return ret;
+		}
+
+		public int available() throws IOException {
+			return (prefixPos < prefix.length ? prefix.length - prefixPos : in.available());
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public byte[] getPrefix() {
+			return prefix;
+		}
+
+		public int getPrefixRemaining() {
+			return prefix.length - prefixPos;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+
+/**
+ * A compression output stream writing OpenPGP messages.
+ *
+ * Unlike CompressorStream with an OpenPgpCompressor, the Bouncy Castle
+ * stream chain writes straight to the underlying stream, without going
+ * through Compressor#compress() and its buffers.
+ *
+ * Each message is started on the first write, and completed by finish().
+ * resetState() is not needed between messages.
+ *
+ * With a block size, the output is in block format: a new message is
+ * started at the first line break after each block size bytes of
+ * plaintext, and every message is preceded by a marker packet. See
+ * OpenPgpCodec#createInputStream(FSDataInputStream, long, long) for
+ * reading such files in splits.
+ *
+ * With an index stream, the plaintext and file offsets of each message
+ * are written to it as a BlockIndex.
+**/
+public class OpenPgpCompressionOutputStream extends CompressionOutputStream {
+	private final EncryptionProfile profile;
+	private final long blockSize;
+	private final CountingOutputStream target;
+	private final BlockIndex.Writer index;
+	private OutputStream stream;
+	private boolean finished;
+	/// Plaintext bytes written to the current message.
+	private long blockWritten;
+	/// Plaintext bytes written to all messages.
+	private long plaintextWritten;
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param out the stream to write messages to.
+	 * @param profile the encryption settings.
+	**/
+	public OpenPgpCompressionOutputStream(OutputStream out, EncryptionProfile profile) {
+		this(out, profile, 0);
+	}
+
+	/**
+	 * Construct a new stream writing the block format.
+	 *
+	 * @param out the stream to write messages to.
+	 * @param profile the encryption settings.
+	 * @param blockSize the minimum plaintext size of each message, or
+	 *                  zero to write a single message.
+	**/
+	public OpenPgpCompressionOutputStream(OutputStream out, EncryptionProfile profile, long blockSize) {
+		this(out, profile, blockSize, null);
+	}
+
+	/**
+	 * Construct a new stream writing the block format, and its index.
+	 *
+	 * If out is an FSDataOutputStream, file offsets in the index are
+	 * its positions, otherwise they count from the current position.
+	 *
+	 * @param out the stream to write messages to.
+	 * @param profile the encryption settings.
+	 * @param blockSize the minimum plaintext size of each message, or
+	 *                  zero to write a single message.
+	 * @param indexOut the stream to write the index to, closed with
+	 *                 this stream, or null.
+	**/
+	public OpenPgpCompressionOutputStream(OutputStream out, EncryptionProfile profile, long blockSize, OutputStream indexOut) {
+		super(out);
+		this.profile = profile;
+		this.blockSize = blockSize;
+		this.index = (indexOut != null ? new BlockIndex.Writer(indexOut) : null);
+
+		try {
+			this.target = new CountingOutputStream(out, out instanceof FSDataOutputStream ? ((FSDataOutputStream) out).getPos() : 0);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (blockSize > 0 && len > 0) {
+			// Look for a line break from the last byte of the block on.
+			int i = off + (int) Math.max(0, Math.min(len, blockSize - 1 - blockWritten));
+			int end = off + len;
+
+			while (i < end && b[i] != '\n')
+				++i;
+
+			if (i == end) break;
+
+			int n = i + 1 - off;
+
+			getStream().write(b, off, n);
+			plaintextWritten += n;
+			endMessage();
+			off += n;
+			len -= n;
+		}
+
+		if (len == 0) return;
+
+		getStream().write(b, off, len);
+		blockWritten += len;
+		plaintextWritten += len;
+	}
+
+	public void write(int b) throws IOException {
+		getStream().write(b);
+		++blockWritten;
+		++plaintextWritten;
+
+		if (blockSize > 0 && b == '\n' && blockWritten >= blockSize)
+			endMessage();
+	}
+
+	/**
+	 * Complete the current message, without closing the underlying stream.
+	 *
+	 * If nothing has been written since the last finish(), this writes an
+	 * empty message, once, like CompressorStream does.
+	**/
+	public void finish() throws IOException {
+		if (stream == null && finished) return;
+
+		getStream();
+		endMessage();
+		finished = true;
+	}
+
+	public void resetState() throws IOException {
+		finished = false;
+	}
+
+	/**
+	 * Flush the current message, and the underlying stream.
+	 *
+	 * With a pipelined profile, this waits for the other threads to
+	 * write what they have been given.
+	**/
+	public void flush() throws IOException {
+		if (stream != null)
+			stream.flush();
+
+		out.flush();
+	}
+
+	/**
+	 * Finish the current message, and close the underlying stream and
+	 * the index stream.
+	**/
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (index != null)
+				index.close();
+		}
+	}
+
+	private OutputStream getStream() throws IOException {
+		if (stream == null) {
+			if (index != null)
+				index.add(plaintextWritten, target.getCount());
+
+			if (blockSize > 0)
+				BlockMarker.write(target);
+
+			stream = OpenPgpCompressor.createOutputStream(target, profile);
+			finished = false;
+		}
+
+		return stream;
+	}
+
+	private void endMessage() throws IOException {
+		stream.close();
+		stream = null;
+		blockWritten = 0;
+	}
+
+	/**
+	 * Protects the underlying stream from being closed by the chain, and
+	 * counts the bytes written to it.
+	**/
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		public CountingOutputStream(OutputStream out, long count) {
+			super(out);
+			this.count = count;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -1,26 +1,31 @@
 package com.spotify.hadoop.openpgp;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import org.apache.hadoop.conf.Configuration;
 
 import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
 import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
 import org.bouncycastle.openpgp.PGPPublicKey;
-import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.bcpg.BCPGOutputStream;
 import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 
 /**
@@ -28,19 +33,12 @@ import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
  *
  * The word "compressor" is wrong. Think of it more like a transformer.
  *
- * Configuration entries used:
+ * The settings are taken from an EncryptionProfile, usually shared with
+ * all other compressors of the same codec. See EncryptionProfile for the
+ * configuration entries used.
  *
- * * spotify.hadoop.openpgp.buffersize
- * * spotify.hadoop.openpgp.compression
- * * spotify.hadoop.openpgp.encryption
- * * spotify.hadoop.openpgp.encrypt.keyId
- * * spotify.hadoop.openpgp.encrypt.passPhrase
- * * spotify.hadoop.openpgp.format
- * * spotify.hadoop.openpgp.integrity.sign
- * * spotify.hadoop.openpgp.pubring.path
- *
- * Note that the default settings has no encryption and no compression,
- * thus just creating an OpenPGP literal data packet.
+ * The compressor can be reused through CodecPool: reset() starts a new
+ * stream chain, keeping the resolved profile and the Deflater.
 **/
 public class OpenPgpCompressor extends StreamCompressor {
 	/// Compression algorithm name to value mapping.
@@ -49,68 +47,255 @@ public class OpenPgpCompressor extends StreamCompressor {
 	/// Encryption algorithm name to value mapping.
 	public static final Map<String, Integer> ENCRYPTION_ALGORITHMS = EnumUtils.getStaticFinalFieldMapping(SymmetricKeyAlgorithmTags.class);
 
+	/// Signature hash algorithm name to value mapping.
+	public static final Map<String, Integer> HASH_ALGORITHMS = EnumUtils.getStaticFinalFieldMapping(HashAlgorithmTags.class);
+
+	/// The compression algorithm of "auto": ZIP, if the data compresses.
+	public static final int AUTO_COMPRESSION = -1;
+
+	/// Streams with "auto" compression, by decision, in this process.
+	private static final AtomicLong autoCompressedCount = new AtomicLong();
+	private static final AtomicLong autoUncompressedCount = new AtomicLong();
+
+	private EncryptionProfile profile;
+	private boolean profileGiven;
+	private Deflater deflater;
+	private int deflaterAlgorithm;
+
 	/**
 	 * Construct a new compressor object.
 	 *
+	 * The encryption profile is resolved from the configuration.
+	 *
 	 * @param conf a valid configuration.
 	**/
 	public OpenPgpCompressor(Configuration conf) throws IOException {
+		this(conf, null);
+	}
+
+	/**
+	 * Construct a new compressor object with a resolved profile.
+	 *
+	 * @param conf a valid configuration.
+	 * @param profile the encryption profile, or null to resolve it from conf.
+	**/
+	public OpenPgpCompressor(Configuration conf, EncryptionProfile profile) throws IOException {
 		super(conf);
+		this.profile = profile;
+		this.profileGiven = profile != null;
+	}
+
+	/**
+	 * Prepare for a new stream.
+	 *
+	 * A profile resolved from configuration is resolved again only if
+	 * the configuration object changes.
+	**/
+	public void reinit(Configuration conf) {
+		if (!profileGiven && conf != getConf())
+			profile = null;
+
+		super.reinit(conf);
+	}
+
+	public void end() {
+		try {
+			super.end();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
 	}
 
 	/**
 	 * Overridden function to create the output stream chain.
 	 *
-	 * This version reads its settings from the configuration object.
-	 * See the class help for more information.
+	 * This version takes its settings from the encryption profile.
 	 *
 	 * Note that the OpenPGP literal data file name is set to the empty
 	 * string (which is what GnuPG does for stdin,) and the modification
 	 * time is set to 0 (indicating something like "unknown".)
 	**/
 	protected OutputStream createOutputStream(OutputStream out) throws IOException {
-		return createOutputStream(
-			out,
-			getKey(),
-			getEncryptionAlgorithm(),
-			wantsIntegrity(),
-			getCompressionAlgorithm(),
-			getFormat(),
-			"",
-			PGPLiteralDataGenerator.NOW,
-			getBufferSize());
+		EncryptionProfile profile = getProfile();
+
+		return createOutputStream(out, profile, getDeflater(profile.getCompressionAlgorithm()));
+	}
+
+	/**
+	 * Return the number of streams "auto" compression has compressed,
+	 * since this process started.
+	 *
+	 * The codec has no access to the counters of a task, so jobs that
+	 * want them there can copy this and getAutoUncompressedCount().
+	**/
+	public static long getAutoCompressedCount() {
+		return autoCompressedCount.get();
+	}
+
+	/**
+	 * Return the number of streams "auto" compression has left
+	 * uncompressed, since this process started.
+	**/
+	public static long getAutoUncompressedCount() {
+		return autoUncompressedCount.get();
+	}
+
+	/**
+	 * Return the encryption profile, resolving it from configuration
+	 * if none was given.
+	**/
+	protected EncryptionProfile getProfile() {
+		if (profile == null)
+			profile = EncryptionProfile.fromConfiguration(getConf());
+
+		return profile;
+	}
+
+	/**
+	 * Return a reset Deflater for the given compression algorithm, or
+	 * null if it does not use one.
+	**/
+	private Deflater getDeflater(int compression) {
+		if (compression == AUTO_COMPRESSION)
+			compression = PGPCompressedDataGenerator.ZIP;
+
+		if (compression != PGPCompressedDataGenerator.ZIP && compression != PGPCompressedDataGenerator.ZLIB)
+			return null;
+
+		if (deflater != null && deflaterAlgorithm != compression) {
+			deflater.end();
+			deflater = null;
+		}
+
+		if (deflater == null) {
+			deflater = createDeflater(compression);
+			deflaterAlgorithm = compression;
+		} else {
+			deflater.reset();
+		}
+
+		return deflater;
+	}
+
+	/**
+	 * Create the output stream chain for an encryption profile.
+	 *
+	 * The literal data file name is empty, and the modification time is
+	 * "now." The stages are pipelined if the profile says so, so out is
+	 * written from other threads, one at a time.
+	**/
+	static OutputStream createOutputStream(OutputStream out, EncryptionProfile profile) throws IOException {
+		return createOutputStream(out, profile, null, profile.isPipelined(), "", PGPLiteralDataGenerator.NOW);
 	}
 
 	/**
-	 * Create the ouput stream chain.
+	 * Create the output stream chain for an encryption profile, using
+	 * the given Deflater for ZIP and ZLIB compression.
+	 *
+	 * The stages are not pipelined: the output of a StreamCompressor may
+	 * only be written from within compress().
+	**/
+	static OutputStream createOutputStream(OutputStream out, EncryptionProfile profile, Deflater deflater) throws IOException {
+		return createOutputStream(out, profile, deflater, false, "", PGPLiteralDataGenerator.NOW);
+	}
+
+	/**
+	 * Create the output stream chain.
 	 *
 	 * This method is static to ensure it is purely functional.
 	 * Uses default protection, for unit tests.
 	 *
 	 * @param out the final stream to write to.
-	 * @param key the encryption key (PGPPublicKey) or pass phrase (String.)
-	 * @param encryption the encryption algorithm.
-	 * @param signed whether to sign the stream or not.
-	 * @param compression the compression algorithm.
-	 * @param format the format of the literal data.
+	 * @param profile the encryption, compression and signing settings.
+	 *                pipelined is used instead of its own setting.
+	 * @param deflater the Deflater to use for ZIP and ZLIB compression,
+	 *                 already reset, or null to use a new one. It is not
+	 *                 used when the profile compresses with several
+	 *                 threads, see ParallelDeflaterOutputStream and
+	 *                 ParallelBZip2OutputStream.
+	 * @param pipelined whether to run compression, encryption and the
+	 *                  modification detection code hash on threads of
+	 *                  their own. See PipelineOutputStream.
 	 * @param name the file name of the input file, usually the empty string.
 	 * @param mtime the last-modification-time to record, usually PGPLiteralDataGenerator.NOW.
-	 * @param bufferSize the size of the Bouncy Castle buffers.
+	 *
+	 * If the profile has a signing key, the literal data is wrapped in a
+	 * one-pass signature, hashed as it is written.
+	 *
+	 * The Bouncy Castle buffers are borrowed from the shared BufferPool,
+	 * and given back when the returned stream is closed.
 	 *
 	 * @see org.bouncycastle.openpgp.PGPCompressedData
 	 * @see org.bouncycastle.openpgp.PGPEncryptedData
 	 * @see org.bouncycastle.openpgp.PGPLiteralData
 	**/
-	static OutputStream createOutputStream(OutputStream out, Object key, int encryption, boolean signed, int compression, int format, String name, Date mtime, int bufferSize) throws IOException {
+	static OutputStream createOutputStream(OutputStream out, EncryptionProfile profile, Deflater deflater, boolean pipelined, String name, Date mtime) throws IOException {
+		Object key = profile.getKey();
+		int encryption = profile.getEncryptionAlgorithm();
+		int compression = profile.getCompressionAlgorithm();
+		int bufferSize = profile.getBufferSize();
+		PGPSignatureGenerator signer = null;
+
+		if (profile.getSigningKey() != null) {
+			try {
+				signer = new PGPSignatureGenerator(profile.getSigningKeyAlgorithm(), profile.getHashAlgorithm(), "BC");
+				signer.initSign(PGPSignature.BINARY_DOCUMENT, profile.getSigningKey());
+			} catch (Exception ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		final BufferPool pool = BufferPool.getInstance();
+		final List<byte[]> buffers = new ArrayList<byte[]>();
+		final List<PipelineOutputStream> pipes = new ArrayList<PipelineOutputStream>();
+
 		try {
 			List<OutputStream> streams = new ArrayList<OutputStream>();
 
 			streams.add(out);
 
-			if (encryption != PGPEncryptedDataGenerator.NULL || signed) {
+			if (encryption != PGPEncryptedDataGenerator.NULL && profile.getAeadAlgorithm() != 0) {
+				AeadEncryptedDataGenerator aedg = new AeadEncryptedDataGenerator(
+					encryption,
+					profile.getAeadAlgorithm(),
+					profile.getChunkSize(),
+					new SecureRandom());
+
+				if (key instanceof PGPPublicKey)
+					aedg.addMethod((PGPPublicKey) key);
+				else if (key instanceof String)
+					aedg.addMethod(((String) key).toCharArray());
+				else
+					throw new IOException("Encryption was requested but not key was specified");
+
+				buffers.add(pool.borrow(bufferSize));
+				out = aedg.open(out, buffers.get(buffers.size() - 1));
+				streams.add(out);
+			} else if (encryption != PGPEncryptedDataGenerator.NULL) {
+				CfbEncryptedDataGenerator cedg = new CfbEncryptedDataGenerator(
+					encryption,
+					profile.wantsIntegrity(),
+					profile.getCipherProvider(),
+					pipelined ? pipes : null,
+					new SecureRandom());
+
+				if (key instanceof PGPPublicKey)
+					cedg.addMethod((PGPPublicKey) key);
+				else if (key instanceof String)
+					cedg.addMethod(((String) key).toCharArray());
+				else
+					throw new IOException("Encryption was requested but not key was specified");
+
+				buffers.add(pool.borrow(bufferSize));
+				out = cedg.open(out, buffers.get(buffers.size() - 1));
+				streams.add(out);
+			} else if (profile.wantsIntegrity()) {
 				PGPEncryptedDataGenerator edg = new PGPEncryptedDataGenerator(
 					encryption,
-					signed,
+					profile.wantsIntegrity(),
 					new SecureRandom(),
 					"BC");
 
@@ -121,183 +306,384 @@ public class OpenPgpCompressor extends StreamCompressor {
 				else
 					throw new IOException("Encryption was requested but not key was specified");
 
-				out = edg.open(out, new byte[bufferSize]);
+				buffers.add(pool.borrow(bufferSize));
+				out = edg.open(out, buffers.get(buffers.size() - 1));
 				streams.add(out);
 			}
 
-			if (compression != PGPCompressedDataGenerator.UNCOMPRESSED) {
-				PGPCompressedDataGenerator cdg = new PGPCompressedDataGenerator(
-					compression);
+			if (pipelined && streams.size() > 1)
+				out = addPipe(out, streams, pipes);
+
+			OutputStream compressedOut;
 
-				out = cdg.open(out);
+			if (compression == AUTO_COMPRESSION)
+				compressedOut = new AutoCompressionOutputStream(out, deflater, profile.getCompressionThreads());
+			else
+				compressedOut = createCompressionStream(out, compression, deflater, profile.getCompressionThreads());
+
+			if (compressedOut != null) {
+				out = compressedOut;
 				streams.add(out);
 			}
 
+			if (pipelined && compression != PGPCompressedDataGenerator.UNCOMPRESSED)
+				out = addPipe(out, streams, pipes);
+
+			OutputStream dataOut = out;
+
+			if (signer != null)
+				signer.generateOnePassVersion(false).encode(dataOut);
+
 			PGPLiteralDataGenerator ldg = new PGPLiteralDataGenerator();
 
+			buffers.add(pool.borrow(bufferSize));
+
 			out = ldg.open(
 				out,
-				(char) format,
+				(char) profile.getFormat(),
 				name,
 				mtime,
-				new byte[bufferSize]);
+				buffers.get(buffers.size() - 1));
+
+			if (signer != null)
+				out = new SigningOutputStream(out, signer, dataOut);
 
 			streams.add(out);
 
-			return new MultipleClosingOutputStream(streams);
+			return new MultipleClosingOutputStream(streams) {
+				private boolean closed;
+
+				public void close() throws IOException {
+					if (closed) return;
+
+					try {
+						super.close();
+					} finally {
+						// Stops the threads if closing failed.
+						for (PipelineOutputStream p : pipes)
+							p.abort();
+					}
+
+					closed = true;
+
+					for (byte[] b : buffers)
+						pool.release(b);
+				}
+			};
 		} catch (Exception ex) {
+			for (PipelineOutputStream p : pipes)
+				p.abort();
+
+			for (byte[] b : buffers)
+				pool.release(b);
+
 			throw new RuntimeException(ex);
 		}
 	}
 
 	/**
-	 * Return the public key ring file, as specified in configuration.
+	 * Put a PipelineOutputStream in front of a stage, so it runs on
+	 * another thread.
 	 *
-	 * Falls back to the GnuPG default.
+	 * @return the pipe, to write to instead of out.
 	**/
-	private File getPubringFile() {
-		String path = getConf().get("spotify.hadoop.openpgp.pubring.path");
+	private static OutputStream addPipe(OutputStream out, List<OutputStream> streams, List<PipelineOutputStream> pipes) {
+		PipelineOutputStream pipe = new PipelineOutputStream(out);
 
-		if (path != null)
-			return new File(path);
+		streams.add(pipe);
+		pipes.add(pipe);
 
-		return GnuPgUtils.getDefaultPubringFile();
+		return pipe;
 	}
 
 	/**
-	 * Return the encryption key to be used.
-	 *
-	 * If a public key is found, that is returned, else a pass phrase
-	 * String is returned, or null.
+	 * Create the compressed data packet stage of a stream chain, or
+	 * return null for no compression.
 	 *
-	 * @return a PGPPublicKey, String, or null.
+	 * Closing the stage finishes the packet, without closing out.
 	**/
-	private Object getKey() {
-		PGPPublicKey pubKey = getPublicKey();
+	private static OutputStream createCompressionStream(OutputStream out, int compression, Deflater deflater, int compressionThreads) throws IOException {
+		boolean deflates = (compression == PGPCompressedDataGenerator.ZIP || compression == PGPCompressedDataGenerator.ZLIB);
+		boolean parallel = (compression == PGPCompressedDataGenerator.BZIP2 || deflates && ParallelDeflaterOutputStream.isAvailable());
 
-		if (pubKey != null) return pubKey;
+		if (parallel && compressionThreads > 1) {
+			return new ParallelCompressedDataOutputStream(
+				out,
+				compression,
+				compressionThreads);
+		} else if (deflates) {
+			return new CompressedDataOutputStream(
+				out,
+				compression,
+				deflater != null ? deflater : createDeflater(compression),
+				deflater == null);
+		} else if (compression != PGPCompressedDataGenerator.UNCOMPRESSED) {
+			PGPCompressedDataGenerator cdg = new PGPCompressedDataGenerator(
+				compression);
+
+			return cdg.open(out);
+		}
 
-		return getEncryptionPassPhrase();
+		return null;
 	}
 
-	/**
-	 * Return the encryption pass-phrase to use for symmetric-cipher only.
-	 *
-	 * This is like using "gpg -c".
-	 *
-	 * @return a string, or null.
-	**/
-	private String getEncryptionPassPhrase() {
-		return getConf().get("spotify.hadoop.openpgp.encrypt.passPhrase");
+	private static Deflater createDeflater(int compression) {
+		return new Deflater(Deflater.DEFAULT_COMPRESSION, compression == PGPCompressedDataGenerator.ZIP);
 	}
 
 	/**
-	 * Return the ID of the public key to use for signing and encrypting.
+	 * Hashes the literal data on its way to the literal data packet.
 	 *
-	 * @return a string, or null.
+	 * Closing finishes the literal data packet, and writes the signature
+	 * packet after it.
 	**/
-	private String getPublicKeyId() {
-		return getConf().get("spotify.hadoop.openpgp.encrypt.keyId");
-	}
+	private static class SigningOutputStream extends FilterOutputStream {
+		private final PGPSignatureGenerator signer;
+		private final OutputStream sigOut;
+		private boolean closed;
+
+		public SigningOutputStream(OutputStream out, PGPSignatureGenerator signer, OutputStream sigOut) {
+			super(out);
+			this.signer = signer;
+			this.sigOut = sigOut;
+		}
 
-	/**
-	 * Return the public key to use for signing and encrypting.
-	 *
-	 * @return an object, or null.
-	**/
-	private PGPPublicKey getPublicKey() {
-		return getPublicKey(getPublicKeyId());
-	}
+		public void write(int b) throws IOException {
+			try {
+				signer.update((byte) b);
+			} catch (SignatureException ex) {
+				throw new IOException(ex);
+			}
 
-	/**
-	 * Look up the given key ID in the default pubring file.
-	 *
-	 * @return an object, or null.
-	**/
-	private PGPPublicKey getPublicKey(String id) {
-		if (id == null) return null;
+			out.write(b);
+		}
 
-		try {
-			PGPPublicKeyRingCollection col = GnuPgUtils.createPublicKeyRingCollection(getPubringFile());
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				signer.update(b, off, len);
+			} catch (SignatureException ex) {
+				throw new IOException(ex);
+			}
 
-			return GnuPgUtils.getPublicKey(col, id);
-		} catch (Exception ex) {
-			throw new KeyNotFoundException(ex);
+			out.write(b, off, len);
+		}
+
+		public void close() throws IOException {
+			if (closed) return;
+
+			closed = true;
+			out.close();
+
+			try {
+				signer.generate().encode(sigOut);
+			} catch (PGPException ex) {
+				throw new IOException(ex);
+			} catch (SignatureException ex) {
+				throw new IOException(ex);
+			}
 		}
 	}
 
 	/**
-	 * Return an identifier of the format of the literal data.
+	 * Compresses a stream only if a sample of it compresses well.
 	 *
-	 * @return a constant from PGPLiteralData, defaulting to "binary."
+	 * The first SAMPLE_SIZE bytes are held back and deflated. If that does
+	 * not save a tenth, they and the rest are written as they are, else
+	 * into a ZIP compressed data packet. Shorter streams are sampled whole
+	 * when closed.
 	 *
-	 * @see PGPLiteralData#BINARY
-	 * @see PGPLiteralData#TEXT
-	 * @see PGPLiteralData#UTF8
+	 * Closing finishes the packet, if any, without closing the underlying
+	 * stream.
 	**/
-	private int getFormat() {
-		String format = getConf().get("spotify.hadoop.openpgp.format", "binary");
+	private static class AutoCompressionOutputStream extends FilterOutputStream {
+		/// The bytes sampled.
+		static final int SAMPLE_SIZE = 1 << 16;
+
+		private final Deflater deflater;
+		private final int threads;
+		private byte[] sample;
+		private int sampleLen;
+		/// Once decided, out or a compressed data packet.
+		private OutputStream target;
+		private boolean closed;
+		private final byte[] oneByte = new byte[1];
+
+		/**
+		 * @param deflater the Deflater to sample and compress with, already
+		 *                 reset, or null to use new ones.
+		 * @param threads the number of blocks to compress at a time.
+		**/
+		public AutoCompressionOutputStream(OutputStream out, Deflater deflater, int threads) {
+			super(out);
+			this.deflater = deflater;
+			this.threads = threads;
+			this.sample = BufferPool.getInstance().borrow(SAMPLE_SIZE);
+		}
 
-		if (format.equals("binary")) return PGPLiteralDataGenerator.BINARY;
-		else if (format.equals("text")) return PGPLiteralDataGenerator.TEXT;
-		else if (format.equals("utf-8")) return PGPLiteralDataGenerator.UTF8;
+		public void write(int b) throws IOException {
+			oneByte[0] = (byte) b;
+			write(oneByte, 0, 1);
+		}
 
-		throw new RuntimeException("unknown format");
-	}
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (target == null) {
+				int n = Math.min(len, SAMPLE_SIZE - sampleLen);
 
-	/**
-	 * Return an identifier of the compression algorithm to use.
-	 *
-	 * Defaults to "uncompressed."
-	**/
-	private int getCompressionAlgorithm() {
-		String algo = getConf().get("spotify.hadoop.openpgp.compression", "uncompressed");
+				System.arraycopy(b, off, sample, sampleLen, n);
+				sampleLen += n;
+				off += n;
+				len -= n;
 
-		return COMPRESSION_ALGORITHMS.get(algo.toUpperCase());
-	}
+				if (sampleLen < SAMPLE_SIZE) return;
 
-	/**
-	 * Return an identifier of the encryption algorithm to use.
-	 *
-	 * This defaults to "cast5" if a key could be found, else "null."
-	**/
-	private int getEncryptionAlgorithm() {
-		String algo = getConf().get("spotify.hadoop.openpgp.encryption");
+				decide();
+			}
 
-		if (algo == null) {
-			if (getPublicKey() != null || getEncryptionPassPhrase() != null)
-				algo = "cast5";
+			if (len > 0)
+				target.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if (target != null)
+				target.flush();
 			else
-				algo = "null";
+				out.flush();
 		}
 
-		return ENCRYPTION_ALGORITHMS.get(algo.toUpperCase());
+		public void close() throws IOException {
+			if (closed) return;
+
+			closed = true;
+
+			if (target == null)
+				decide();
+
+			if (target != out)
+				target.close();
+		}
+
+		private void decide() throws IOException {
+			if (isCompressible()) {
+				target = createCompressionStream(out, PGPCompressedDataGenerator.ZIP, deflater, threads);
+				autoCompressedCount.incrementAndGet();
+			} else {
+				target = out;
+				autoUncompressedCount.incrementAndGet();
+			}
+
+			target.write(sample, 0, sampleLen);
+			BufferPool.getInstance().release(sample);
+			sample = null;
+		}
+
+		/**
+		 * Return true if deflating the sample saves a tenth or more.
+		**/
+		private boolean isCompressible() {
+			Deflater d = (deflater != null ? deflater : createDeflater(PGPCompressedDataGenerator.ZIP));
+			byte[] buf = BufferPool.getInstance().borrow(1 << 12);
+			int limit = sampleLen - sampleLen / 10;
+			int n = 0;
+
+			try {
+				d.setInput(sample, 0, sampleLen);
+				d.finish();
+
+				while (!d.finished() && n <= limit)
+					n += d.deflate(buf);
+			} finally {
+				BufferPool.getInstance().release(buf);
+
+				if (d == deflater)
+					d.reset();
+				else
+					d.end();
+			}
+
+			return n <= limit;
+		}
 	}
 
 	/**
-	 * Return true if the stream should be signed.
+	 * A compressed data packet, compressed in parallel.
 	 *
-	 * Defaults to true iff a key could be found.
+	 * Closing finishes the packet without closing the underlying stream.
+	 *
+	 * @see ParallelDeflaterOutputStream
+	 * @see ParallelBZip2OutputStream
 	**/
-	private boolean wantsIntegrity() {
-		String b = getConf().get("spotify.hadoop.openpgp.integrity.sign");
+	private static class ParallelCompressedDataOutputStream extends FilterOutputStream {
+		private final BCPGOutputStream pkOut;
+		private boolean closed;
 
-		if (b == null) {
-			if (getPublicKey() != null || getEncryptionPassPhrase() != null)
-				b = "true";
-			else
-				b = "false";
+		public ParallelCompressedDataOutputStream(OutputStream out, int compression, int threads) throws IOException {
+			this(new BCPGOutputStream(out, PacketTags.COMPRESSED_DATA), compression, threads);
+		}
+
+		private ParallelCompressedDataOutputStream(BCPGOutputStream pkOut, int compression, int threads) throws IOException {
+			super(createStream(pkOut, compression, threads));
+			this.pkOut = pkOut;
+			pkOut.write(compression);
+		}
+
+		private static OutputStream createStream(OutputStream out, int compression, int threads) {
+			if (compression == PGPCompressedDataGenerator.BZIP2)
+				return new ParallelBZip2OutputStream(out, threads);
+
+			return new ParallelDeflaterOutputStream(
+				out,
+				Deflater.DEFAULT_COMPRESSION,
+				compression == PGPCompressedDataGenerator.ZLIB,
+				threads);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
 		}
 
-		return Boolean.valueOf(b);
+		public void close() throws IOException {
+			if (closed) return;
+
+			closed = true;
+			out.close();
+			pkOut.finish();
+			pkOut.flush();
+		}
 	}
 
 	/**
-	 * Return the default buffer size for Bouncy Castle buffers.
+	 * A compressed data packet, like PGPCompressedDataGenerator writes,
+	 * but with a Deflater supplied by the caller.
 	 *
-	 * Defaults to 16 kB.
+	 * Closing finishes the packet without closing the underlying stream.
 	**/
-	private int getBufferSize() {
-		return getConf().getInt("spotify.hadoop.openpgp.buffersize", 1 << 14);
+	private static class CompressedDataOutputStream extends DeflaterOutputStream {
+		private final BCPGOutputStream pkOut;
+		private final boolean ownsDeflater;
+		private boolean closed;
+
+		public CompressedDataOutputStream(OutputStream out, int compression, Deflater deflater, boolean ownsDeflater) throws IOException {
+			this(new BCPGOutputStream(out, PacketTags.COMPRESSED_DATA), compression, deflater, ownsDeflater);
+		}
+
+		private CompressedDataOutputStream(BCPGOutputStream pkOut, int compression, Deflater deflater, boolean ownsDeflater) throws IOException {
+			super(pkOut, deflater);
+			this.pkOut = pkOut;
+			this.ownsDeflater = ownsDeflater;
+			pkOut.write(compression);
+		}
+
+		public void close() throws IOException {
+			if (closed) return;
+
+			closed = true;
+			finish();
+			flush();
+			pkOut.finish();
+			pkOut.flush();
+
+			if (ownsDeflater)
+				def.end();
+		}
 	}
 }
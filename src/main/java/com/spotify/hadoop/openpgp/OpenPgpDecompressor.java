@@ -2,15 +2,21 @@ package com.spotify.hadoop.openpgp;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
+import java.security.SignatureException;
 
 import org.apache.hadoop.conf.Configuration;
 
@@ -20,11 +26,57 @@ import org.bouncycastle.openpgp.PGPEncryptedDataList;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPOnePassSignature;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPBEEncryptedData;
+import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
-import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
 
+/**
+ * A decompressor for OpenPGP messages.
+ *
+ * Configuration entries used:
+ *
+ * * spotify.hadoop.openpgp.decompressor.readAhead
+ * * spotify.hadoop.openpgp.decompressor.threaded
+ * * spotify.hadoop.openpgp.decompressor.threads
+ * * spotify.hadoop.openpgp.decrypt.keyPassPhrase
+ * * spotify.hadoop.openpgp.decrypt.threads
+ * * spotify.hadoop.openpgp.decrypt.passPhrase
+ * * spotify.hadoop.openpgp.encrypt.passPhrase
+ * * spotify.hadoop.openpgp.integrity.verify
+ * * spotify.hadoop.openpgp.privateKeyCache.ttl
+ * * spotify.hadoop.openpgp.provider
+ * * spotify.hadoop.openpgp.pubring.path
+ * * spotify.hadoop.openpgp.secring.path
+ * * spotify.hadoop.openpgp.signature.verify
+ *
+ * With signature verification, the literal data must be signed with a
+ * one-pass signature by a key in the public key ring. The signature is
+ * checked as the literal data ends, and like the modification detection
+ * code, the last OpenPgpPacketDecoder.HOLDBACK bytes are held back until
+ * it has been.
+ *
+ * AEAD encrypted messages can only be read by OpenPgpPacketDecoder, not
+ * with the stream thread, since Bouncy Castle does not know their packet
+ * versions. Their chunks are decrypted by up to decrypt.threads threads
+ * at the same time.
+ *
+ * The provider setting chooses the JCE provider of the data cipher, as
+ * in EncryptionProfile. Bouncy Castle still decrypts the session keys.
+ * With the stream thread, Bouncy Castle also takes the digest and, for
+ * pass phrases, the key derivation from the cipher provider, so JDK
+ * providers are only used by OpenPgpPacketDecoder.
+ *
+ * BZip2 compressed data is not read by OpenPgpPacketDecoder. Messages
+ * holding it are handed to the Bouncy Castle stream chain, on the stream
+ * thread, or on the caller's thread by OpenPgpCompressionInputStream.
+ * Either way, setting decompressor.threads above one decompresses that
+ * many of its blocks at the same time, see ParallelBZip2InputStream.
+**/
 public class OpenPgpDecompressor extends StreamDecompressor {
 	public OpenPgpDecompressor(Configuration conf) {
 		super(conf);
@@ -33,18 +85,136 @@ public class OpenPgpDecompressor extends StreamDecompressor {
 	protected InputStream createInputStream(InputStream in) throws IOException {
 		return createInputStream(
 			in,
-			wantsIntegrityVerification(),
-			new DefaultPrivateKeyFactory(),
-			getDecryptionPassPhrase());
+			wantsIntegrityVerification(getConf()),
+			new ConfiguredPrivateKeyFactory(getConf()),
+			getDecryptionPassPhrase(getConf()),
+			getSignatureKeyFactory(getConf()),
+			EncryptionProfile.getCipherProvider(getConf()),
+			getDecompressionThreads(getConf()));
+	}
+
+	/**
+	 * Return a decoder running on the caller's thread.
+	 *
+	 * The stream thread can be forced by setting
+	 * spotify.hadoop.openpgp.decompressor.threaded to true, or by enabling
+	 * read-ahead.
+	**/
+	protected StreamDecoder createDecoder() {
+		if (getConf() == null || wantsStreamThread(getConf()))
+			return null;
+
+		OpenPgpPacketDecoder ret = new OpenPgpPacketDecoder(
+			new ConfiguredPrivateKeyFactory(getConf()),
+			getDecryptionPassPhrase(getConf()),
+			wantsIntegrityVerification(getConf()),
+			getSignatureKeyFactory(getConf()));
+
+		ret.setParallelism(getDecryptionThreads(getConf()));
+		ret.setCipherProvider(EncryptionProfile.getCipherProvider(getConf()));
+
+		return ret;
+	}
+
+	/**
+	 * Return the number of plaintext bytes to decrypt ahead of the
+	 * caller, in a separate thread.
+	 *
+	 * Set by spotify.hadoop.openpgp.decompressor.readAhead. Defaults to
+	 * zero, which disables read-ahead.
+	**/
+	protected int getReadAheadSize() {
+		if (getConf() == null)
+			return 0;
+
+		return getReadAheadSize(getConf());
+	}
+
+	/**
+	 * Return true if the configuration asks for decryption in a separate
+	 * thread.
+	**/
+	static boolean wantsStreamThread(Configuration conf) {
+		return conf.getBoolean("spotify.hadoop.openpgp.decompressor.threaded", false) ||
+			getReadAheadSize(conf) > 0;
+	}
+
+	static String getDecryptionPassPhrase(Configuration conf) {
+		return conf.get("spotify.hadoop.openpgp.decrypt.passPhrase",
+			conf.get("spotify.hadoop.openpgp.encrypt.passPhrase", ""));
+	}
+
+	/**
+	 * Return the number of AEAD chunks to decrypt at the same time.
+	 *
+	 * Set by spotify.hadoop.openpgp.decrypt.threads. Defaults to one,
+	 * which decrypts on the caller's thread.
+	**/
+	static int getDecryptionThreads(Configuration conf) {
+		return conf.getInt("spotify.hadoop.openpgp.decrypt.threads", 1);
+	}
+
+	/**
+	 * Return the number of BZip2 blocks to decompress at the same time.
+	 *
+	 * Set by spotify.hadoop.openpgp.decompressor.threads. Defaults to
+	 * one, which decompresses with Bouncy Castle on the reading thread.
+	**/
+	static int getDecompressionThreads(Configuration conf) {
+		return conf.getInt("spotify.hadoop.openpgp.decompressor.threads", 1);
+	}
+
+	/**
+	 * Return the source of public keys for signature verification, or
+	 * null if spotify.hadoop.openpgp.signature.verify is not set.
+	**/
+	static PublicKeyFactory getSignatureKeyFactory(Configuration conf) {
+		if (!conf.getBoolean("spotify.hadoop.openpgp.signature.verify", false))
+			return null;
+
+		return new ConfiguredPublicKeyFactory(conf);
 	}
 
 	// Default protection, for unit tests.
 	static InputStream createInputStream(InputStream in, boolean verifySign, PrivateKeyFactory keyFactory, String passPhrase) throws IOException {
-		if (verifySign)
-			throw new UnsupportedOperationException("Message integrity validation not yet implemented.");
+		return createInputStream(in, verifySign, keyFactory, passPhrase, null);
+	}
 
+	/**
+	 * Create the Bouncy Castle stream chain.
+	 *
+	 * @param signatureKeys the source of public keys to verify one-pass
+	 *                      signatures with, or null to not verify them.
+	**/
+	static InputStream createInputStream(InputStream in, boolean verifySign, PrivateKeyFactory keyFactory, String passPhrase, PublicKeyFactory signatureKeys) throws IOException {
+		return createInputStream(in, verifySign, keyFactory, passPhrase, signatureKeys, "BC");
+	}
+
+	/**
+	 * Create the Bouncy Castle stream chain.
+	 *
+	 * @param signatureKeys the source of public keys to verify one-pass
+	 *                      signatures with, or null to not verify them.
+	 * @param cipherProvider the JCE provider of the data cipher of public
+	 *                       key encrypted data.
+	**/
+	static InputStream createInputStream(InputStream in, boolean verifySign, PrivateKeyFactory keyFactory, String passPhrase, PublicKeyFactory signatureKeys, String cipherProvider) throws IOException {
+		return createInputStream(in, verifySign, keyFactory, passPhrase, signatureKeys, cipherProvider, 1);
+	}
+
+	/**
+	 * Create the Bouncy Castle stream chain.
+	 *
+	 * @param signatureKeys the source of public keys to verify one-pass
+	 *                      signatures with, or null to not verify them.
+	 * @param cipherProvider the JCE provider of the data cipher of public
+	 *                       key encrypted data.
+	 * @param decompressionThreads the number of BZip2 blocks to
+	 *                             decompress at the same time.
+	**/
+	static InputStream createInputStream(InputStream in, boolean verifySign, PrivateKeyFactory keyFactory, String passPhrase, PublicKeyFactory signatureKeys, String cipherProvider, int decompressionThreads) throws IOException {
 		try {
-			InputStream ret = getFirstLiteralDataInputStream(in, verifySign, keyFactory, passPhrase);
+			InputStream ret = getFirstLiteralDataInputStream(in, verifySign, keyFactory, passPhrase, signatureKeys, cipherProvider, decompressionThreads);
 
 			if (ret == null) throw new IOException("No OpenPGP literal data found");
 
@@ -56,40 +226,48 @@ public class OpenPgpDecompressor extends StreamDecompressor {
 		}
 	}
 
-	private boolean wantsIntegrityVerification() {
-		return getConf().getBoolean("spotify.hadoop.openpgp.integrity.verify", false);
+	private static int getReadAheadSize(Configuration conf) {
+		return conf.getInt("spotify.hadoop.openpgp.decompressor.readAhead", 0);
+	}
+
+	static boolean wantsIntegrityVerification(Configuration conf) {
+		return conf.getBoolean("spotify.hadoop.openpgp.integrity.verify", false);
 	}
 
-	private File getSecringFile() {
-		String path = getConf().get("spotify.hadoop.openpgp.secring.path");
+	private static File getPubringFile(Configuration conf) {
+		String path = conf.get("spotify.hadoop.openpgp.pubring.path");
 
 		if (path != null)
 			return new File(path);
 
-		return GnuPgUtils.getDefaultSecringFile();
+		return GnuPgUtils.getDefaultPubringFile();
 	}
 
-	private String getSecretKeyPassPhrase() {
-		return getConf().get("spotify.hadoop.openpgp.decrypt.keyPassPhrase", "");
-	}
+	private static File getSecringFile(Configuration conf) {
+		String path = conf.get("spotify.hadoop.openpgp.secring.path");
 
-	private String getDecryptionPassPhrase() {
-		return getConf().get("spotify.hadoop.openpgp.decrypt.passPhrase",
-			getConf().get("spotify.hadoop.openpgp.encrypt.passPhrase", ""));
+		if (path != null)
+			return new File(path);
+
+		return GnuPgUtils.getDefaultSecringFile();
 	}
 
-	private PGPPrivateKey getPrivateKey(long id) {
-		try {
-			PGPSecretKeyRingCollection col = GnuPgUtils.createSecretKeyRingCollection(getSecringFile());
+	private static String getSecretKeyPassPhrase(Configuration conf) {
+		return conf.get("spotify.hadoop.openpgp.decrypt.keyPassPhrase", "");
+	}
 
-			return GnuPgUtils.getPrivateKey(col, id, getSecretKeyPassPhrase());
-		} catch (Exception ex) {
-			throw new KeyNotFoundException(ex);
-		}
+	/**
+	 * Return the maximum age of unlocked keys taken from the shared cache.
+	 *
+	 * Defaults to ten minutes. Zero disables caching.
+	**/
+	private static long getPrivateKeyCacheTtl(Configuration conf) {
+		return conf.getLong("spotify.hadoop.openpgp.privateKeyCache.ttl", 10 * 60 * 1000L);
 	}
 
-	private static InputStream getFirstLiteralDataInputStream(InputStream in, boolean verifySign, PrivateKeyFactory keyFactory, String passPhrase) throws IOException, PGPException, NoSuchProviderException {
+	private static InputStream getFirstLiteralDataInputStream(InputStream in, boolean verifySign, PrivateKeyFactory keyFactory, String passPhrase, PublicKeyFactory signatureKeys, String cipherProvider, int decompressionThreads) throws IOException, PGPException, NoSuchProviderException {
 		PGPObjectFactory pof = new PGPObjectFactory(in);
+		List<PGPOnePassSignature> signatures = new ArrayList<PGPOnePassSignature>();
 
 		Object po;
 
@@ -99,30 +277,67 @@ public class OpenPgpDecompressor extends StreamDecompressor {
 			if (po == null) {
 				break;
 			} else if (po instanceof PGPCompressedData) {
-				InputStream ret = getFirstLiteralDataInputStream(((PGPCompressedData) po).getDataStream(), verifySign, keyFactory, passPhrase);
+				PGPCompressedData pcd = (PGPCompressedData) po;
+				InputStream data;
+
+				if (pcd.getAlgorithm() == PGPCompressedData.BZIP2 && decompressionThreads > 1)
+					data = new ParallelBZip2InputStream(pcd.getInputStream(), decompressionThreads);
+				else
+					data = pcd.getDataStream();
+
+				InputStream ret = getFirstLiteralDataInputStream(data, verifySign, keyFactory, passPhrase, signatureKeys, cipherProvider, decompressionThreads);
 
 				if (ret != null) return ret;
+			} else if (po instanceof PGPOnePassSignatureList && signatureKeys != null) {
+				PGPOnePassSignatureList list = (PGPOnePassSignatureList) po;
+
+				for (int i = 0; i < list.size(); ++i)
+					signatures.add(initVerify(list.get(i), signatureKeys));
 			} else if (po instanceof PGPLiteralData) {
-				return ((PGPLiteralData) po).getDataStream();
+				// Inside encrypted data, verifySign is false.
+				if (verifySign)
+					throw new IOException("OpenPGP message is not integrity protected");
+
+				InputStream ret = ((PGPLiteralData) po).getDataStream();
+
+				if (signatureKeys == null)
+					return ret;
+
+				if (signatures.isEmpty())
+					throw new IOException("OpenPGP message is not signed");
+
+				return new SignatureCheckingInputStream(ret, signatures, pof);
 			} else if (po instanceof PGPEncryptedDataList) {
 				for (Iterator<PGPEncryptedData> it = ((PGPEncryptedDataList) po).getEncryptedDataObjects(); it.hasNext();) {
 					PGPEncryptedData ped = it.next();
 
+					if (verifySign && !ped.isIntegrityProtected())
+						throw new IOException("OpenPGP message is not integrity protected");
+
 					if (ped instanceof PGPPublicKeyEncryptedData) {
 						PGPPublicKeyEncryptedData pked = (PGPPublicKeyEncryptedData) ped;
 
-						InputStream ret = getFirstLiteralDataInputStream(pked.getDataStream(keyFactory.getPrivateKey(pked.getKeyID()), "BC"), verifySign, keyFactory, passPhrase);
+						PGPPrivateKey key = keyFactory.getPrivateKey(pked.getKeyID());
+						String provider = getCipherProvider(pked, key, cipherProvider);
+						InputStream clear = pked.getDataStream(key, "BC", provider);
+						InputStream ret = getFirstLiteralDataInputStream(clear, false, keyFactory, passPhrase, signatureKeys, cipherProvider, decompressionThreads);
 
-						if (ret != null) return ret;
-						// TODO: To verify integrity,
-						//       we need to keep the
-						//       pked reference.
+						if (ret != null) {
+							ret = new DrainingInputStream(ret, clear);
+
+							return verifySign ? new IntegrityCheckingInputStream(ret, ped) : ret;
+						}
 					} else if (ped instanceof PGPPBEEncryptedData) {
 						PGPPBEEncryptedData pped = (PGPPBEEncryptedData) ped;
 
-						InputStream ret = getFirstLiteralDataInputStream(pped.getDataStream(passPhrase.toCharArray(), "BC"), verifySign, keyFactory, passPhrase);
+						InputStream clear = pped.getDataStream(passPhrase.toCharArray(), "BC");
+						InputStream ret = getFirstLiteralDataInputStream(clear, false, keyFactory, passPhrase, signatureKeys, cipherProvider, decompressionThreads);
+
+						if (ret != null) {
+							ret = new DrainingInputStream(ret, clear);
 
-						if (ret != null) return ret;
+							return verifySign ? new IntegrityCheckingInputStream(ret, ped) : ret;
+						}
 					} else {
 						throw new IOException("Unknown encryption packet");
 					}
@@ -137,13 +352,295 @@ public class OpenPgpDecompressor extends StreamDecompressor {
 		return null;
 	}
 
+	/**
+	 * Return the provider to give Bouncy Castle for the data cipher of
+	 * public key encrypted data, falling back to "BC" if cipherProvider
+	 * lacks it.
+	 *
+	 * Bouncy Castle also takes the SHA-1 digest of the modification
+	 * detection code from that provider, which JDK cipher providers lack.
+	**/
+	private static String getCipherProvider(PGPPublicKeyEncryptedData pked, PGPPrivateKey key, String cipherProvider) throws PGPException, NoSuchProviderException {
+		if (cipherProvider.equals("BC")) return cipherProvider;
+
+		if (pked.isIntegrityProtected()) {
+			try {
+				MessageDigest.getInstance("SHA1", cipherProvider);
+			} catch (NoSuchAlgorithmException ex) {
+				return "BC";
+			}
+		}
+
+		// This decrypts the session key an extra time.
+		String name = GnuPgUtils.getSymmetricCipherName(pked.getSymmetricAlgorithm(key, "BC"));
+
+		return GnuPgUtils.getCipherProvider(name + (pked.isIntegrityProtected() ? "/CFB/NoPadding" : "/OpenPGPCFB/NoPadding"), cipherProvider);
+	}
+
+	/**
+	 * Prepare a one-pass signature for hashing, with the public key of
+	 * its signer.
+	 *
+	 * @throws KeyNotFoundException if the key is not in the key ring.
+	**/
+	static PGPOnePassSignature initVerify(PGPOnePassSignature ops, PublicKeyFactory signatureKeys) throws PGPException, NoSuchProviderException {
+		PGPPublicKey key = signatureKeys.getPublicKey(ops.getKeyID());
+
+		if (key == null)
+			throw new KeyNotFoundException("no public key for signature: " + Long.toHexString(ops.getKeyID()).toUpperCase());
+
+		ops.initVerify(key, "BC");
+
+		return ops;
+	}
+
+	/**
+	 * Check a signature against its one-pass signature, which has hashed
+	 * the literal data.
+	**/
+	static void verify(PGPOnePassSignature ops, PGPSignature sig) throws IOException {
+		if (sig.getKeyID() != ops.getKeyID())
+			throw new IOException("OpenPGP signature does not match its one-pass signature");
+
+		try {
+			if (!ops.verify(sig))
+				throw new IOException("OpenPGP signature verification failed");
+		} catch (PGPException ex) {
+			throw new IOException(ex);
+		} catch (SignatureException ex) {
+			throw new IOException(ex);
+		}
+	}
+
 	interface PrivateKeyFactory {
 		public PGPPrivateKey getPrivateKey(long id);
 	}
 
-	private class DefaultPrivateKeyFactory implements PrivateKeyFactory {
+	interface PublicKeyFactory {
+		public PGPPublicKey getPublicKey(long id);
+	}
+
+	/**
+	 * Looks up keys in the configured secret key ring, through the shared
+	 * cache of unlocked keys.
+	**/
+	static class ConfiguredPrivateKeyFactory implements PrivateKeyFactory {
+		private final Configuration conf;
+
+		public ConfiguredPrivateKeyFactory(Configuration conf) {
+			this.conf = conf;
+		}
+
 		public PGPPrivateKey getPrivateKey(long id) {
-			return OpenPgpDecompressor.this.getPrivateKey(id);
+			try {
+				return PrivateKeyCache.getInstance().getPrivateKey(
+					getSecringFile(conf),
+					id,
+					getSecretKeyPassPhrase(conf),
+					getPrivateKeyCacheTtl(conf));
+			} catch (Exception ex) {
+				throw new KeyNotFoundException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Looks up signature keys, including subkeys, in the configured
+	 * public key ring. The key ring is shared and cached by GnuPgUtils.
+	**/
+	static class ConfiguredPublicKeyFactory implements PublicKeyFactory {
+		private final Configuration conf;
+
+		public ConfiguredPublicKeyFactory(Configuration conf) {
+			this.conf = conf;
+		}
+
+		public PGPPublicKey getPublicKey(long id) {
+			try {
+				return GnuPgUtils.getPublicKeyRingCollection(getPubringFile(conf)).getPublicKey(id);
+			} catch (Exception ex) {
+				throw new KeyNotFoundException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rest of the decrypted data when the literal data in it
+	 * ends, so the encrypted data packet is read to its end, and a message
+	 * concatenated after it can be read from the same input.
+	**/
+	private static class DrainingInputStream extends FilterInputStream {
+		private final InputStream clear;
+		private boolean drained;
+
+		public DrainingInputStream(InputStream in, InputStream clear) {
+			super(in);
+			this.clear = clear;
+		}
+
+		public int read() throws IOException {
+			int ret = in.read();
+
+			if (ret < 0) drain();
+
+			return ret;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+
+			if (n < 0) drain();
+
+			return n;
+		}
+
+		private void drain() throws IOException {
+			if (drained) return;
+
+			byte[] b = new byte[1 << 12];
+
+			while (clear.read(b, 0, b.length) >= 0) {
+				// Skip the modification detection code, or signatures.
+			}
+
+			drained = true;
+		}
+	}
+
+	/**
+	 * Holds back the last OpenPgpPacketDecoder.HOLDBACK bytes of a stream
+	 * until verify() has passed at its end.
+	**/
+	private static abstract class VerifyingInputStream extends InputStream {
+		protected final InputStream in;
+		private final byte[] held = new byte[2 * OpenPgpPacketDecoder.HOLDBACK];
+		private int heldOff;
+		private int heldLen;
+		private boolean verified;
+		private final byte[] oneByte = new byte[1];
+
+		public VerifyingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			int n = read(oneByte, 0, 1);
+
+			if (n < 0) return n;
+
+			return oneByte[0] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+
+			for (;;) {
+				if (heldLen > OpenPgpPacketDecoder.HOLDBACK || (verified && heldLen > 0)) {
+					int n = Math.min(len, verified ? heldLen : heldLen - OpenPgpPacketDecoder.HOLDBACK);
+
+					System.arraycopy(held, heldOff, b, off, n);
+					heldOff += n;
+					heldLen -= n;
+
+					return n;
+				}
+
+				if (verified) return -1;
+
+				if (heldOff + heldLen == held.length) {
+					System.arraycopy(held, heldOff, held, 0, heldLen);
+					heldOff = 0;
+				}
+
+				int n = in.read(held, heldOff + heldLen, held.length - heldOff - heldLen);
+
+				if (n < 0) {
+					verify();
+					verified = true;
+				} else {
+					update(held, heldOff + heldLen, n);
+					heldLen += n;
+				}
+			}
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Called with every byte read from in, in order.
+		**/
+		protected void update(byte[] b, int off, int len) throws IOException {
+		}
+
+		/**
+		 * Called at the end of in.
+		 *
+		 * @throws IOException if verification fails.
+		**/
+		protected abstract void verify() throws IOException;
+	}
+
+	/**
+	 * Checks the modification detection code of encrypted data when the
+	 * literal data ends.
+	**/
+	private static class IntegrityCheckingInputStream extends VerifyingInputStream {
+		private final PGPEncryptedData data;
+
+		public IntegrityCheckingInputStream(InputStream in, PGPEncryptedData data) {
+			super(in);
+			this.data = data;
+		}
+
+		protected void verify() throws IOException {
+			try {
+				if (!data.verify())
+					throw new IOException("modification detection code check failed");
+			} catch (PGPException ex) {
+				throw new IOException(ex);
+			}
+		}
+	}
+	/**
+	 * Hashes literal data for its one-pass signatures, and checks the
+	 * signature packets following it when it ends.
+	**/
+	private static class SignatureCheckingInputStream extends VerifyingInputStream {
+		private final List<PGPOnePassSignature> signatures;
+		private final PGPObjectFactory pof;
+
+		public SignatureCheckingInputStream(InputStream in, List<PGPOnePassSignature> signatures, PGPObjectFactory pof) {
+			super(in);
+			this.signatures = signatures;
+			this.pof = pof;
+		}
+
+		protected void update(byte[] b, int off, int len) throws IOException {
+			try {
+				for (PGPOnePassSignature ops : signatures)
+					ops.update(b, off, len);
+			} catch (SignatureException ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		protected void verify() throws IOException {
+			Object po = pof.nextObject();
+
+			if (!(po instanceof PGPSignatureList))
+				throw new IOException("OpenPGP signature packet missing");
+
+			PGPSignatureList list = (PGPSignatureList) po;
+
+			if (list.size() != signatures.size())
+				throw new IOException("OpenPGP signature packet missing");
+
+			// Signature packets are in the reverse order of their
+			// one-pass signature packets.
+			for (int i = 0; i < list.size(); ++i)
+				OpenPgpDecompressor.verify(signatures.get(signatures.size() - 1 - i), list.get(i));
 		}
 	}
 }
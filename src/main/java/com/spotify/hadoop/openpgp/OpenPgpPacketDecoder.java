@@ -0,0 +1,1827 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchProviderException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import static java.lang.Math.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.Packet;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.bcpg.SymmetricKeyEncSessionPacket;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.jce.interfaces.ElGamalKey;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPOnePassSignature;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+
+/**
+ * A push-based OpenPGP message decoder.
+ *
+ * This is the thread-free counterpart of the stream chain built by
+ * OpenPgpDecompressor#createInputStream(). The packet structure is parsed
+ * as input arrives, and every stage (packet framing, decryption,
+ * decompression) keeps its own state, so decode() can stop anywhere and
+ * resume after the next setInput().
+ *
+ * Internally, the stages are non-blocking sources: a read returns zero
+ * instead of blocking when the input runs dry, and only if its own
+ * source did so.
+ *
+ * Public key and pass phrase encrypted data (with or without modification
+ * detection code, or AEAD encrypted as in RFC 9580,) uncompressed, ZIP and
+ * ZLIB compressed data and literal data are supported. Like
+ * createInputStream(), only the first literal data packet is returned. Other compression algorithms cause an
+ * UnsupportedStreamException before any plaintext is returned.
+ *
+ * With integrity verification, the modification detection code of the
+ * encrypted data is checked at its end, and the last HOLDBACK bytes of
+ * plaintext are held back until it has been. Messages without one fail.
+ *
+ * With signature verification, the literal data is hashed for every
+ * one-pass signature packet preceding it, and the signature packets
+ * following it are checked. Plaintext is held back the same way, and
+ * messages without a one-pass signature fail.
+ *
+ * The chunks of AEAD encrypted data are authenticated one by one. They,
+ * and segments of CFB encrypted data, can be decrypted by a shared pool
+ * of threads, see setParallelism().
+ *
+ * A message ends after its top-level data packet, and any signature
+ * packets announced by one-pass signature packets. Bytes after that are
+ * left in getRemaining(), so concatenated messages can be decoded by
+ * calling reset() and supplying the remaining input again.
+**/
+public class OpenPgpPacketDecoder implements StreamDecoder {
+	private static final int BUFFER_SIZE = 1 << 13;
+
+	/// Plaintext bytes held back until integrity has been verified.
+	static final int HOLDBACK = BUFFER_SIZE;
+
+	/// Results of Level#step().
+	private static final int STARVED = 0;
+	private static final int PROGRESS = 1;
+	private static final int END = 2;
+
+	/// What to do with the body of the current packet in a level.
+	private static final int SKIP = 0;
+	private static final int SESSION_KEY = 1;
+	private static final int SYMMETRIC = 2;
+	private static final int SYMMETRIC_INTEGRITY = 3;
+	private static final int COMPRESSED = 4;
+	private static final int LITERAL = 5;
+	private static final int DESCENDED = 6;
+	private static final int ONE_PASS = 7;
+	private static final int SIGNATURE = 8;
+
+	private final OpenPgpDecompressor.PrivateKeyFactory keyFactory;
+	private final String passPhrase;
+	private final boolean verifyIntegrity;
+	private final OpenPgpDecompressor.PublicKeyFactory signatureKeys;
+	private int parallelism = 1;
+	private String cipherProvider = "BC";
+
+	private InputSource input;
+	private List<Level> levels = new ArrayList<Level>();
+	private Source literal;
+	private boolean literalDone;
+	private boolean finished;
+
+	/// One-pass signatures hashing the literal data, innermost last.
+	private List<PGPOnePassSignature> onePassSignatures = new ArrayList<PGPOnePassSignature>();
+	/// At least one signature has been verified.
+	private boolean signed;
+
+	/// Plaintext not yet returned, when verifying integrity or signatures.
+	private byte[] held;
+	private int heldOff;
+	private int heldLen;
+
+	/**
+	 * Construct a new decoder.
+	 *
+	 * @param keyFactory the source of private keys, or null.
+	 * @param passPhrase the pass phrase for symmetric encryption, or null.
+	**/
+	OpenPgpPacketDecoder(OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase) {
+		this(keyFactory, passPhrase, false);
+	}
+
+	/**
+	 * Construct a new decoder.
+	 *
+	 * @param keyFactory the source of private keys, or null.
+	 * @param passPhrase the pass phrase for symmetric encryption, or null.
+	 * @param verifyIntegrity whether to check the modification detection code.
+	**/
+	OpenPgpPacketDecoder(OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, boolean verifyIntegrity) {
+		this(keyFactory, passPhrase, verifyIntegrity, null);
+	}
+
+	/**
+	 * Construct a new decoder.
+	 *
+	 * @param keyFactory the source of private keys, or null.
+	 * @param passPhrase the pass phrase for symmetric encryption, or null.
+	 * @param verifyIntegrity whether to check the modification detection code.
+	 * @param signatureKeys the source of public keys to verify signatures
+	 *                      with, or null to not verify them.
+	**/
+	OpenPgpPacketDecoder(OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, boolean verifyIntegrity, OpenPgpDecompressor.PublicKeyFactory signatureKeys) {
+		this.keyFactory = keyFactory;
+		this.passPhrase = passPhrase;
+		this.verifyIntegrity = verifyIntegrity;
+		this.signatureKeys = signatureKeys;
+
+		if (verifyIntegrity || signatureKeys != null)
+			held = new byte[HOLDBACK + BUFFER_SIZE];
+
+		reset();
+	}
+
+	/**
+	 * Set the number of AEAD chunks, or CFB segments, decrypted at the
+	 * same time.
+	 *
+	 * With more than one, they are decrypted by a shared pool of threads,
+	 * the ForkJoinPool common pool if the runtime has one. Defaults to
+	 * one, on the caller's thread.
+	**/
+	void setParallelism(int parallelism) {
+		this.parallelism = max(1, parallelism);
+	}
+
+	/**
+	 * Set the JCE provider of the data ciphers in CFB mode.
+	 *
+	 * Transformations it does not implement come from Bouncy Castle.
+	 * Defaults to "BC".
+	**/
+	void setCipherProvider(String cipherProvider) {
+		this.cipherProvider = cipherProvider;
+	}
+
+	public void setInput(byte[] b, int off, int len) {
+		input.setInput(b, off, len);
+	}
+
+	public int getRemaining() {
+		return input.getRemaining();
+	}
+
+	public void finish() {
+		input.finish();
+	}
+
+	public int decode(byte[] b, int off, int len) throws IOException {
+		if (finished) return -1;
+
+		if (len == 0) return 0;
+
+		for (;;) {
+			if (held != null) {
+				Level top = levels.get(0);
+				boolean verified = top.dataDone && top.pendingSignatures == 0;
+
+				if (verified && signatureKeys != null) {
+					if (!signed)
+						throw new IOException("OpenPGP message is not signed");
+
+					if (!onePassSignatures.isEmpty())
+						throw new IOException("OpenPGP signature packet missing");
+				}
+
+				if (heldLen > HOLDBACK || (verified && heldLen > 0)) {
+					int n = min(len, verified ? heldLen : heldLen - HOLDBACK);
+
+					System.arraycopy(held, heldOff, b, off, n);
+					heldOff += n;
+					heldLen -= n;
+
+					return n;
+				}
+
+				if (literal != null) {
+					if (heldOff + heldLen == held.length) {
+						System.arraycopy(held, heldOff, held, 0, heldLen);
+						heldOff = 0;
+					}
+
+					int n = literal.read(held, heldOff + heldLen, held.length - heldOff - heldLen);
+
+					if (n == 0) return 0;
+
+					if (n > 0) {
+						updateSignatures(held, heldOff + heldLen, n);
+						heldLen += n;
+						continue;
+					}
+
+					literal = null;
+					literalDone = true;
+				}
+			} else if (literal != null) {
+				int n = literal.read(b, off, len);
+
+				if (n >= 0) return n;
+
+				literal = null;
+				literalDone = true;
+			}
+
+			int r = levels.get(levels.size() - 1).step();
+
+			if (r == STARVED) return 0;
+
+			if (r == END) {
+				levels.remove(levels.size() - 1);
+
+				if (levels.isEmpty()) {
+					finished = true;
+
+					return -1;
+				}
+			}
+		}
+	}
+
+	public void reset() {
+		for (Level level : levels)
+			level.source.cancel();
+
+		input = new InputSource();
+		levels.clear();
+		levels.add(new Level(input, true));
+		literal = null;
+		literalDone = false;
+		finished = false;
+		onePassSignatures.clear();
+		signed = false;
+		heldOff = 0;
+		heldLen = 0;
+	}
+
+	public byte[] getConsumedInput() {
+		return input.getConsumed();
+	}
+
+	/**
+	 * Start hashing for a one-pass signature packet.
+	**/
+	private void startSignature(byte[] encoded) throws IOException {
+		Object po = new PGPObjectFactory(encoded).nextObject();
+
+		if (!(po instanceof PGPOnePassSignatureList))
+			throw new IOException("bad one-pass signature packet");
+
+		try {
+			onePassSignatures.add(OpenPgpDecompressor.initVerify(((PGPOnePassSignatureList) po).get(0), signatureKeys));
+		} catch (PGPException ex) {
+			throw new IOException(ex);
+		} catch (NoSuchProviderException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Check a signature packet against the innermost pending one-pass
+	 * signature.
+	**/
+	private void checkSignature(byte[] encoded) throws IOException {
+		Object po = new PGPObjectFactory(encoded).nextObject();
+
+		if (!(po instanceof PGPSignatureList))
+			throw new IOException("bad signature packet");
+
+		OpenPgpDecompressor.verify(onePassSignatures.remove(onePassSignatures.size() - 1), ((PGPSignatureList) po).get(0));
+		signed = true;
+	}
+
+	private void updateSignatures(byte[] b, int off, int len) throws IOException {
+		try {
+			for (PGPOnePassSignature ops : onePassSignatures)
+				ops.update(b, off, len);
+		} catch (SignatureException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Choose a session key from the session key packets preceding
+	 * encrypted data.
+	 *
+	 * Public key packets for keys we don't have are skipped.
+	**/
+	private SessionKey getSessionKey(List<byte[]> packets) throws IOException {
+		for (byte[] encoded : packets) {
+			try {
+				// Version 6 packets, for AEAD, are unknown to Bouncy Castle.
+				if (encoded.length > 6 && encoded[6] == 6) {
+					SessionKey ret = decryptVersion6SessionKey(encoded);
+
+					if (ret != null) return ret;
+
+					continue;
+				}
+
+				Packet p = new BCPGInputStream(new ByteArrayInputStream(encoded)).readPacket();
+
+				if (p instanceof PublicKeyEncSessionPacket) {
+					if (keyFactory == null) continue;
+
+					PublicKeyEncSessionPacket pkp = (PublicKeyEncSessionPacket) p;
+					PGPPrivateKey key;
+
+					try {
+						key = keyFactory.getPrivateKey(pkp.getKeyID());
+					} catch (KeyNotFoundException ex) {
+						continue;
+					}
+
+					if (key == null) continue;
+
+					return decryptSessionKey(pkp, key);
+				} else if (p instanceof SymmetricKeyEncSessionPacket) {
+					if (passPhrase == null) continue;
+
+					return decryptSessionKey((SymmetricKeyEncSessionPacket) p, passPhrase);
+				}
+			} catch (PGPException ex) {
+				throw new IOException(ex);
+			} catch (GeneralSecurityException ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		throw new KeyNotFoundException("no usable key for encrypted data");
+	}
+
+	private static SessionKey decryptSessionKey(PublicKeyEncSessionPacket packet, PGPPrivateKey key) throws IOException, PGPException, GeneralSecurityException {
+		byte[] plain = decryptPublicKey(packet.getAlgorithm(), packet.getEncSessionKey(), key);
+
+		if (!checkSessionKey(plain, 1))
+			throw new PGPException("session key checksum failed");
+
+		byte[] sessionKey = new byte[plain.length - 3];
+
+		System.arraycopy(plain, 1, sessionKey, 0, sessionKey.length);
+
+		return new SessionKey(plain[0] & 0xFF, sessionKey);
+	}
+
+	/**
+	 * Decrypt a version 6 session key packet, RFC 9580 sections 5.1 and
+	 * 5.3.
+	 *
+	 * @return a session key with algorithm zero for public key packets,
+	 *         or null if there is no key for this packet.
+	**/
+	private SessionKey decryptVersion6SessionKey(byte[] encoded) throws IOException, PGPException, GeneralSecurityException {
+		int tag = encoded[0] & 0x3F;
+		int pos = 7;
+
+		if (tag == PacketTags.PUBLIC_KEY_ENC_SESSION) {
+			if (keyFactory == null) return null;
+
+			int n = encoded[pos++] & 0xFF;
+
+			// Anonymous recipients are not supported.
+			if (n == 0) return null;
+
+			int keyVersion = encoded[pos] & 0xFF;
+			long keyId = 0;
+			int idOff = (keyVersion == 4 ? pos + n - 8 : pos + 1);
+
+			for (int i = 0; i < 8; ++i)
+				keyId = (keyId << 8) | (encoded[idOff + i] & 0xFF);
+
+			pos += n;
+
+			int algorithm = encoded[pos++] & 0xFF;
+			int mpiCount = (algorithm == PublicKeyAlgorithmTags.ELGAMAL_ENCRYPT || algorithm == PublicKeyAlgorithmTags.ELGAMAL_GENERAL ? 2 : 1);
+			BigInteger[] data = new BigInteger[mpiCount];
+
+			for (int i = 0; i < mpiCount; ++i) {
+				int bytes = ((((encoded[pos] & 0xFF) << 8) | (encoded[pos + 1] & 0xFF)) + 7) / 8;
+				byte[] mpi = new byte[bytes];
+
+				System.arraycopy(encoded, pos + 2, mpi, 0, bytes);
+				data[i] = new BigInteger(1, mpi);
+				pos += 2 + bytes;
+			}
+
+			PGPPrivateKey key;
+
+			try {
+				key = keyFactory.getPrivateKey(keyId);
+			} catch (KeyNotFoundException ex) {
+				return null;
+			}
+
+			if (key == null) return null;
+
+			byte[] plain = decryptPublicKey(algorithm, data, key);
+
+			if (!checkSessionKey(plain, 0))
+				throw new PGPException("session key checksum failed");
+
+			byte[] sessionKey = new byte[plain.length - 2];
+
+			System.arraycopy(plain, 0, sessionKey, 0, sessionKey.length);
+
+			return new SessionKey(0, sessionKey);
+		}
+
+		if (passPhrase == null) return null;
+
+		int end = pos + 1 + (encoded[pos] & 0xFF);
+		int algorithm = encoded[pos + 1] & 0xFF;
+		int aeadAlgorithm = encoded[pos + 2] & 0xFF;
+		int s2kLen = encoded[pos + 3] & 0xFF;
+		S2K s2k = decodeS2K(encoded, pos + 4, s2kLen);
+		int nonceLen = AeadCipher.getNonceLength(aeadAlgorithm);
+		byte[] nonce = new byte[nonceLen];
+		byte[] encrypted = new byte[encoded.length - end];
+
+		System.arraycopy(encoded, end - nonceLen, nonce, 0, nonceLen);
+		System.arraycopy(encoded, end, encrypted, 0, encrypted.length);
+
+		byte[] info = AeadEncryptedDataGenerator.getSymmetricKeyInfo(algorithm, aeadAlgorithm);
+		byte[] kek = AeadCipher.hkdf(
+			null,
+			PGPUtil.makeKeyFromPassPhrase(algorithm, s2k, passPhrase.toCharArray(), "BC").getEncoded(),
+			info,
+			AeadCipher.getKeyLength(algorithm));
+
+		return new SessionKey(algorithm, AeadCipher.process(algorithm, aeadAlgorithm, false, kek, nonce, info, encrypted));
+	}
+
+	/**
+	 * Decode a simple, salted or iterated and salted S2K specifier.
+	**/
+	private static S2K decodeS2K(byte[] b, int off, int len) throws IOException {
+		int type = b[off] & 0xFF;
+		int hashAlgorithm = b[off + 1] & 0xFF;
+		byte[] salt = new byte[8];
+
+		if (type == S2K.SIMPLE && len == 2)
+			return new S2K(hashAlgorithm);
+
+		if (len >= 10)
+			System.arraycopy(b, off + 2, salt, 0, salt.length);
+
+		if (type == S2K.SALTED && len == 10)
+			return new S2K(hashAlgorithm, salt);
+
+		if (type == S2K.SALTED_AND_ITERATED && len == 11)
+			return new S2K(hashAlgorithm, salt, b[off + 10] & 0xFF);
+
+		throw new IOException("unsupported S2K type: " + type);
+	}
+
+	/**
+	 * Return true if the two byte checksum at the end of plain matches
+	 * the key bytes, starting at off.
+	**/
+	private static boolean checkSessionKey(byte[] plain, int off) {
+		int check = 0;
+
+		for (int i = off; i < plain.length - 2; ++i)
+			check += plain[i] & 0xFF;
+
+		return (check & 0xFFFF) == (((plain[plain.length - 2] & 0xFF) << 8) | (plain[plain.length - 1] & 0xFF));
+	}
+
+	/**
+	 * Decrypt the session key material of a public key encrypted session
+	 * key packet.
+	**/
+	private static byte[] decryptPublicKey(int algorithm, BigInteger[] data, PGPPrivateKey key) throws IOException, PGPException, GeneralSecurityException {
+		Cipher c;
+
+		switch (algorithm) {
+		case PublicKeyAlgorithmTags.RSA_ENCRYPT:
+		case PublicKeyAlgorithmTags.RSA_GENERAL:
+			c = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+			c.init(Cipher.DECRYPT_MODE, key.getKey());
+
+			byte[] bi = data[0].toByteArray();
+
+			if (bi[0] == 0)
+				c.update(bi, 1, bi.length - 1);
+			else
+				c.update(bi);
+
+			break;
+
+		case PublicKeyAlgorithmTags.ELGAMAL_ENCRYPT:
+		case PublicKeyAlgorithmTags.ELGAMAL_GENERAL:
+			c = Cipher.getInstance("ElGamal/ECB/PKCS1Padding", "BC");
+			c.init(Cipher.DECRYPT_MODE, key.getKey());
+
+			int size = (((ElGamalKey) key.getKey()).getParameters().getP().bitLength() + 7) / 8;
+
+			for (int i = 0; i < 2; ++i) {
+				byte[] mpi = data[i].toByteArray();
+
+				if (mpi.length > size) {
+					c.update(mpi, 1, size);
+				} else {
+					byte[] tmp = new byte[size];
+
+					System.arraycopy(mpi, 0, tmp, size - mpi.length, mpi.length);
+					c.update(tmp);
+				}
+			}
+
+			break;
+
+		default:
+			throw new PGPException("unknown public key algorithm: " + algorithm);
+		}
+
+		return c.doFinal();
+	}
+
+	private static SessionKey decryptSessionKey(SymmetricKeyEncSessionPacket packet, String passPhrase) throws IOException, PGPException, GeneralSecurityException {
+		int algorithm = packet.getEncAlgorithm();
+		byte[] key = PGPUtil.makeKeyFromPassPhrase(algorithm, packet.getS2K(), passPhrase.toCharArray(), "BC").getEncoded();
+		byte[] secKeyData = packet.getSecKeyData();
+
+		if (secKeyData == null || secKeyData.length == 0)
+			return new SessionKey(algorithm, key);
+
+		String name = GnuPgUtils.getSymmetricCipherName(algorithm);
+		Cipher c = Cipher.getInstance(name + "/CFB/NoPadding", "BC");
+
+		c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, name), new IvParameterSpec(new byte[c.getBlockSize()]));
+
+		byte[] plain = c.doFinal(secKeyData);
+		byte[] sessionKey = new byte[plain.length - 1];
+
+		System.arraycopy(plain, 1, sessionKey, 0, sessionKey.length);
+
+		return new SessionKey(plain[0] & 0xFF, sessionKey);
+	}
+
+	/**
+	 * Create the source of decrypted data of an encrypted data packet.
+	 *
+	 * @param integrity true for a symmetrically encrypted integrity
+	 *                  protected data packet.
+	**/
+	private Source createDecryptingSource(Source body, List<byte[]> sessionPackets, boolean integrity) throws IOException {
+		SessionKey sessionKey = getSessionKey(sessionPackets);
+
+		try {
+			// Without integrity protection, the OpenPGP mode does the
+			// resync after the prefix.
+			CfbCipher c = CfbCipher.getInstance(sessionKey.algorithm, cipherProvider, !integrity);
+
+			c.init(false, sessionKey.key);
+
+			Source plain;
+
+			if (parallelism > 1)
+				plain = new ParallelCipherSource(body, sessionKey.algorithm, cipherProvider, sessionKey.key, c.getBlockSize(), !integrity, parallelism);
+			else
+				plain = new CipherSource(body, c);
+
+			if (verifyIntegrity)
+				plain = new MdcCheckingSource(plain);
+
+			return new PrefixCheckingSource(plain, c.getBlockSize());
+		} catch (PGPException ex) {
+			throw new IOException(ex);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Create the source of decrypted data of a version 2 symmetrically
+	 * encrypted integrity protected data packet.
+	 *
+	 * @param header the packet body up to and including the salt.
+	**/
+	private Source createAeadSource(Source body, List<byte[]> sessionPackets, byte[] header) throws IOException {
+		SessionKey sessionKey = getSessionKey(sessionPackets);
+		byte[] salt = new byte[AeadCipher.SALT_LENGTH];
+
+		System.arraycopy(header, 4, salt, 0, salt.length);
+
+		AeadCipher cipher = new AeadCipher(header[1] & 0xFF, header[2] & 0xFF, header[3] & 0xFF, sessionKey.key, salt);
+
+		return new AeadSource(body, cipher, parallelism);
+	}
+
+	private static Source createDecompressingSource(Source body, int algorithm) throws IOException {
+		switch (algorithm) {
+		case CompressionAlgorithmTags.UNCOMPRESSED:
+			return body;
+
+		case CompressionAlgorithmTags.ZIP:
+			return new InflaterSource(body, new Inflater(true));
+
+		case CompressionAlgorithmTags.ZLIB:
+			return new InflaterSource(body, new Inflater());
+		}
+
+		throw new UnsupportedStreamException("unsupported compression algorithm: " + algorithm);
+	}
+
+	/**
+	 * Read and discard a source until its end.
+	 *
+	 * @return -1 at the end, or zero if more input is needed.
+	**/
+	private static int skip(Source in) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+
+		for (;;) {
+			int n = in.read(buf, 0, buf.length);
+
+			if (n <= 0) return n;
+		}
+	}
+
+	/**
+	 * A sequence of packets, at the top level or nested in a data packet.
+	**/
+	private class Level {
+		private final Source source;
+		private final boolean top;
+		private final PacketHeader header = new PacketHeader();
+		private final Filler filler = new Filler();
+		private final List<byte[]> sessionPackets = new ArrayList<byte[]>();
+
+		private PacketBodySource body;
+		private int tag;
+		private int action;
+		private byte[] packetBytes;
+		private int packetLen;
+		private int pendingSignatures;
+		private boolean dataDone;
+
+		public Level(Source source, boolean top) {
+			this.source = source;
+			this.top = top;
+		}
+
+		/**
+		 * Make some progress.
+		 *
+		 * @return STARVED if more input is needed, END if there are no more
+		 *         packets in this level, or PROGRESS.
+		**/
+		public int step() throws IOException {
+			if (body == null)
+				return nextPacket();
+
+			switch (action) {
+			case SKIP:
+				if (skip(body) == 0) return STARVED;
+
+				if (tag == PacketTags.SIGNATURE && pendingSignatures > 0)
+					--pendingSignatures;
+
+				body = null;
+
+				return PROGRESS;
+
+			case SESSION_KEY:
+				if (!readPacket()) return STARVED;
+
+				sessionPackets.add(encodePacket(tag, packetBytes, packetLen));
+				packetBytes = null;
+				body = null;
+
+				return PROGRESS;
+
+			case ONE_PASS:
+				if (!readPacket()) return STARVED;
+
+				startSignature(encodePacket(tag, packetBytes, packetLen));
+				packetBytes = null;
+				body = null;
+
+				return PROGRESS;
+
+			case SIGNATURE:
+				if (!readPacket()) return STARVED;
+
+				checkSignature(encodePacket(tag, packetBytes, packetLen));
+
+				if (pendingSignatures > 0)
+					--pendingSignatures;
+
+				packetBytes = null;
+				body = null;
+
+				return PROGRESS;
+
+			case SYMMETRIC_INTEGRITY:
+				if (!filler.fill(body, 1)) return STARVED;
+
+				if (filler.buf[0] == AeadCipher.VERSION) {
+					// Cipher, AEAD algorithm, chunk size and salt.
+					if (!filler.fill(body, 4 + AeadCipher.SALT_LENGTH)) return STARVED;
+
+					levels.add(new Level(createAeadSource(body, sessionPackets, filler.buf), false));
+					action = DESCENDED;
+
+					return PROGRESS;
+				}
+
+				if (filler.buf[0] != 1)
+					throw new IOException("unknown encrypted data version: " + filler.buf[0]);
+
+				levels.add(new Level(createDecryptingSource(body, sessionPackets, true), false));
+				action = DESCENDED;
+
+				return PROGRESS;
+
+			case SYMMETRIC:
+				levels.add(new Level(createDecryptingSource(body, sessionPackets, false), false));
+				action = DESCENDED;
+
+				return PROGRESS;
+
+			case COMPRESSED:
+				if (!filler.fill(body, 1)) return STARVED;
+
+				levels.add(new Level(createDecompressingSource(body, filler.buf[0] & 0xFF), false));
+				action = DESCENDED;
+
+				return PROGRESS;
+
+			case LITERAL:
+				// Format, file name length, file name and date.
+				if (!filler.fill(body, 2)) return STARVED;
+
+				if (!filler.fill(body, 2 + (filler.buf[1] & 0xFF) + 4)) return STARVED;
+
+				// From here on, we have to stick to this stream.
+				input.commit();
+				literal = body;
+				action = DESCENDED;
+
+				return PROGRESS;
+
+			case DESCENDED:
+				// The nested data has ended. Skip anything after it
+				// inside the packet, like the MDC packet.
+				if (!body.isIndeterminate() && skip(body) == 0) return STARVED;
+
+				body = null;
+				dataDone = true;
+
+				return PROGRESS;
+			}
+
+			throw new IllegalStateException("unknown action: " + action);
+		}
+
+		/**
+		 * Read the whole body of the current packet into packetBytes.
+		 *
+		 * @return false if more input is needed.
+		**/
+		private boolean readPacket() throws IOException {
+			for (;;) {
+				if (packetLen == packetBytes.length) {
+					byte[] nb = new byte[packetBytes.length * 2];
+
+					System.arraycopy(packetBytes, 0, nb, 0, packetLen);
+					packetBytes = nb;
+				}
+
+				int n = body.read(packetBytes, packetLen, packetBytes.length - packetLen);
+
+				if (n == 0) return false;
+
+				if (n < 0) return true;
+
+				packetLen += n;
+			}
+		}
+
+		private int nextPacket() throws IOException {
+			if (top && dataDone && pendingSignatures == 0)
+				return END;
+
+			int r = header.read(source);
+
+			if (r == 0) return STARVED;
+
+			if (r < 0) {
+				if (top && !dataDone)
+					throw new IOException("No OpenPGP literal data found");
+
+				return END;
+			}
+
+			tag = header.tag;
+			body = new PacketBodySource(source, header);
+			header.clear();
+			filler.clear();
+
+			if (verifyIntegrity && top && !literalDone && (tag == PacketTags.SYMMETRIC_KEY_ENC || tag == PacketTags.COMPRESSED_DATA || tag == PacketTags.LITERAL_DATA))
+				throw new IOException("OpenPGP message is not integrity protected");
+
+			switch (tag) {
+			case PacketTags.PUBLIC_KEY_ENC_SESSION:
+			case PacketTags.SYMMETRIC_KEY_ENC_SESSION:
+				action = SESSION_KEY;
+				break;
+
+			case PacketTags.ONE_PASS_SIGNATURE:
+				if (top) ++pendingSignatures;
+
+				action = (signatureKeys != null && !literalDone ? ONE_PASS : SKIP);
+				break;
+
+			case PacketTags.SIGNATURE:
+				action = (signatureKeys != null && literalDone && !onePassSignatures.isEmpty() ? SIGNATURE : SKIP);
+				break;
+
+			case PacketTags.SYMMETRIC_KEY_ENC:
+				action = (literalDone ? SKIP : SYMMETRIC);
+				break;
+
+			case PacketTags.SYM_ENC_INTEGRITY_PRO:
+				action = (literalDone ? SKIP : SYMMETRIC_INTEGRITY);
+				break;
+
+			case PacketTags.COMPRESSED_DATA:
+				action = (literalDone ? SKIP : COMPRESSED);
+				break;
+
+			case PacketTags.LITERAL_DATA:
+				action = (literalDone ? SKIP : LITERAL);
+				break;
+
+			default:
+				action = SKIP;
+			}
+
+			if (action == SESSION_KEY || action == ONE_PASS || action == SIGNATURE) {
+				packetBytes = new byte[1 << 9];
+				packetLen = 0;
+			}
+
+			return PROGRESS;
+		}
+	}
+
+	/**
+	 * Encode a packet with a new format header, for BCPGInputStream.
+	**/
+	private static byte[] encodePacket(int tag, byte[] body, int len) {
+		byte[] ret = new byte[6 + len];
+
+		ret[0] = (byte) (0xC0 | tag);
+		ret[1] = (byte) 0xFF;
+		ret[2] = (byte) (len >> 24);
+		ret[3] = (byte) (len >> 16);
+		ret[4] = (byte) (len >> 8);
+		ret[5] = (byte) len;
+		System.arraycopy(body, 0, ret, 6, len);
+
+		return ret;
+	}
+
+	/**
+	 * Return the number of octets of a new format length, given the first.
+	**/
+	private static int getNewLengthOctets(int first) {
+		if (first < 192) return 1;
+		else if (first < 224) return 2;
+		else if (first == 255) return 5;
+
+		// Partial body length.
+		return 1;
+	}
+
+	/**
+	 * Decode a new format length.
+	 *
+	 * @return the length, negated (minus one) for partial body lengths.
+	**/
+	private static long decodeNewLength(byte[] b, int off) {
+		int first = b[off] & 0xFF;
+
+		if (first < 192)
+			return first;
+		else if (first < 224)
+			return ((first - 192) << 8) + (b[off + 1] & 0xFF) + 192;
+		else if (first == 255)
+			return ((long) (b[off + 1] & 0xFF) << 24) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 8) | (b[off + 4] & 0xFF);
+
+		return -(1L << (first & 0x1F)) - 1;
+	}
+
+	private static class SessionKey {
+		public final int algorithm;
+		public final byte[] key;
+
+		public SessionKey(int algorithm, byte[] key) {
+			this.algorithm = algorithm;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A small buffer filled in steps.
+	**/
+	private static class Filler {
+		public final byte[] buf = new byte[2 + 0xFF + 4];
+		private int pos;
+
+		/**
+		 * Fill the buffer up to len bytes.
+		 *
+		 * @return true if the buffer holds len bytes.
+		**/
+		public boolean fill(Source in, int len) throws IOException {
+			while (pos < len) {
+				int n = in.read(buf, pos, len - pos);
+
+				if (n == 0) return false;
+
+				if (n < 0) throw new EOFException("truncated OpenPGP packet");
+
+				pos += n;
+			}
+
+			return true;
+		}
+
+		public void clear() {
+			pos = 0;
+		}
+	}
+
+	/**
+	 * An incrementally read packet header.
+	**/
+	private static class PacketHeader {
+		public int tag;
+		/// The length of the (first part of the) body, or -1 if indeterminate.
+		public long length;
+		public boolean partial;
+
+		private final byte[] buf = new byte[6];
+		private int pos;
+
+		/**
+		 * Read the header.
+		 *
+		 * @return 1 when complete, 0 if more input is needed, or -1 if
+		 *         the source ended before the header.
+		**/
+		public int read(Source in) throws IOException {
+			for (;;) {
+				int need = getHeaderLength();
+
+				if (pos == need) break;
+
+				int n = in.read(buf, pos, need - pos);
+
+				if (n == 0) return 0;
+
+				if (n < 0) {
+					if (pos == 0) return -1;
+
+					throw new EOFException("truncated OpenPGP packet header");
+				}
+
+				if (pos == 0 && (buf[0] & 0x80) == 0)
+					throw new IOException("invalid OpenPGP packet header");
+
+				pos += n;
+			}
+
+			int ctb = buf[0] & 0xFF;
+
+			partial = false;
+
+			if ((ctb & 0x40) != 0) {
+				tag = ctb & 0x3F;
+				length = decodeNewLength(buf, 1);
+
+				if (length < 0) {
+					length = -length - 1;
+					partial = true;
+				}
+			} else {
+				tag = (ctb >> 2) & 0xF;
+
+				switch (ctb & 3) {
+				case 0: length = buf[1] & 0xFF; break;
+				case 1: length = ((buf[1] & 0xFF) << 8) | (buf[2] & 0xFF); break;
+				case 2: length = ((long) (buf[1] & 0xFF) << 24) | ((buf[2] & 0xFF) << 16) | ((buf[3] & 0xFF) << 8) | (buf[4] & 0xFF); break;
+				default: length = -1;
+				}
+			}
+
+			return 1;
+		}
+
+		public void clear() {
+			pos = 0;
+		}
+
+		/**
+		 * Return the header length, as far as known from the bytes read.
+		**/
+		private int getHeaderLength() {
+			if (pos == 0) return 1;
+
+			int ctb = buf[0] & 0xFF;
+
+			if ((ctb & 0x40) == 0) {
+				switch (ctb & 3) {
+				case 0: return 2;
+				case 1: return 3;
+				case 2: return 5;
+				default: return 1;
+				}
+			}
+
+			if (pos < 2) return 2;
+
+			return 1 + getNewLengthOctets(buf[1] & 0xFF);
+		}
+	}
+
+	/**
+	 * A non-blocking source of bytes.
+	 *
+	 * read() returns the number of bytes read, zero if nothing can be read
+	 * until more input is supplied, or -1 at the end. A source may only
+	 * return zero if its own source did.
+	 *
+	 * Bytes can be pushed back with unread().
+	**/
+	private static abstract class Source {
+		private byte[] pushback = new byte[0];
+		private int pushbackLen;
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (pushbackLen > 0) {
+				int n = min(len, pushbackLen);
+
+				System.arraycopy(pushback, pushback.length - pushbackLen, b, off, n);
+				pushbackLen -= n;
+
+				return n;
+			}
+
+			return readSource(b, off, len);
+		}
+
+		/**
+		 * Push back bytes to be returned by the following reads.
+		**/
+		public void unread(byte[] b, int off, int len) {
+			if (pushbackLen + len > pushback.length) {
+				byte[] nb = new byte[pushbackLen + len];
+
+				System.arraycopy(pushback, pushback.length - pushbackLen, nb, nb.length - pushbackLen, pushbackLen);
+				pushback = nb;
+			}
+
+			System.arraycopy(b, off, pushback, pushback.length - pushbackLen - len, len);
+			pushbackLen += len;
+		}
+
+		protected int getPushbackLength() {
+			return pushbackLen;
+		}
+
+		/**
+		 * Stop work running in the background, when the decoder is reset.
+		 * The default implementation does nothing.
+		**/
+		public void cancel() {
+		}
+
+		protected abstract int readSource(byte[] b, int off, int len) throws IOException;
+	}
+
+	/**
+	 * The input given to setInput().
+	 *
+	 * Until commit() is called, all consumed input is retained, so it can
+	 * be handed over when giving up on a stream.
+	**/
+	private static class InputSource extends Source {
+		private byte[] bytes;
+		private int off;
+		private int len;
+		private boolean ended;
+
+		private byte[] retained = new byte[1 << 10];
+		private int retainedLen;
+
+		public void setInput(byte[] b, int off, int len) {
+			this.bytes = b;
+			this.off = off;
+			this.len = len;
+		}
+
+		public int getRemaining() {
+			return len + getPushbackLength();
+		}
+
+		public void finish() {
+			ended = true;
+		}
+
+		public void commit() {
+			retained = null;
+		}
+
+		public byte[] getConsumed() {
+			if (retained == null)
+				throw new IllegalStateException("input already committed");
+
+			int n = retainedLen - getPushbackLength();
+			byte[] ret = new byte[n];
+
+			System.arraycopy(retained, 0, ret, 0, n);
+
+			return ret;
+		}
+
+		protected int readSource(byte[] b, int off, int len) {
+			if (this.len == 0)
+				return (ended ? -1 : 0);
+
+			int n = min(len, this.len);
+
+			System.arraycopy(bytes, this.off, b, off, n);
+			this.off += n;
+			this.len -= n;
+
+			if (retained != null) {
+				if (retainedLen + n > retained.length) {
+					byte[] nb = new byte[max(retained.length * 2, retainedLen + n)];
+
+					System.arraycopy(retained, 0, nb, 0, retainedLen);
+					retained = nb;
+				}
+
+				System.arraycopy(b, off, retained, retainedLen, n);
+				retainedLen += n;
+			}
+
+			return n;
+		}
+	}
+
+	/**
+	 * The body of a packet, handling partial body lengths.
+	 *
+	 * Bytes pushed back go to the underlying source, so that data after
+	 * an indeterminate length body can be read by the enclosing level.
+	**/
+	private static class PacketBodySource extends Source {
+		private final Source in;
+		private final boolean indeterminate;
+		private long remaining;
+		private boolean partial;
+
+		private final byte[] lengthBuf = new byte[5];
+		private int lengthPos;
+
+		public PacketBodySource(Source in, PacketHeader header) {
+			this.in = in;
+			this.indeterminate = header.length < 0;
+			this.remaining = header.length;
+			this.partial = header.partial;
+		}
+
+		public boolean isIndeterminate() {
+			return indeterminate;
+		}
+
+		public void unread(byte[] b, int off, int len) {
+			if (!indeterminate)
+				remaining += len;
+
+			in.unread(b, off, len);
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			if (indeterminate)
+				return in.read(b, off, len);
+
+			while (remaining == 0) {
+				if (!partial) return -1;
+
+				if (!readPartLength()) return 0;
+			}
+
+			int n = in.read(b, off, (int) min(len, remaining));
+
+			if (n < 0) throw new EOFException("truncated OpenPGP packet");
+
+			remaining -= n;
+
+			return n;
+		}
+
+		private boolean readPartLength() throws IOException {
+			for (;;) {
+				int need = (lengthPos == 0 ? 1 : getNewLengthOctets(lengthBuf[0] & 0xFF));
+
+				if (lengthPos == need) break;
+
+				int n = in.read(lengthBuf, lengthPos, need - lengthPos);
+
+				if (n == 0) return false;
+
+				if (n < 0) throw new EOFException("truncated OpenPGP packet");
+
+				lengthPos += n;
+			}
+
+			long length = decodeNewLength(lengthBuf, 0);
+
+			lengthPos = 0;
+
+			if (length < 0) {
+				remaining = -length - 1;
+			} else {
+				remaining = length;
+				partial = false;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * A source decrypting another source, in place in the caller's
+	 * buffer.
+	**/
+	private static class CipherSource extends Source {
+		private final Source in;
+		private final CfbCipher cipher;
+
+		public CipherSource(Source in, CfbCipher cipher) {
+			this.in = in;
+			this.cipher = cipher;
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, cipher.getAlignedLength(len));
+
+			if (n > 0) {
+				try {
+					cipher.process(b, off, n);
+				} catch (GeneralSecurityException ex) {
+					throw new IOException(ex);
+				}
+			}
+
+			return n;
+		}
+	}
+
+	/**
+	 * A source decrypting CFB encrypted data in parallel.
+	 *
+	 * Decrypting a CFB block only needs the ciphertext block before it,
+	 * so the input is gathered until SEGMENT_SIZE times the parallelism
+	 * bytes have been read, then split in segments decrypted at the same
+	 * time by the TaskPool, each starting from the last ciphertext
+	 * block of the segment before. The plaintext is returned in order, so
+	 * the modification detection code is hashed as usual.
+	 *
+	 * Without integrity protection, OpenPGP CFB resynchronizes after the
+	 * random prefix: the first block size plus two bytes are decrypted
+	 * with a zero IV, and the rest with the last block of them as IV.
+	**/
+	private static class ParallelCipherSource extends Source {
+		/// Bytes decrypted by one task, a multiple of any block size.
+		private static final int SEGMENT_SIZE = 1 << 16;
+
+		private final Source in;
+		private final int algorithm;
+		private final String provider;
+		private final byte[] key;
+		private final int blockSize;
+		private final byte[] inBuf;
+		private int inLen;
+		private final byte[] outBuf;
+		private int outOff;
+		private int outLen;
+		/// The ciphertext block before the next one to decrypt.
+		private byte[] iv;
+		/// Bytes to decrypt before resynchronizing, or zero.
+		private int resyncAt;
+		private boolean ended;
+
+		/**
+		 * Construct a new source.
+		 *
+		 * @param algorithm the symmetric key algorithm.
+		 * @param provider the JCE provider to prefer.
+		 * @param resync true for the OpenPGP CFB mode with resynchronization.
+		**/
+		public ParallelCipherSource(Source in, int algorithm, String provider, byte[] key, int blockSize, boolean resync, int parallelism) {
+			this.in = in;
+			this.algorithm = algorithm;
+			this.provider = provider;
+			this.key = key;
+			this.blockSize = blockSize;
+			this.inBuf = new byte[parallelism * SEGMENT_SIZE];
+			this.outBuf = new byte[inBuf.length];
+			this.iv = new byte[blockSize];
+			this.resyncAt = (resync ? blockSize + 2 : 0);
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			for (;;) {
+				if (outLen > 0) {
+					int n = min(len, outLen);
+
+					System.arraycopy(outBuf, outOff, b, off, n);
+					outOff += n;
+					outLen -= n;
+
+					return n;
+				}
+
+				if (ended && inLen == 0) return -1;
+
+				if (!ended) {
+					int n = in.read(inBuf, inLen, inBuf.length - inLen);
+
+					// Wait for more input, to have enough to split.
+					if (n == 0) return 0;
+
+					if (n < 0)
+						ended = true;
+					else
+						inLen += n;
+				}
+
+				if (resyncAt > 0 && inLen >= resyncAt) {
+					decrypt(resyncAt);
+					resyncAt = 0;
+				} else if (ended || inLen == inBuf.length) {
+					decrypt(inLen);
+				}
+			}
+		}
+
+		/**
+		 * Decrypt the first len bytes of inBuf into outBuf.
+		**/
+		private void decrypt(int len) throws IOException {
+			if (len >= 2 * SEGMENT_SIZE) {
+				List<Future<IOException>> tasks = new ArrayList<Future<IOException>>();
+
+				for (int segOff = SEGMENT_SIZE; segOff < len; segOff += SEGMENT_SIZE) {
+					final int taskOff = segOff;
+					final int taskLen = min(SEGMENT_SIZE, len - segOff);
+
+					tasks.add(TaskPool.EXECUTOR.submit(new Callable<IOException>() {
+						public IOException call() {
+							try {
+								decryptSegment(inBuf, taskOff - blockSize, taskOff, taskLen);
+							} catch (IOException ex) {
+								return ex;
+							}
+
+							return null;
+						}
+					}));
+				}
+
+				decryptSegment(iv, 0, 0, SEGMENT_SIZE);
+
+				for (Future<IOException> task : tasks)
+					TaskPool.await(task);
+			} else {
+				decryptSegment(iv, 0, 0, len);
+			}
+
+			if (len >= blockSize) {
+				iv = new byte[blockSize];
+				System.arraycopy(inBuf, len - blockSize, iv, 0, blockSize);
+			}
+
+			System.arraycopy(inBuf, len, inBuf, 0, inLen - len);
+			inLen -= len;
+			outOff = 0;
+			outLen = len;
+		}
+
+		/**
+		 * Decrypt a segment of inBuf into the same place in outBuf.
+		 *
+		 * @param ivBuf the array holding the IV, at ivOff.
+		**/
+		private void decryptSegment(byte[] ivBuf, int ivOff, int off, int len) throws IOException {
+			try {
+				CfbCipher c = CfbCipher.getInstance(algorithm, provider, false);
+
+				c.init(false, key, ivBuf, ivOff);
+				c.process(inBuf, off, len, outBuf, off);
+			} catch (PGPException ex) {
+				throw new IOException(ex);
+			} catch (GeneralSecurityException ex) {
+				throw new IOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Checks and strips the random prefix of OpenPGP CFB encrypted data.
+	**/
+	private static class PrefixCheckingSource extends Source {
+		private final Source in;
+		private final int blockSize;
+		private final Filler prefix = new Filler();
+		private boolean checked;
+
+		public PrefixCheckingSource(Source in, int blockSize) {
+			this.in = in;
+			this.blockSize = blockSize;
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			if (!checked) {
+				if (!prefix.fill(in, blockSize + 2)) return 0;
+
+				if (prefix.buf[blockSize - 2] != prefix.buf[blockSize] || prefix.buf[blockSize - 1] != prefix.buf[blockSize + 1])
+					throw new IOException("data check failed: wrong key or pass phrase");
+
+				checked = true;
+			}
+
+			return in.read(b, off, len);
+		}
+	}
+
+	/**
+	 * Checks and strips the modification detection code at the end of
+	 * integrity protected data.
+	 *
+	 * The last MDC_LENGTH bytes are held back, since they may be the
+	 * MDC packet, until the underlying source ends.
+	**/
+	private static class MdcCheckingSource extends Source {
+		/// The MDC packet: a two byte header and a SHA-1 hash.
+		private static final int MDC_LENGTH = 2 + 20;
+
+		private final Source in;
+		private final MessageDigest digest;
+		private final byte[] buf = new byte[BUFFER_SIZE + MDC_LENGTH];
+		private int bufOff;
+		private int bufLen;
+		private boolean ended;
+
+		public MdcCheckingSource(Source in) throws GeneralSecurityException {
+			this.in = in;
+			this.digest = MessageDigest.getInstance("SHA-1");
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			for (;;) {
+				if (bufLen > MDC_LENGTH) {
+					int n = min(len, bufLen - MDC_LENGTH);
+
+					System.arraycopy(buf, bufOff, b, off, n);
+					digest.update(buf, bufOff, n);
+					bufOff += n;
+					bufLen -= n;
+
+					return n;
+				}
+
+				if (ended) return -1;
+
+				if (bufOff > 0) {
+					System.arraycopy(buf, bufOff, buf, 0, bufLen);
+					bufOff = 0;
+				}
+
+				int n = in.read(buf, bufLen, buf.length - bufLen);
+
+				if (n == 0) return 0;
+
+				if (n < 0) {
+					check();
+					ended = true;
+
+					return -1;
+				}
+
+				bufLen += n;
+			}
+		}
+
+		private void check() throws IOException {
+			if (bufLen != MDC_LENGTH || buf[bufOff] != (byte) (0xC0 | PacketTags.MOD_DETECTION_CODE) || buf[bufOff + 1] != 20)
+				throw new IOException("modification detection code missing");
+
+			digest.update(buf, bufOff, 2);
+
+			byte[] expected = new byte[20];
+
+			System.arraycopy(buf, bufOff + 2, expected, 0, expected.length);
+
+			if (!MessageDigest.isEqual(expected, digest.digest()))
+				throw new IOException("modification detection code check failed");
+
+			bufLen = 0;
+		}
+	}
+
+	/**
+	 * A source inflating another source.
+	 *
+	 * When the compressed data ends, any extra bytes read are pushed back
+	 * to the underlying source.
+	**/
+	private static class InflaterSource extends Source {
+		private final Source in;
+		private final Inflater inflater;
+		private final byte[] inBuf = new byte[BUFFER_SIZE];
+		private int inLen;
+		private boolean ended;
+
+		public InflaterSource(Source in, Inflater inflater) {
+			this.in = in;
+			this.inflater = inflater;
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			try {
+				for (;;) {
+					if (ended) return -1;
+
+					if (inflater.finished()) {
+						int r = inflater.getRemaining();
+
+						if (r > 0)
+							in.unread(inBuf, inLen - r, r);
+
+						inflater.end();
+						ended = true;
+
+						return -1;
+					}
+
+					if (inflater.needsInput()) {
+						int n = in.read(inBuf, 0, inBuf.length);
+
+						if (n == 0) return 0;
+
+						if (n < 0) throw new EOFException("truncated compressed data");
+
+						inLen = n;
+						inflater.setInput(inBuf, 0, n);
+					}
+
+					int n = inflater.inflate(b, off, len);
+
+					if (n > 0) return n;
+
+					if (inflater.needsDictionary())
+						throw new IOException("compressed data needs a dictionary");
+				}
+			} catch (DataFormatException ex) {
+				throw new IOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Decrypts and authenticates the chunks of AEAD encrypted data.
+	 *
+	 * The TAG_LENGTH bytes following a chunk are read before it is
+	 * decrypted, since the last ones of the packet are the final tag, not
+	 * part of a chunk. Plaintext is only returned once its chunk has been
+	 * authenticated, and the end only once the final tag has been.
+	 *
+	 * With a parallelism above one, up to that many chunks are decrypted
+	 * by the TaskPool at the same time, and returned in order.
+	**/
+	private static class AeadSource extends Source {
+		private final Source in;
+		private final AeadCipher cipher;
+		private final int parallelism;
+		private final AEADBlockCipher aead;
+		/// Chunks being decrypted, or decrypted and not yet returned.
+		private final LinkedList<Chunk> pending = new LinkedList<Chunk>();
+		/// Chunks no longer in use.
+		private final List<Chunk> free = new ArrayList<Chunk>();
+		/// The chunk being read from in.
+		private Chunk filling;
+		/// The chunk being returned.
+		private Chunk current;
+		private long index;
+		private long length;
+		private boolean ended;
+
+		public AeadSource(Source in, AeadCipher cipher, int parallelism) throws IOException {
+			this.in = in;
+			this.cipher = cipher;
+			this.parallelism = parallelism;
+			this.aead = cipher.newCipher();
+			this.filling = newChunk();
+		}
+
+		protected int readSource(byte[] b, int off, int len) throws IOException {
+			for (;;) {
+				if (current != null) {
+					if (current.outOff < current.outLen) {
+						int n = min(len, current.outLen - current.outOff);
+
+						System.arraycopy(current.out, current.outOff, b, off, n);
+						current.outOff += n;
+
+						return n;
+					}
+
+					free.add(current);
+					current = null;
+				}
+
+				if (!pending.isEmpty() && (ended || pending.size() >= parallelism || pending.getFirst().isDone())) {
+					current = pending.removeFirst();
+					current.await();
+					continue;
+				}
+
+				if (ended) return -1;
+
+				int n = in.read(filling.in, filling.inLen, filling.in.length - filling.inLen);
+
+				if (n == 0) {
+					// Nothing more to read, so wait for a chunk instead.
+					if (pending.isEmpty()) return 0;
+
+					current = pending.removeFirst();
+					current.await();
+				} else if (n < 0) {
+					finishInput();
+				} else if ((filling.inLen += n) == filling.in.length) {
+					// A full chunk, and more. Carry the extra bytes over.
+					Chunk next = newChunk();
+
+					filling.inLen -= AeadCipher.TAG_LENGTH;
+					System.arraycopy(filling.in, filling.inLen, next.in, 0, AeadCipher.TAG_LENGTH);
+					next.inLen = AeadCipher.TAG_LENGTH;
+					submit(filling);
+					filling = next;
+				}
+			}
+		}
+
+		/**
+		 * Decrypt the last chunk, if any, and check the final tag.
+		**/
+		private void finishInput() throws IOException {
+			int chunkLen = filling.inLen - AeadCipher.TAG_LENGTH;
+
+			if (chunkLen < 0 || (chunkLen > 0 && chunkLen < AeadCipher.TAG_LENGTH))
+				throw new EOFException("truncated AEAD encrypted data");
+
+			byte[] tag = new byte[AeadCipher.TAG_LENGTH];
+
+			System.arraycopy(filling.in, chunkLen, tag, 0, tag.length);
+
+			if (chunkLen > 0) {
+				filling.inLen = chunkLen;
+				submit(filling);
+			}
+
+			filling = null;
+
+			if (!MessageDigest.isEqual(tag, cipher.getFinalTag(aead, index, length)))
+				throw new IOException("AEAD authentication failed: final tag mismatch");
+
+			ended = true;
+		}
+
+		private void submit(final Chunk chunk) throws IOException {
+			chunk.index = index++;
+			length += chunk.inLen - AeadCipher.TAG_LENGTH;
+
+			if (parallelism <= 1) {
+				chunk.decrypt(cipher, aead);
+			} else {
+				// The failure is the result, since the common pool
+				// wraps checked exceptions.
+				chunk.future = TaskPool.EXECUTOR.submit(new Callable<IOException>() {
+					public IOException call() {
+						try {
+							chunk.decrypt(cipher, cipher.newCipher());
+						} catch (IOException ex) {
+							return ex;
+						}
+
+						return null;
+					}
+				});
+			}
+
+			pending.add(chunk);
+		}
+
+		public void cancel() {
+			for (Chunk chunk : pending) {
+				if (chunk.future != null)
+					chunk.future.cancel(false);
+			}
+
+			pending.clear();
+		}
+
+		private Chunk newChunk() {
+			if (!free.isEmpty()) {
+				Chunk ret = free.remove(free.size() - 1);
+
+				ret.inLen = 0;
+				ret.outOff = 0;
+				ret.outLen = 0;
+				ret.future = null;
+
+				return ret;
+			}
+
+			return new Chunk(cipher.getChunkSize());
+		}
+
+	}
+
+	/**
+	 * An encrypted chunk, and its plaintext once decrypted.
+	**/
+	private static class Chunk {
+		/// The chunk and its tag, and room for the bytes following it.
+		public final byte[] in;
+		public int inLen;
+		public final byte[] out;
+		public int outOff;
+		public int outLen;
+		public long index;
+		/// The decryption task, or null if decrypted in place.
+		public Future<IOException> future;
+
+		public Chunk(int chunkSize) {
+			this.in = new byte[chunkSize + 2 * AeadCipher.TAG_LENGTH];
+			this.out = new byte[chunkSize];
+		}
+
+		public void decrypt(AeadCipher cipher, AEADBlockCipher aead) throws IOException {
+			outLen = cipher.processChunk(aead, false, index, in, 0, inLen, out, 0);
+		}
+
+		public boolean isDone() {
+			return future == null || future.isDone();
+		}
+
+		/**
+		 * Wait for the decryption to finish.
+		 *
+		 * @throws IOException if it failed.
+		**/
+		public void await() throws IOException {
+			if (future != null)
+				TaskPool.await(future);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * An input stream of plaintext that can seek, using a BlockIndex.
+ *
+ * A seek starts decrypting at the last message starting at or before the
+ * target, and skips plaintext up to it, so it costs at most one block.
+ * Reading goes on into the following messages.
+**/
+public class OpenPgpSeekableInputStream extends InputStream implements Seekable {
+	private final FSDataInputStream in;
+	private final BlockIndex index;
+	private final Configuration conf;
+	private InputStream stream;
+	/// Plaintext position of the next byte read.
+	private long pos;
+	private final byte[] oneByte = new byte[1];
+
+	/**
+	 * Construct a new stream, positioned at the beginning.
+	 *
+	 * @param in the file.
+	 * @param index the index of the file.
+	 * @param conf the configuration, see OpenPgpDecompressor.
+	**/
+	public OpenPgpSeekableInputStream(FSDataInputStream in, BlockIndex index, Configuration conf) {
+		this.in = in;
+		this.index = index;
+		this.conf = conf;
+	}
+
+	public int read() throws IOException {
+		int n = read(oneByte, 0, 1);
+
+		if (n < 0) return n;
+
+		return oneByte[0] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+
+		int n = getStream().read(b, off, len);
+
+		if (n > 0) pos += n;
+
+		return n;
+	}
+
+	/**
+	 * Position the stream at a plaintext offset.
+	 *
+	 * Nothing is read until the next read().
+	**/
+	public void seek(long pos) throws IOException {
+		if (pos < 0)
+			throw new IOException("Cannot seek to negative offset");
+
+		if (pos == this.pos) return;
+
+		closeStream();
+		this.pos = pos;
+	}
+
+	/**
+	 * Return the plaintext position of the next byte read.
+	**/
+	public long getPos() {
+		return pos;
+	}
+
+	public boolean seekToNewSource(long targetPos) {
+		return false;
+	}
+
+	public void close() throws IOException {
+		try {
+			closeStream();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Close the decoding stream, which leaves the file open.
+	**/
+	private void closeStream() throws IOException {
+		if (stream == null) return;
+
+		try {
+			stream.close();
+		} finally {
+			stream = null;
+		}
+	}
+
+	private InputStream getStream() throws IOException {
+		if (stream != null) return stream;
+
+		int i = index.find(pos);
+		long start = 0;
+
+		if (i >= 0) {
+			in.seek(index.getFileOffset(i));
+			start = index.getPlaintextOffset(i);
+		} else {
+			in.seek(0);
+		}
+
+		stream = new OpenPgpCompressionInputStream(new NonClosingInputStream(in), conf);
+
+		// Skip to the target within the message.
+		for (long n = pos - start; n > 0;) {
+			long m = stream.skip(n);
+
+			if (m <= 0) {
+				if (stream.read() < 0)
+					throw new EOFException("Cannot seek past end of plaintext");
+
+				m = 1;
+			}
+
+			n -= m;
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Protects the file from being closed when a stream is dropped.
+	**/
+	private static class NonClosingInputStream extends FilterInputStream {
+		public NonClosingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import static java.lang.Math.*;
+
+import org.bouncycastle.apache.bzip2.CBZip2InputStream;
+
+
+/**
+ * Decompresses BZip2 in parallel.
+ *
+ * The input is scanned for the magic numbers starting the blocks, see
+ * BZip2Stream. Each block is copied into a stream of its own, and
+ * decompressed by a task of the TaskPool with the Bouncy Castle decoder,
+ * while the next ones are found. At most as many tasks as threads are
+ * pending.
+ *
+ * The Bouncy Castle decoder only prints CRC errors, so the CRCs of the
+ * blocks and of the stream are checked here. Concatenated streams, as
+ * written by pbzip2, are read one after the other.
+ *
+ * Compressed data can hold a block magic number by chance. The block it
+ * cuts in two fails to decompress, and is then retried together with the
+ * next one.
+**/
+class ParallelBZip2InputStream extends InputStream {
+	private static final long MAGIC_MASK = (1L << BZip2Stream.MAGIC_BITS) - 1;
+
+	private final InputStream in;
+	private final int threads;
+	private final BufferPool pool = BufferPool.getInstance();
+	private final LinkedList<Block> pending = new LinkedList<Block>();
+	/// The input from the start of the current block.
+	private byte[] data = new byte[1 << 16];
+	private int dataLen;
+	/// The next bit to scan.
+	private long bitPos;
+	private long window;
+	private int windowBits;
+	/// The first bit of the current block, or -1 before the first.
+	private long blockStart = -1;
+	private int level;
+	private boolean inStream;
+	/// The end of a stream, found with the block before it.
+	private Block streamEnd;
+	private boolean ended;
+	private int combinedCrc;
+	private Block current;
+	private int currentPos;
+	private boolean closed;
+	private final byte[] oneByte = new byte[1];
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param threads the number of blocks decompressed at the same time.
+	**/
+	public ParallelBZip2InputStream(InputStream in, int threads) {
+		this.in = in;
+		this.threads = max(1, threads);
+	}
+
+	public int read() throws IOException {
+		int n = read(oneByte, 0, 1);
+
+		return (n < 0 ? -1 : oneByte[0] & 0xFF);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed) throw new IOException("stream closed");
+		if (len == 0) return 0;
+
+		while (current == null || currentPos == current.outputLen) {
+			if (!nextBlock()) return -1;
+		}
+
+		int n = min(len, current.outputLen - currentPos);
+
+		System.arraycopy(current.output, currentPos, b, off, n);
+		currentPos += n;
+
+		return n;
+	}
+
+	public void close() throws IOException {
+		if (closed) return;
+
+		closed = true;
+
+		for (Block block : pending) {
+			if (block.future != null)
+				block.future.cancel(false);
+		}
+
+		pending.clear();
+		releaseCurrent();
+		in.close();
+	}
+
+	/**
+	 * Make the next decompressed block current.
+	 *
+	 * @return false at the end of the input.
+	**/
+	private boolean nextBlock() throws IOException {
+		releaseCurrent();
+		fill();
+
+		if (pending.isEmpty()) return false;
+
+		Block block = pending.removeFirst();
+
+		if (block.future == null) {
+			// The end of a stream.
+			if (block.crc != combinedCrc)
+				throw new IOException("bad BZip2 stream CRC");
+
+			combinedCrc = 0;
+
+			return true;
+		}
+
+		try {
+			TaskPool.await(block.future);
+		} catch (IOException ex) {
+			fill();
+
+			Block next = pending.isEmpty() ? null : pending.getFirst();
+
+			if (next == null || next.future == null) throw ex;
+
+			pending.removeFirst();
+			next.future.cancel(false);
+			block = new Block(block, next);
+			block.decompress();
+		}
+
+		combinedCrc = BZip2Stream.combineCrc(combinedCrc, block.crc);
+		current = block;
+		currentPos = 0;
+
+		return true;
+	}
+
+	private void releaseCurrent() {
+		if (current == null) return;
+
+		if (current.output != null)
+			pool.release(current.output);
+
+		current = null;
+	}
+
+	/**
+	 * Find blocks until there are enough pending.
+	**/
+	private void fill() throws IOException {
+		while (!ended && pending.size() < threads) {
+			final Block block = nextSegment();
+
+			if (block == null) {
+				ended = true;
+
+				break;
+			}
+
+			if (block.stream != null) {
+				block.future = TaskPool.EXECUTOR.submit(new Callable<IOException>() {
+					public IOException call() {
+						try {
+							block.decompress();
+						} catch (IOException ex) {
+							return ex;
+						}
+
+						return null;
+					}
+				});
+			}
+
+			pending.add(block);
+		}
+	}
+
+	/**
+	 * Scan the input up to the end of the next block or stream.
+	 *
+	 * @return the block, an end of stream with its CRC, or null at the
+	 *         end of the input.
+	**/
+	private Block nextSegment() throws IOException {
+		if (streamEnd != null) {
+			Block ret = streamEnd;
+
+			streamEnd = null;
+
+			return ret;
+		}
+
+		if (!inStream && !readHeader())
+			return null;
+
+		for (;;) {
+			if (bitPos == dataLen * 8L && !readMore())
+				throw new EOFException("truncated BZip2 data");
+
+			int b = data[(int) (bitPos >>> 3)];
+			int bit = (b >>> (7 - (int) (bitPos & 7))) & 1;
+
+			window = ((window << 1) | bit) & MAGIC_MASK;
+			++bitPos;
+
+			if (++windowBits < BZip2Stream.MAGIC_BITS) continue;
+			if (window != BZip2Stream.BLOCK_MAGIC && window != BZip2Stream.END_MAGIC) continue;
+
+			long magicPos = bitPos - BZip2Stream.MAGIC_BITS;
+			Block ret = null;
+
+			if (blockStart >= 0)
+				ret = new Block(level, data, blockStart, magicPos - blockStart);
+			else if (windowBits != BZip2Stream.MAGIC_BITS)
+				throw new IOException("bad BZip2 block header");
+
+			windowBits = 0;
+
+			if (window == BZip2Stream.BLOCK_MAGIC) {
+				blockStart = magicPos;
+
+				if (ret != null) return ret;
+
+				continue;
+			}
+
+			// The combined CRC, then padding to a byte.
+			blockStart = -1;
+			inStream = false;
+
+			while (dataLen * 8L - bitPos < 32) {
+				if (!readMore()) throw new EOFException("truncated BZip2 data");
+			}
+
+			streamEnd = new Block((int) BZip2Stream.readBits(data, bitPos, 32));
+			bitPos = (bitPos + 32 + 7) & ~7L;
+
+			return (ret != null ? ret : nextSegment());
+		}
+	}
+
+	/**
+	 * Read the header of the next stream.
+	 *
+	 * @return false at the end of the input.
+	**/
+	private boolean readHeader() throws IOException {
+		while (dataLen * 8L - bitPos < BZip2Stream.HEADER_SIZE * 8) {
+			if (!readMore()) {
+				if (dataLen * 8L == bitPos) return false;
+
+				throw new EOFException("truncated BZip2 data");
+			}
+		}
+
+		long header = BZip2Stream.readBits(data, bitPos, 32);
+		int digit = (int) (header & 0xFF);
+
+		if ((header >>> 8) != BZip2Stream.HEADER || digit < '1' || digit > '9')
+			throw new IOException("not a BZip2 stream");
+
+		level = digit - '0';
+		bitPos += 32;
+		window = 0;
+		windowBits = 0;
+		inStream = true;
+
+		return true;
+	}
+
+	/**
+	 * Read more input, dropping what is before the current block.
+	 *
+	 * @return false at the end of the input.
+	**/
+	private boolean readMore() throws IOException {
+		if (dataLen == data.length) {
+			int keep = (int) ((blockStart >= 0 ? blockStart : bitPos) >>> 3);
+
+			if (keep > 0) {
+				System.arraycopy(data, keep, data, 0, dataLen - keep);
+				dataLen -= keep;
+				bitPos -= keep * 8L;
+
+				if (blockStart >= 0) blockStart -= keep * 8L;
+			} else {
+				byte[] b = new byte[data.length * 2];
+
+				System.arraycopy(data, 0, b, 0, dataLen);
+				data = b;
+			}
+		}
+
+		int n = in.read(data, dataLen, data.length - dataLen);
+
+		if (n < 0) return false;
+
+		dataLen += n;
+
+		return true;
+	}
+
+	/**
+	 * A block in a stream of its own, and its data once decompressed. Or,
+	 * without stream, the end of a stream.
+	**/
+	private static class Block {
+		public final int level;
+		public final byte[] stream;
+		public final int streamLen;
+		/// The bits of the block, after the header of the stream.
+		public final long bits;
+		public final int crc;
+		public Future<IOException> future;
+		public byte[] output;
+		public int outputLen;
+
+		public Block(int crc) {
+			this.level = 0;
+			this.stream = null;
+			this.streamLen = 0;
+			this.bits = 0;
+			this.crc = crc;
+		}
+
+		public Block(int level, byte[] data, long bitOff, long bits) {
+			this(level, (int) BZip2Stream.readBits(data, bitOff + BZip2Stream.MAGIC_BITS, 32), bits, data, bitOff, null, 0);
+		}
+
+		/**
+		 * Join a block with the next, which started with a magic number
+		 * found by chance.
+		**/
+		public Block(Block a, Block b) {
+			this(a.level, a.crc, a.bits + b.bits, a.stream, BZip2Stream.HEADER_SIZE * 8, b.stream, b.bits);
+		}
+
+		private Block(int level, int crc, long bits, byte[] a, long aOff, byte[] b, long bBits) {
+			BZip2Stream.Writer w = new BZip2Stream.Writer((int) (bits >>> 3) + 32);
+
+			w.writeBits(BZip2Stream.HEADER, 24);
+			w.writeBits('0' + level, 8);
+			w.writeBits(a, aOff, bits - bBits);
+
+			if (b != null)
+				w.writeBits(b, BZip2Stream.HEADER_SIZE * 8, bBits);
+
+			w.writeBits(BZip2Stream.END_MAGIC, BZip2Stream.MAGIC_BITS);
+			w.writeBits(crc, 32);
+			w.align();
+
+			this.level = level;
+			this.stream = w.getBuffer();
+			this.streamLen = w.size();
+			this.bits = bits;
+			this.crc = crc;
+		}
+
+		/**
+		 * Decompress the stream, and check the CRC.
+		**/
+		public void decompress() throws IOException {
+			BufferPool pool = BufferPool.getInstance();
+			byte[] b = pool.borrow(level * 100000);
+			int n = 0;
+
+			try {
+				InputStream bz = new CBZip2InputStream(new StreamInput());
+
+				for (int c = bz.read(); c >= 0; c = bz.read()) {
+					if (n == b.length) {
+						byte[] nb = new byte[b.length * 2];
+
+						System.arraycopy(b, 0, nb, 0, n);
+						pool.release(b);
+						b = nb;
+					}
+
+					b[n++] = (byte) c;
+				}
+			} catch (RuntimeException ex) {
+				pool.release(b);
+
+				throw new IOException("bad BZip2 block", ex);
+			}
+
+			if (~BZip2Stream.updateCrc(-1, b, 0, n) != crc) {
+				pool.release(b);
+
+				throw new IOException("bad BZip2 block CRC");
+			}
+
+			output = b;
+			outputLen = n;
+		}
+
+		/**
+		 * The stream, failing if read past its end.
+		 *
+		 * The Bouncy Castle decoder ignores IOExceptions, and would go
+		 * on forever with a broken block.
+		**/
+		private class StreamInput extends InputStream {
+			private int pos;
+
+			public int read() {
+				if (pos == streamLen)
+					throw new IllegalStateException("read past the end of a BZip2 block");
+
+				return stream[pos++] & 0xFF;
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import static java.lang.Math.*;
+
+import org.bouncycastle.apache.bzip2.CBZip2OutputStream;
+
+
+/**
+ * Compresses BZip2 in parallel, like pbzip2.
+ *
+ * The input is cut in chunks that fill a 900k block, each compressed by
+ * a task of the TaskPool with the Bouncy Castle encoder. Unlike pbzip2,
+ * which concatenates whole streams, the blocks are then copied bit by bit
+ * into a single stream, and their CRCs combined, see BZip2Stream. Some
+ * readers stop after the first stream.
+ *
+ * A block holds 900k after the first run-length encoding of BZip2, which
+ * turns runs of four to 255 bytes into five. The chunks are cut by
+ * running the same count. If a chunk still takes two blocks, its halves
+ * are compressed separately.
+ *
+ * The output is only written from the writing thread, when the oldest
+ * task is done; at most as many tasks as threads are pending.
+**/
+class ParallelBZip2OutputStream extends OutputStream {
+	/// The block size digit, for 900k blocks.
+	static final int LEVEL = 9;
+
+	/// Run-length encoded bytes per task, with room for the last run.
+	static final int BLOCK_SIZE = LEVEL * 100000 - 20 - 300;
+
+	/// Input bytes per task, at most, for long runs.
+	private static final int MAX_INPUT = 1 << 20;
+
+	private final OutputStream out;
+	private final int threads;
+	private final BufferPool pool = BufferPool.getInstance();
+	private final LinkedList<Block> pending = new LinkedList<Block>();
+	private final BZip2Stream.Writer writer = new BZip2Stream.Writer(1 << 16);
+	private byte[] buf;
+	private int bufLen;
+	/// The run-length encoded size of buf, and the run at its end.
+	private int encodedLen;
+	private int runByte = -1;
+	private int runLen;
+	private int combinedCrc;
+	private boolean started;
+	private boolean closed;
+	private final byte[] oneByte = new byte[1];
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param threads the number of blocks compressed at the same time.
+	 *
+	 * Nothing is written to out before the first block is compressed.
+	**/
+	public ParallelBZip2OutputStream(OutputStream out, int threads) {
+		this.out = out;
+		this.threads = max(1, threads);
+		this.buf = pool.borrow(MAX_INPUT);
+	}
+
+	public void write(int b) throws IOException {
+		oneByte[0] = (byte) b;
+		write(oneByte, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) throw new IOException("stream closed");
+
+		for (int end = off + len; off < end; ++off) {
+			if (bufLen == MAX_INPUT || encodedLen >= BLOCK_SIZE)
+				submit();
+
+			int c = b[off] & 0xFF;
+
+			buf[bufLen++] = (byte) c;
+
+			if (c == runByte && runLen < 255) {
+				++runLen;
+
+				// Four bytes and a count.
+				if (runLen <= 3) ++encodedLen;
+				else if (runLen == 4) encodedLen += 2;
+			} else {
+				runByte = c;
+				runLen = 1;
+				++encodedLen;
+			}
+		}
+	}
+
+	/**
+	 * Finish the BZip2 stream, without closing out.
+	**/
+	public void close() throws IOException {
+		if (closed) return;
+
+		closed = true;
+
+		try {
+			if (bufLen > 0)
+				submit();
+
+			while (!pending.isEmpty())
+				writeOldest();
+
+			if (!started)
+				writeHeader();
+
+			writer.writeBits(BZip2Stream.END_MAGIC, BZip2Stream.MAGIC_BITS);
+			writer.writeBits(combinedCrc, 32);
+			writer.align();
+			writer.drainTo(out);
+		} finally {
+			// Only after a failure.
+			for (Block block : pending)
+				block.future.cancel(false);
+
+			pending.clear();
+
+			if (buf != null) {
+				pool.release(buf);
+				buf = null;
+			}
+		}
+	}
+
+	/**
+	 * Hand the buffer over to a task, after waiting for the oldest if
+	 * there are too many.
+	**/
+	private void submit() throws IOException {
+		while (pending.size() >= threads)
+			writeOldest();
+
+		final Block block = new Block(buf, bufLen);
+
+		buf = pool.borrow(MAX_INPUT);
+		bufLen = 0;
+		encodedLen = 0;
+		runByte = -1;
+		runLen = 0;
+		block.future = TaskPool.EXECUTOR.submit(new Callable<IOException>() {
+			public IOException call() {
+				try {
+					block.compress(0, block.inputLen);
+				} catch (IOException ex) {
+					return ex;
+				}
+
+				return null;
+			}
+		});
+		pending.add(block);
+	}
+
+	/**
+	 * Wait for the oldest task, and write its blocks.
+	**/
+	private void writeOldest() throws IOException {
+		Block block = pending.removeFirst();
+
+		TaskPool.await(block.future);
+		pool.release(block.input);
+
+		if (!started)
+			writeHeader();
+
+		for (Part part : block.parts) {
+			long off = BZip2Stream.HEADER_SIZE * 8;
+
+			writer.writeBits(part.stream, off, part.end - off);
+			combinedCrc = BZip2Stream.combineCrc(combinedCrc, part.crc);
+		}
+
+		writer.drainTo(out);
+	}
+
+	private void writeHeader() {
+		started = true;
+		writer.writeBits(BZip2Stream.HEADER, 24);
+		writer.writeBits('0' + LEVEL, 8);
+	}
+
+	/**
+	 * A chunk of input, and its blocks once compressed.
+	**/
+	private static class Block {
+		public final byte[] input;
+		public final int inputLen;
+		public final List<Part> parts = new ArrayList<Part>();
+		public Future<IOException> future;
+
+		public Block(byte[] input, int inputLen) {
+			this.input = input;
+			this.inputLen = inputLen;
+		}
+
+		/**
+		 * Compress part of the input into a stream of a single block.
+		**/
+		public void compress(int off, int len) throws IOException {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(len / 4 + 64);
+			OutputStream bz = new CBZip2OutputStream(bout, LEVEL);
+
+			bz.write(input, off, len);
+			bz.close();
+
+			byte[] b = bout.toByteArray();
+			long end = BZip2Stream.findEnd(b, b.length);
+
+			if (end < 0) throw new IOException("BZip2 stream without an end");
+
+			int crc = (int) BZip2Stream.readBits(b, end + BZip2Stream.MAGIC_BITS, 32);
+
+			// The combined CRC of a single block is its own.
+			if (crc != (int) BZip2Stream.readBits(b, BZip2Stream.HEADER_SIZE * 8 + BZip2Stream.MAGIC_BITS, 32) && len > 1) {
+				compress(off, len / 2);
+				compress(off + len / 2, len - len / 2);
+
+				return;
+			}
+
+			parts.add(new Part(b, end, crc));
+		}
+	}
+
+	/**
+	 * A stream of a single block, with the offset of its END_MAGIC.
+	**/
+	private static class Part {
+		public final byte[] stream;
+		public final long end;
+		public final int crc;
+
+		public Part(byte[] stream, long end, int crc) {
+			this.stream = stream;
+			this.end = end;
+			this.crc = crc;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import static java.lang.Math.*;
+
+
+/**
+ * Deflates in parallel, like pigz.
+ *
+ * The input is cut in BLOCK_SIZE blocks, each deflated by a task of the
+ * TaskPool, with the last 32 kB of the block before it as preset
+ * dictionary. Each block but the last ends with a sync flush, which
+ * byte-aligns the output, so the outputs are concatenated, in order, into
+ * a single deflate stream. In ZLIB format, the stream gets a header, and
+ * the Adler-32 checksums of the blocks are combined into the trailer.
+ *
+ * The output differs from that of a single Deflater, but inflates to the
+ * same data. It is only written from the writing thread, when the oldest
+ * task is done; at most as many tasks as threads are pending.
+ *
+ * The sync flush needs Java 7, see isAvailable().
+**/
+class ParallelDeflaterOutputStream extends OutputStream {
+	/// Uncompressed bytes per task.
+	static final int BLOCK_SIZE = 1 << 17;
+
+	/// The size of the deflate window.
+	private static final int DICTIONARY_SIZE = 1 << 15;
+
+	/// Deflater.SYNC_FLUSH, of Java 7.
+	private static final int SYNC_FLUSH = 2;
+
+	/// Deflater#deflate(byte[], int, int, int), or null before Java 7.
+	private static final Method DEFLATE = getDeflateMethod();
+
+	private final OutputStream out;
+	private final int level;
+	private final boolean zlib;
+	private final int threads;
+	private final BufferPool pool = BufferPool.getInstance();
+	private final LinkedList<Block> pending = new LinkedList<Block>();
+	private byte[] buf;
+	private int bufLen;
+	/// The end of the input so far, for the next block.
+	private byte[] dictionary;
+	private long adler = 1;
+	private boolean started;
+	private boolean closed;
+	private final byte[] oneByte = new byte[1];
+
+	/**
+	 * Construct a new stream.
+	 *
+	 * @param level the compression level.
+	 * @param zlib true for the ZLIB format, false for raw deflate (ZIP.)
+	 * @param threads the number of blocks deflated at the same time.
+	 *
+	 * Nothing is written to out before the first block is deflated.
+	**/
+	public ParallelDeflaterOutputStream(OutputStream out, int level, boolean zlib, int threads) {
+		this.out = out;
+		this.level = level;
+		this.zlib = zlib;
+		this.threads = max(1, threads);
+		this.buf = pool.borrow(BLOCK_SIZE);
+	}
+
+	/**
+	 * Return true if the runtime can sync flush a Deflater.
+	**/
+	static boolean isAvailable() {
+		return DEFLATE != null;
+	}
+
+	public void write(int b) throws IOException {
+		oneByte[0] = (byte) b;
+		write(oneByte, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) throw new IOException("stream closed");
+
+		while (len > 0) {
+			if (bufLen == BLOCK_SIZE)
+				submit(false);
+
+			int n = min(len, BLOCK_SIZE - bufLen);
+
+			System.arraycopy(b, off, buf, bufLen, n);
+			bufLen += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Finish the deflate stream, without closing out.
+	**/
+	public void close() throws IOException {
+		if (closed) return;
+
+		closed = true;
+
+		try {
+			submit(true);
+
+			while (!pending.isEmpty())
+				writeOldest();
+
+			if (zlib) {
+				out.write((int) (adler >>> 24));
+				out.write((int) (adler >>> 16));
+				out.write((int) (adler >>> 8));
+				out.write((int) adler);
+			}
+		} finally {
+			// Only after a failure.
+			for (Block block : pending)
+				block.future.cancel(false);
+
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Hand the buffer over to a task, after waiting for the oldest if
+	 * there are too many.
+	 *
+	 * @param last true to finish the deflate stream.
+	**/
+	private void submit(boolean last) throws IOException {
+		while (pending.size() >= threads)
+			writeOldest();
+
+		final Block block = new Block(buf, bufLen, dictionary, last);
+
+		if (!last) {
+			int n = min(bufLen, DICTIONARY_SIZE);
+
+			dictionary = new byte[n];
+			System.arraycopy(buf, bufLen - n, dictionary, 0, n);
+			buf = pool.borrow(BLOCK_SIZE);
+		} else {
+			buf = null;
+		}
+
+		bufLen = 0;
+		block.future = TaskPool.EXECUTOR.submit(new Callable<IOException>() {
+			public IOException call() {
+				try {
+					block.deflate(level);
+				} catch (IOException ex) {
+					return ex;
+				}
+
+				return null;
+			}
+		});
+		pending.add(block);
+	}
+
+	/**
+	 * Wait for the oldest task, and write its output.
+	**/
+	private void writeOldest() throws IOException {
+		Block block = pending.removeFirst();
+
+		TaskPool.await(block.future);
+
+		if (zlib && !started)
+			writeHeader();
+
+		started = true;
+		out.write(block.output, 0, block.outputLen);
+		adler = combineAdler32(adler, block.adler, block.inputLen);
+		block.release(pool);
+	}
+
+	/**
+	 * Write the two byte ZLIB header, as Deflater does.
+	**/
+	private void writeHeader() throws IOException {
+		int flevel;
+
+		if (level == Deflater.DEFAULT_COMPRESSION) flevel = 2;
+		else if (level < 2) flevel = 0;
+		else if (level < 6) flevel = 1;
+		else if (level == 6) flevel = 2;
+		else flevel = 3;
+
+		// 32 kB window, deflate.
+		int header = (0x78 << 8) | (flevel << 6);
+
+		header += 31 - header % 31;
+		out.write(header >> 8);
+		out.write(header);
+	}
+
+	/**
+	 * Return the Adler-32 checksum of two sequences from theirs, like
+	 * adler32_combine() of zlib.
+	 *
+	 * @param len2 the length of the second sequence.
+	**/
+	static long combineAdler32(long adler1, long adler2, long len2) {
+		final long BASE = 65521;
+		long rem = len2 % BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % BASE;
+
+		sum1 += (adler2 & 0xFFFF) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + BASE - rem;
+
+		if (sum1 >= BASE) sum1 -= BASE;
+		if (sum1 >= BASE) sum1 -= BASE;
+		if (sum2 >= (BASE << 1)) sum2 -= (BASE << 1);
+		if (sum2 >= BASE) sum2 -= BASE;
+
+		return (sum2 << 16) | sum1;
+	}
+
+	private static Method getDeflateMethod() {
+		try {
+			return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * A block of input, and its output once deflated.
+	**/
+	private static class Block {
+		public final byte[] input;
+		public final int inputLen;
+		public final byte[] dictionary;
+		public final boolean last;
+		public Future<IOException> future;
+		public byte[] output;
+		public int outputLen;
+		public long adler;
+
+		public Block(byte[] input, int inputLen, byte[] dictionary, boolean last) {
+			this.input = input;
+			this.inputLen = inputLen;
+			this.dictionary = dictionary;
+			this.last = last;
+		}
+
+		/**
+		 * Deflate the input, ending with a sync flush, or the end of the
+		 * stream if last.
+		**/
+		public void deflate(int level) throws IOException {
+			Deflater deflater = new Deflater(level, true);
+
+			try {
+				if (dictionary != null)
+					deflater.setDictionary(dictionary);
+
+				deflater.setInput(input, 0, inputLen);
+
+				if (last)
+					deflater.finish();
+
+				// Room for incompressible data, most of the time.
+				output = BufferPool.getInstance().borrow(inputLen + (inputLen >> 8) + 64);
+
+				for (;;) {
+					if (outputLen == output.length) {
+						byte[] b = new byte[output.length * 2];
+
+						System.arraycopy(output, 0, b, 0, outputLen);
+						BufferPool.getInstance().release(output);
+						output = b;
+					}
+
+					int room = output.length - outputLen;
+					int n;
+
+					if (last)
+						n = deflater.deflate(output, outputLen, room);
+					else
+						n = (Integer) DEFLATE.invoke(deflater, output, outputLen, room, SYNC_FLUSH);
+
+					outputLen += n;
+
+					// A sync flush is done when it leaves room.
+					if (last ? deflater.finished() : n < room) break;
+				}
+
+				Adler32 checksum = new Adler32();
+
+				checksum.update(input, 0, inputLen);
+				adler = checksum.getValue();
+			} catch (Exception ex) {
+				// From the reflective call.
+				throw new IOException(ex);
+			} finally {
+				deflater.end();
+			}
+		}
+
+		public void release(BufferPool pool) {
+			if (input != null) pool.release(input);
+			if (output != null) pool.release(output);
+		}
+	}
+}
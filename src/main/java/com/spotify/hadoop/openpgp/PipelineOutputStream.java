@@ -0,0 +1,235 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import static java.lang.Math.*;
+
+
+/**
+ * An output stream handing its data to another thread, which writes it
+ * to the underlying stream.
+ *
+ * Putting one in front of each stage of a stream chain lets the stages
+ * run at the same time, on their own threads. Writes are gathered in
+ * BLOCK_SIZE buffers from the shared BufferPool, and at most DEPTH full
+ * buffers wait for the other thread; beyond that, writes block. The
+ * underlying stream sees the same bytes in the same order, so the output
+ * is unchanged.
+ *
+ * flush() returns when the underlying stream has been written and
+ * flushed. close() waits for all data to be written, but does not close
+ * the underlying stream, like the Bouncy Castle streams. A failure of the
+ * underlying stream is thrown by the next call on this one.
+ *
+ * The threads come from TaskPool.STREAM_EXECUTOR.
+**/
+class PipelineOutputStream extends OutputStream {
+	/// Bytes handed over at a time.
+	static final int BLOCK_SIZE = 1 << 16;
+
+	/// Full buffers waiting for the other thread.
+	static final int DEPTH = 4;
+
+	private static final Block END = new Block(null, 0);
+	private static final Block FLUSH = new Block(null, 0);
+
+	private final OutputStream out;
+	private final BufferPool pool = BufferPool.getInstance();
+	private final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(DEPTH);
+	private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(DEPTH + 1);
+	private final Semaphore flushed = new Semaphore(0);
+	private final Future<?> consumer;
+	private volatile Throwable failure;
+	private byte[] buf;
+	private int bufLen;
+	private boolean closed;
+	/// END has been handed over, so the other thread stops.
+	private boolean ended;
+	private final byte[] oneByte = new byte[1];
+
+	public PipelineOutputStream(OutputStream out) {
+		this.out = out;
+
+		for (int i = 0; i < DEPTH + 1; ++i)
+			free.add(pool.borrow(BLOCK_SIZE));
+
+		this.buf = free.poll();
+		this.consumer = TaskPool.STREAM_EXECUTOR.submit(new Runnable() {
+			public void run() {
+				consume();
+			}
+		});
+	}
+
+	public void write(int b) throws IOException {
+		oneByte[0] = (byte) b;
+		write(oneByte, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) throw new IOException("stream closed");
+
+		while (len > 0) {
+			if (bufLen == buf.length)
+				handOver();
+
+			int n = min(len, buf.length - bufLen);
+
+			System.arraycopy(b, off, buf, bufLen, n);
+			bufLen += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void flush() throws IOException {
+		if (closed) return;
+
+		if (bufLen > 0)
+			handOver();
+
+		try {
+			queue.put(FLUSH);
+			flushed.acquire();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("interrupted while flushing");
+		}
+
+		checkFailure();
+	}
+
+	public void close() throws IOException {
+		if (closed) return;
+
+		closed = true;
+
+		try {
+			if (bufLen > 0 && failure == null) {
+				queue.put(new Block(buf, bufLen));
+				buf = null;
+			}
+
+			queue.put(END);
+			ended = true;
+			consumer.get();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("interrupted while closing");
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		} finally {
+			releaseBuffers();
+		}
+
+		checkFailure();
+	}
+
+	/**
+	 * Stop the other thread without waiting for it, and drop any data
+	 * not yet written.
+	 *
+	 * For cleaning up after a failure, including a close() that was
+	 * interrupted. Does nothing once the other thread has been told to
+	 * end.
+	**/
+	void abort() {
+		if (ended || consumer.isDone()) return;
+
+		closed = true;
+
+		if (failure == null)
+			failure = new IOException("aborted");
+
+		// The dropped buffers are left to the garbage collector.
+		queue.clear();
+		ended = queue.offer(END);
+	}
+
+	private void handOver() throws IOException {
+		checkFailure();
+
+		try {
+			queue.put(new Block(buf, bufLen));
+			buf = free.take();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("interrupted while writing");
+		}
+
+		bufLen = 0;
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable t = failure;
+
+		if (t == null) return;
+		if (t instanceof IOException) throw (IOException) t;
+
+		throw new IOException(t);
+	}
+
+	/**
+	 * Write the handed over blocks to the underlying stream, until the
+	 * end.
+	 *
+	 * After a failure, blocks are only given back.
+	**/
+	private void consume() {
+		for (;;) {
+			Block block;
+
+			try {
+				block = queue.take();
+			} catch (InterruptedException ex) {
+				failure = new InterruptedIOException("interrupted while writing");
+
+				continue;
+			}
+
+			if (block == END) return;
+
+			try {
+				if (failure == null) {
+					if (block == FLUSH)
+						out.flush();
+					else
+						out.write(block.buf, 0, block.len);
+				}
+			} catch (Throwable t) {
+				failure = t;
+			}
+
+			if (block == FLUSH)
+				flushed.release();
+			else
+				free.add(block.buf);
+		}
+	}
+
+	private void releaseBuffers() {
+		if (buf != null) {
+			pool.release(buf);
+			buf = null;
+		}
+
+		for (byte[] b = free.poll(); b != null; b = free.poll())
+			pool.release(b);
+	}
+
+	/**
+	 * A buffer handed over, with the number of bytes used.
+	**/
+	private static class Block {
+		public final byte[] buf;
+		public final int len;
+
+		public Block(byte[] buf, int len) {
+			this.buf = buf;
+			this.len = len;
+		}
+	}
+}
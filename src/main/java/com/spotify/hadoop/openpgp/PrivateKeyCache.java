@@ -0,0 +1,151 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchProviderException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+
+/**
+ * A bounded cache of unlocked private keys.
+ *
+ * Extracting a private key runs the S2K pass phrase derivation and
+ * decrypts the secret key packet, which is expensive compared to
+ * decrypting a small file. Keys are cached by secret key ring path,
+ * key ID and pass phrase, and are evicted when they are older than the
+ * TTL given at lookup, when the size or modification time of the secret
+ * key ring changed since they were unlocked, as with the key ring cache
+ * of GnuPgUtils, or when the cache is full (least recently used first.)
+ *
+ * The pass phrase is part of the cache key, so a configuration with the
+ * wrong pass phrase can never use a key unlocked by someone else.
+**/
+public class PrivateKeyCache {
+	/// The default number of keys in the shared cache.
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final PrivateKeyCache INSTANCE = new PrivateKeyCache(DEFAULT_CAPACITY);
+
+	private final Map<CacheKey, Entry> entries;
+
+	/**
+	 * Construct a new, empty cache.
+	 *
+	 * @param capacity the maximum number of keys to keep.
+	**/
+	public PrivateKeyCache(final int capacity) {
+		entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Return the cache shared by all decompressors in this process.
+	**/
+	public static PrivateKeyCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Return an unlocked private key, extracting it if needed.
+	 *
+	 * @param secring the secret key ring file.
+	 * @param id the key ID.
+	 * @param passPhrase the pass phrase of the secret key.
+	 * @param ttl the maximum age in milliseconds of a cached key.
+	 *            Zero disables the cache.
+	**/
+	public PGPPrivateKey getPrivateKey(File secring, long id, String passPhrase, long ttl) throws IOException, PGPException, NoSuchProviderException {
+		CacheKey ck = new CacheKey(secring.getAbsolutePath(), id, passPhrase);
+		long now = System.nanoTime();
+		// Stat before unlocking, so a concurrent change causes an unlock
+		// on the next lookup.
+		long size = secring.length();
+		long mtime = secring.lastModified();
+
+		synchronized (this) {
+			Entry entry = entries.get(ck);
+
+			if (entry != null) {
+				if (now - entry.created < ttl * 1000000L && entry.size == size && entry.mtime == mtime)
+					return entry.key;
+
+				entries.remove(ck);
+			}
+		}
+
+		// Unlock outside the lock. Concurrent misses on the same key
+		// just do the work twice.
+		PGPPrivateKey key = GnuPgUtils.getPrivateKey(
+			GnuPgUtils.getSecretKeyRingCollection(secring),
+			id,
+			passPhrase);
+
+		if (ttl > 0) {
+			synchronized (this) {
+				entries.put(ck, new Entry(key, now, size, mtime));
+			}
+		}
+
+		return key;
+	}
+
+	/**
+	 * Return the number of cached keys, including expired ones.
+	**/
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Forget all cached keys.
+	**/
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	private static class CacheKey {
+		private final String path;
+		private final long id;
+		private final String passPhrase;
+
+		public CacheKey(String path, long id, String passPhrase) {
+			this.path = path;
+			this.id = id;
+			this.passPhrase = passPhrase;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof CacheKey)) return false;
+
+			CacheKey ck = (CacheKey) o;
+
+			return path.equals(ck.path) && id == ck.id && passPhrase.equals(ck.passPhrase);
+		}
+
+		public int hashCode() {
+			return path.hashCode() ^ (int) (id ^ (id >>> 32));
+		}
+	}
+
+	private static class Entry {
+		public final PGPPrivateKey key;
+		public final long created;
+		/// Of the secret key ring, when the key was unlocked.
+		public final long size;
+		public final long mtime;
+
+		public Entry(PGPPrivateKey key, long created, long size, long mtime) {
+			this.key = key;
+			this.created = created;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.spotify.hadoop.openpgp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+
+/**
+ * An index of all keys in a public key ring collection.
+ *
+ * Keys can be looked up by short (8 hex digits) or long (16 hex digits)
+ * key ID, or by fingerprint, in constant time. Other ID lengths are
+ * matched as suffixes of the key ID by scanning all keys.
+ *
+ * Capability and revocation are checked once, when the index is built.
+ * If several keys share a short ID, the first one in the key ring wins,
+ * like GnuPG does.
+**/
+public class PublicKeyIndex {
+	private final PGPPublicKeyRingCollection keyRings;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<Long, Entry> byKeyId = new HashMap<Long, Entry>();
+	private final Map<Integer, Entry> byShortId = new HashMap<Integer, Entry>();
+	private final Map<String, Entry> byFingerprint = new HashMap<String, Entry>();
+
+	/**
+	 * Build an index of the given collection.
+	**/
+	public PublicKeyIndex(PGPPublicKeyRingCollection keyRings) {
+		this.keyRings = keyRings;
+
+		for (Iterator<PGPPublicKeyRing> rit = keyRings.getKeyRings(); rit.hasNext();) {
+			for (Iterator<PGPPublicKey> kit = rit.next().getPublicKeys(); kit.hasNext();) {
+				Entry entry = new Entry(kit.next());
+				long id = entry.key.getKeyID();
+
+				entries.add(entry);
+
+				if (!byKeyId.containsKey(id))
+					byKeyId.put(id, entry);
+
+				if (!byShortId.containsKey((int) id))
+					byShortId.put((int) id, entry);
+
+				byFingerprint.put(toHex(entry.key.getFingerprint()), entry);
+			}
+		}
+	}
+
+	/**
+	 * Return the indexed key ring collection.
+	**/
+	public PGPPublicKeyRingCollection getKeyRings() {
+		return keyRings;
+	}
+
+	/**
+	 * Return the encryption key with the given hex ID or fingerprint.
+	 *
+	 * @param id a key ID suffix or a fingerprint, optionally prefixed by "0x".
+	 * @return a key, or null if id is null.
+	 * @throws KeyNotFoundException if there is no such key.
+	 * @throws IncompatibleKeyException if the key cannot be used for encryption.
+	**/
+	public PGPPublicKey getPublicKey(String id) {
+		if (id == null) return null;
+
+		Entry entry = find(id);
+
+		if (entry == null)
+			throw new KeyNotFoundException("key not found: " + id);
+
+		if (!entry.encryptionKey)
+			throw new IncompatibleKeyException("not an encryption key: " + id);
+
+		if (entry.revoked)
+			throw new IncompatibleKeyException("key is revoked: " + id);
+
+		if (entry.expirationTime != 0 && entry.expirationTime < System.currentTimeMillis())
+			throw new IncompatibleKeyException("key has expired: " + id);
+
+		return entry.key;
+	}
+
+	/**
+	 * Return the number of indexed keys.
+	**/
+	public int size() {
+		return entries.size();
+	}
+
+	private Entry find(String id) {
+		String hex = id.toUpperCase();
+
+		if (hex.startsWith("0X"))
+			hex = hex.substring(2);
+
+		if (hex.length() == 0)
+			return null;
+
+		if (hex.length() > 16)
+			return byFingerprint.get(hex);
+
+		long lid;
+
+		try {
+			lid = parseHex(hex);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		if (hex.length() == 16)
+			return byKeyId.get(lid);
+
+		if (hex.length() == 8)
+			return byShortId.get((int) lid);
+
+		long mask = (1L << (4 * hex.length())) - 1;
+
+		for (Entry entry : entries) {
+			if ((entry.key.getKeyID() & mask) == lid)
+				return entry;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Parse up to 16 hex digits as an unsigned value.
+	**/
+	private static long parseHex(String hex) {
+		long ret = 0;
+
+		for (int i = 0; i < hex.length(); ++i) {
+			int d = Character.digit(hex.charAt(i), 0x10);
+
+			if (d < 0)
+				throw new NumberFormatException("not a hex digit: " + hex);
+
+			ret = (ret << 4) | d;
+		}
+
+		return ret;
+	}
+
+	static String toHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+
+		for (int i = 0; i < b.length; ++i) {
+			sb.append(Character.toUpperCase(Character.forDigit((b[i] >> 4) & 0xF, 0x10)));
+			sb.append(Character.toUpperCase(Character.forDigit(b[i] & 0xF, 0x10)));
+		}
+
+		return sb.toString();
+	}
+
+	private static class Entry {
+		public final PGPPublicKey key;
+		public final boolean encryptionKey;
+		public final boolean revoked;
+		/// Milliseconds since the epoch, or zero if the key never expires.
+		public final long expirationTime;
+
+		public Entry(PGPPublicKey key) {
+			this.key = key;
+			this.encryptionKey = key.isEncryptionKey();
+			this.revoked = key.isRevoked();
+
+			long validSeconds = key.getValidSeconds();
+
+			if (validSeconds > 0)
+				this.expirationTime = key.getCreationTime().getTime() + validSeconds * 1000;
+			else
+				this.expirationTime = 0;
+		}
+	}
+}
@@ -17,13 +17,24 @@ import org.apache.hadoop.io.compress.Compressor;
  * Configuration entries used:
  *
  *  * spotify.hadoop.openpgp.streamCompressor.initialBufferSize
+ *  * spotify.hadoop.openpgp.streamCompressor.maxBufferSize
  *
- * An infinite buffer is used to store things that are written by the stream
- * chain. It is hopefully bounded by the finite things given to setInput(). If
- * we were to use a blocking SelfOutputStream#write(), we would have to spawn
+ * A ring buffer is used to store things that are written by the stream
+ * chain while there is no room left in the output of compress(). Input is
+ * fed to the chain in pieces no larger than the room available, and
+ * needsInput() returns false while the buffer is full, so it stays close
+ * to the maximum size. It is a soft limit: a single write by the chain,
+ * such as the final flush on close, may still enlarge it further. If we
+ * were to use a blocking SelfOutputStream#write(), we would have to spawn
  * a new thread to drive that.
+ *
+ * The buffer is borrowed from the shared BufferPool when first needed,
+ * and given back by end().
 **/
 public abstract class StreamCompressor implements Compressor {
+	/// Default for spotify.hadoop.openpgp.streamCompressor.maxBufferSize.
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1 << 16;
+
 	private OutputStream stream;
 	private Configuration conf;
 
@@ -36,8 +47,10 @@ public abstract class StreamCompressor implements Compressor {
 	private int outputLen;
 
 	private byte[] bufferBytes;
+	private final int initialBufferSize;
 	private int bufferOff;
 	private int bufferLen;
+	private final int maxBufferSize;
 
 	private int numBytesRead;
 	private int numBytesWritten;
@@ -47,11 +60,13 @@ public abstract class StreamCompressor implements Compressor {
 	/**
 	 * Construct a new stream compressor.
 	 *
-	 * This will call the createOutputStream() function to construct a
-	 * stream.
+	 * The stream is constructed by createOutputStream() on the first call
+	 * to compress(), so subclass constructors may initialize state it
+	 * depends on.
 	 *
-	 * The initial buffer size is read from configuration entry
-	 * spotify.hadoop.openpgp.streamCompressor.initialBufferSize.
+	 * The initial and maximum buffer sizes are read from configuration
+	 * entries spotify.hadoop.openpgp.streamCompressor.initialBufferSize
+	 * and spotify.hadoop.openpgp.streamCompressor.maxBufferSize.
 	**/
 	public StreamCompressor(Configuration conf) throws IOException {
 		this(conf, conf.getInt("spotify.hadoop.openpgp.streamCompressor.initialBufferSize", 1024));
@@ -60,15 +75,28 @@ public abstract class StreamCompressor implements Compressor {
 	/**
 	 * Construct a new stream compressor.
 	 *
-	 * This will call the createOutputStream() function to construct a
-	 * stream.
+	 * The maximum buffer size is read from configuration entry
+	 * spotify.hadoop.openpgp.streamCompressor.maxBufferSize.
 	 *
 	 * @param initialBufferSize the initial size of the buffer, enlarged as needed.
 	**/
 	public StreamCompressor(Configuration conf, int initialBufferSize) throws IOException {
+		this(conf, initialBufferSize, conf.getInt("spotify.hadoop.openpgp.streamCompressor.maxBufferSize", DEFAULT_MAX_BUFFER_SIZE));
+	}
+
+	/**
+	 * Construct a new stream compressor.
+	 *
+	 * @param initialBufferSize the initial size of the buffer, enlarged as needed.
+	 * @param maxBufferSize the size of the buffer above which no more input is accepted.
+	**/
+	public StreamCompressor(Configuration conf, int initialBufferSize, int maxBufferSize) throws IOException {
+		if (initialBufferSize < 1 || maxBufferSize < 1)
+			throw new IllegalArgumentException("buffer sizes must be positive");
+
 		reinit(conf);
-		bufferBytes = new byte[initialBufferSize];
-		this.stream = createOutputStream(new SelfOutputStream());
+		this.initialBufferSize = min(initialBufferSize, maxBufferSize);
+		this.maxBufferSize = maxBufferSize;
 	}
 
 	public void setInput(byte[] b, int off, int len) {
@@ -78,7 +106,7 @@ public abstract class StreamCompressor implements Compressor {
 	}
 
 	public boolean needsInput() {
-		return inputLen == 0 && !hasFinished;
+		return inputLen == 0 && !hasFinished && bufferLen < maxBufferSize;
 	}
 
 	public void setDictionary(byte[] b, int off, int len) {
@@ -102,12 +130,12 @@ public abstract class StreamCompressor implements Compressor {
 	}
 
 	public int compress(byte[] b, int off, int len) throws IOException {
-		int n = min(len, bufferLen);
+		if (stream == null)
+			stream = createOutputStream(new SelfOutputStream());
 
 		// Try to draw as much as possible from the buffer.
-		System.arraycopy(bufferBytes, bufferOff, b, off, n);
-		bufferLen -= n;
-		bufferOff += n;
+		int n = readBuffer(b, off, len);
+
 		len -= n;
 		off += n;
 		numBytesWritten += n;
@@ -122,13 +150,18 @@ public abstract class StreamCompressor implements Compressor {
 		outputOff = off;
 		outputLen = len;
 
-		stream.write(inputBytes, inputOff, inputLen);
-		numBytesRead += inputLen;
-		inputLen = 0;
+		// Feed no more input than there is room for, uncompressed,
+		// so the buffer stays within its maximum size.
+		int m = min(inputLen, len + maxBufferSize);
+
+		stream.write(inputBytes, inputOff, m);
+		numBytesRead += m;
+		inputOff += m;
+		inputLen -= m;
 
 		// If the user has called finish(), we don't expect more
 		// data. Close the stream to force it to finish writing.
-		if (hasFinished) {
+		if (hasFinished && inputLen == 0) {
 			streamClosed = true;
 			stream.close();
 		}
@@ -140,11 +173,23 @@ public abstract class StreamCompressor implements Compressor {
 		return n + len - outputLen;
 	}
 
+	/**
+	 * Prepare for a new stream.
+	 *
+	 * An unfinished stream chain is dropped, and a new one is created by
+	 * the next call to compress(). The buffer is kept.
+	**/
 	public void reinit(Configuration conf) {
 		this.conf = conf;
+		stream = null;
 		inputLen = 0;
+		bufferOff = 0;
 		bufferLen = 0;
 		outputBytes = null;
+		numBytesRead = 0;
+		numBytesWritten = 0;
+		hasFinished = false;
+		streamClosed = false;
 	}
 
 	public void reset() {
@@ -155,10 +200,16 @@ public abstract class StreamCompressor implements Compressor {
 		try {
 			if (!streamClosed) {
 				streamClosed = true;
-				stream.close();
+
+				if (stream != null)
+					stream.close();
 			}
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
+		} finally {
+			BufferPool.getInstance().release(bufferBytes);
+			bufferBytes = null;
+			bufferLen = 0;
 		}
 	}
 
@@ -166,6 +217,65 @@ public abstract class StreamCompressor implements Compressor {
 		return conf;
 	}
 
+	/**
+	 * Return the number of bytes waiting in the buffer.
+	**/
+	int getBufferLength() {
+		return bufferLen;
+	}
+
+	/**
+	 * Move bytes from the beginning of the ring buffer to b.
+	 *
+	 * @return the number of bytes moved.
+	**/
+	private int readBuffer(byte[] b, int off, int len) {
+		if (bufferLen == 0) return 0;
+
+		int n = min(len, bufferLen);
+		int first = min(n, bufferBytes.length - bufferOff);
+
+		System.arraycopy(bufferBytes, bufferOff, b, off, first);
+		System.arraycopy(bufferBytes, 0, b, off + first, n - first);
+		bufferOff = (bufferOff + n) % bufferBytes.length;
+		bufferLen -= n;
+
+		return n;
+	}
+
+	/**
+	 * Append bytes to the end of the ring buffer, enlarging it if needed.
+	**/
+	private void writeBuffer(byte[] b, int off, int len) {
+		if (bufferBytes == null) {
+			bufferBytes = BufferPool.getInstance().borrow(max(initialBufferSize, len));
+			bufferOff = 0;
+		} else if (bufferLen + len > bufferBytes.length) {
+			// Allocate larger buffer, preferably not above the maximum.
+			int n = bufferBytes.length * 2;
+
+			while (n < bufferLen + len)
+				n *= 2;
+
+			if (n > maxBufferSize)
+				n = max(maxBufferSize, bufferLen + len);
+
+			byte[] newBytes = BufferPool.getInstance().borrow(n);
+
+			bufferLen = readBuffer(newBytes, 0, bufferLen);
+			bufferOff = 0;
+			BufferPool.getInstance().release(bufferBytes);
+			bufferBytes = newBytes;
+		}
+
+		int tail = (bufferOff + bufferLen) % bufferBytes.length;
+		int first = min(len, bufferBytes.length - tail);
+
+		System.arraycopy(b, off, bufferBytes, tail, first);
+		System.arraycopy(b, off + first, bufferBytes, 0, len - first);
+		bufferLen += len;
+	}
+
 	/**
 	 * Abstract method to create the output stream chain.
 	 *
@@ -179,6 +289,8 @@ public abstract class StreamCompressor implements Compressor {
 	 * An output stream writing to outputBytes, falling back to bufferBytes.
 	**/
 	private class SelfOutputStream extends OutputStream {
+		private final byte[] oneByte = new byte[1];
+
 		public void close() throws IOException {
 			// If the stream is closed, we don't expect more bytes to come.
 			finish();
@@ -202,27 +314,7 @@ public abstract class StreamCompressor implements Compressor {
 				if (len == 0) return;
 			}
 
-			if (bufferLen + len > bufferBytes.length) {
-				// Allocate larger buffer.
-				int n = bufferBytes.length * 2;
-
-				while (n < bufferLen + len)
-					n *= 2;
-
-				byte[] newBytes = new byte[n];
-
-				System.arraycopy(bufferBytes, bufferOff, newBytes, 0, bufferLen);
-				bufferBytes = newBytes;
-			} else if (bufferOff > 0) {
-				// Shift buffer to beginning.
-				System.arraycopy(bufferBytes, bufferOff, bufferBytes, 0, bufferLen);
-			}
-
-			// Write to buffer. Always write at bufferOff since
-			// we don't have a ring buffer.
-			bufferOff = 0;
-			System.arraycopy(b, off, bufferBytes, bufferLen, len);
-			bufferLen += len;
+			writeBuffer(b, off, len);
 		}
 
 		public void write(int b) throws IOException {
@@ -233,21 +325,8 @@ public abstract class StreamCompressor implements Compressor {
 				return;
 			}
 
-			if (bufferLen == bufferBytes.length) {
-				// Allocate larger buffer.
-				byte[] newBytes = new byte[bufferBytes.length * 2];
-
-				System.arraycopy(bufferBytes, bufferOff, newBytes, 0, bufferLen);
-				bufferBytes = newBytes;
-			} else if (bufferOff > 0) {
-				// Shift buffer to beginning.
-				System.arraycopy(bufferBytes, bufferOff, bufferBytes, 0, bufferLen);
-			}
-
-			// Write to buffer. Always write at bufferOff since
-			// we don't have a ring buffer.
-			bufferOff = 0;
-			bufferBytes[bufferLen++] = (byte) b;
+			oneByte[0] = (byte) b;
+			writeBuffer(oneByte, 0, 1);
 		}
 	}
 }
@@ -0,0 +1,56 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+
+
+/**
+ * A push-based decoder, run on the caller's thread by StreamDecompressor.
+ *
+ * Unlike the InputStream of StreamDecompressor#createInputStream(), a
+ * decoder never blocks waiting for input. It keeps all its parsing state
+ * between calls, so it can stop anywhere in the input and resume once
+ * setInput() has been called again.
+ *
+ * A decoder may give up on a stream it does not support by throwing
+ * UnsupportedStreamException from decode(). It must do so before it has
+ * returned any output for the stream, and getConsumedInput() must then
+ * return everything it has consumed since the last reset().
+**/
+public interface StreamDecoder {
+	/**
+	 * Supply more input. The decoder may keep a reference to the array
+	 * until all of it has been consumed.
+	**/
+	public void setInput(byte[] b, int off, int len);
+
+	/**
+	 * Return the number of input bytes not yet consumed.
+	 *
+	 * These are always the last bytes given to setInput().
+	**/
+	public int getRemaining();
+
+	/**
+	 * Signal that no more input will be supplied.
+	**/
+	public void finish();
+
+	/**
+	 * Decode as much as possible into the given buffer.
+	 *
+	 * @return the number of bytes decoded, zero if more input is needed,
+	 *         or -1 at the end of the stream.
+	**/
+	public int decode(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Forget all input and state, to decode a new stream.
+	**/
+	public void reset();
+
+	/**
+	 * Return the input consumed since the last reset, not counting
+	 * getRemaining().
+	**/
+	public byte[] getConsumedInput();
+}
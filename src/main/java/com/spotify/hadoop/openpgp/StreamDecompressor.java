@@ -2,10 +2,17 @@ package com.spotify.hadoop.openpgp;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import static java.lang.Math.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.Decompressor;
 
@@ -25,43 +32,81 @@ import org.apache.hadoop.io.compress.Decompressor;
  * allocate a separate buffer for storing additional data not consumed by the
  * parameters to compress(). For the InputStream case, we cannot predict what
  * the next read() will return...
+ *
+ * ...unless the format is parsed incrementally. Subclasses can override
+ * createDecoder() to return a StreamDecoder, which is then run on the
+ * caller's thread, and no stream thread is used. If the decoder throws
+ * UnsupportedStreamException, the input it consumed is replayed to the
+ * createInputStream() stream, run in a thread as above.
+ *
+ * The caller and the stream thread take turns, like coroutines, handing
+ * over through a single preallocated slot. The stream thread blocks when it
+ * runs out of input, and decompress() then returns zero, asking for more.
+ * Waiting spins briefly before parking, since the other side usually
+ * answers quickly.
+ *
+ * If getReadAheadSize() returns non-zero, the stream thread instead keeps
+ * reading while input is available, into a ring of that size, and
+ * decompress() drains the ring. Decryption then overlaps with whatever the
+ * caller does with the output, at the cost of a lock per call.
+ *
+ * Stream threads are borrowed from TaskPool.STREAM_EXECUTOR. The thread
+ * does not keep the decompressor reachable, so one that is garbage
+ * collected without end() being called is logged, and its thread
+ * returned.
 **/
 public abstract class StreamDecompressor implements Decompressor {
+	private static final Log LOG = LogFactory.getLog(StreamDecompressor.class);
+
+	/// The stream thread waits for a command.
+	private static final int WAITING = 0;
+	/// The stream thread runs a command, and the caller waits.
+	private static final int RUNNING = 1;
+	/// The stream thread waits for input, in the middle of a read.
+	private static final int NEEDS_INPUT = 2;
+
+	private static final int READ = 0;
+	private static final int RESET = 1;
+	private static final int END = 2;
+
+	/// Number of polls before parking. There is no point spinning on one CPU.
+	private static final int SPIN_COUNT = (Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0);
+
+	/// Owners of running pumps. This keeps the references reachable.
+	private static final Set<Owner> OWNERS = Collections.synchronizedSet(new HashSet<Owner>());
+	private static final ReferenceQueue<StreamDecompressor> COLLECTED = new ReferenceQueue<StreamDecompressor>();
+
 	private Configuration conf;
-	private Thread streamThread;
 
-	private byte[] inputBytes;
-	private int inputOff;
-	private int inputLen;
+	private StreamDecoder decoder;
+	private boolean decoderFinished;
 
-	private BlockingQueue<Action> actionQueue = new LinkedBlockingQueue<Action>();
+	private final Pump pump;
+	/// Set while the pump runs.
+	private Owner owner;
 
 	private int numBytesRead;
 	private int numBytesWritten;
-	private volatile boolean hasFinished;
 
 	public StreamDecompressor(Configuration conf) {
 		this.conf = conf;
-		streamThread = new Thread() {
-			public void run() {
-				pump();
-			}
-		};
-
-		streamThread.setDaemon(true);
-		streamThread.start();
+		this.pump = new Pump(getReadAheadSize());
+		this.decoder = createDecoder();
+		reapCollected();
 	}
 
 	public void setInput(byte[] b, int off, int len) {
-		synchronized (streamThread) {
-			inputBytes = b;
-			inputOff = off;
-			inputLen = len;
-		}
+		if (decoder != null)
+			decoder.setInput(b, off, len);
+
+		pump.setInput(b, off, len);
 	}
 
 	public boolean needsInput() {
-		return inputLen == 0 && !hasFinished;
+		if (decoder != null)
+			return decoder.getRemaining() == 0 && !decoderFinished;
+
+		return pump.needsInput();
 	}
 
 	public boolean needsDictionary() {
@@ -81,47 +126,82 @@ public abstract class StreamDecompressor implements Decompressor {
 	}
 
 	public int getRemaining() {
-		return inputLen;
+		if (decoder != null)
+			return decoder.getRemaining();
+
+		return pump.getRemaining();
 	}
 
 	public void finish() {
-		hasFinished = true;
+		if (decoder != null)
+			decoder.finish();
+
+		pump.finish();
 	}
 
 	public boolean finished() {
-		return hasFinished && inputLen == 0;
+		if (decoder != null)
+			return decoderFinished;
+
+		return pump.finished();
 	}
 
 	public int decompress(byte[] b, int off, int len) throws IOException {
-		try {
-			return (int) (Integer) execute(new Action(b, off, len, false));
-		} catch (InterruptedException ex) {
-			throw new IOException(ex);
+		if (decoder != null) {
+			try {
+				int n = decoder.decode(b, off, len);
+
+				if (n < 0) {
+					decoderFinished = true;
+
+					return 0;
+				}
+
+				return n;
+			} catch (UnsupportedStreamException ex) {
+				// Give up on the decoder, and continue with the stream.
+				pump.replay(decoder.getConsumedInput(), decoder.getRemaining());
+				decoder = null;
+			}
 		}
+
+		if (owner == null) {
+			reapCollected();
+			owner = new Owner(this);
+			OWNERS.add(owner);
+			pump.start(owner);
+		}
+
+		return pump.read(b, off, len);
 	}
 
 	public void reinit(Configuration conf) {
+		pump.reset();
 		this.conf = conf;
-
-		try {
-			execute(new Action(null, 0, 0, true));
-		} catch (InterruptedException ex) {
-			throw new RuntimeException(ex);
-		}
+		this.decoder = createDecoder();
+		decoderFinished = false;
 	}
 
 	public void reset() {
+		if (decoder != null) {
+			decoder.reset();
+			decoderFinished = false;
+			pump.reset();
+
+			return;
+		}
+
 		reinit(conf);
 	}
 
 	public void end() {
-		try {
-			actionQueue.put(new Action(null, -1, -1, false));
-			streamThread.join();
-			streamThread = null;
-		} catch (InterruptedException ex) {
-			throw new RuntimeException(ex);
-		}
+		if (owner == null)
+			return;
+
+		pump.end();
+		OWNERS.remove(owner);
+		owner.clear();
+		owner = null;
 	}
 
 	protected Configuration getConf() {
@@ -130,146 +210,668 @@ public abstract class StreamDecompressor implements Decompressor {
 
 	protected abstract InputStream createInputStream(InputStream out) throws IOException;
 
-	private Object execute(Action a) throws InterruptedException {
-		actionQueue.put(a);
+	/**
+	 * Return a decoder to run on the caller's thread instead of the
+	 * createInputStream() stream, or null.
+	 *
+	 * Called on construction and reinit(), after the configuration has
+	 * been set. The default implementation returns null.
+	**/
+	protected StreamDecoder createDecoder() {
+		return null;
+	}
 
-		return a.waitForResult();
+	/**
+	 * Return the size of the read-ahead ring, or zero to only read when
+	 * decompress() is called.
+	 *
+	 * Called on construction, after the configuration has been set. The
+	 * default implementation returns zero. Read-ahead only applies to the
+	 * createInputStream() stream, not to decoders.
+	**/
+	protected int getReadAheadSize() {
+		return 0;
 	}
 
-	private void pump() {
-		InputStream stream = null;
+	// Default protection, for unit tests.
+	static int getRunningPumpCount() {
+		reapCollected();
 
-		try {
-			for (;;) {
-				Action a = actionQueue.take();
+		return OWNERS.size();
+	}
 
-				if (a.isEnd()) break;
+	/**
+	 * Stop the pumps of decompressors garbage collected without end().
+	**/
+	private static void reapCollected() {
+		for (Reference<? extends StreamDecompressor> ref; (ref = COLLECTED.poll()) != null;) {
+			Owner owner = (Owner) ref;
 
-				if (stream == null || a.wantsNewStream()) {
-					if (stream != null)
-						stream.close();
+			if (OWNERS.remove(owner)) {
+				LOG.warn(owner.name + " was garbage collected without end() being called");
+				owner.pump.abandon();
+			}
+		}
+	}
 
-					stream = createInputStream(new SelfInputStream());
+	private static void rethrow(Throwable ex) throws IOException {
+		if (ex instanceof IOException) throw (IOException) ex;
+		if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+		throw (Error) ex;
+	}
+
+	/**
+	 * A weak reference to a decompressor with a running pump.
+	**/
+	private static class Owner extends WeakReference<StreamDecompressor> {
+		public final Pump pump;
+		public final String name;
+
+		public Owner(StreamDecompressor decompressor) {
+			super(decompressor, COLLECTED);
+			this.pump = decompressor.pump;
+			this.name = decompressor.getClass().getName();
+		}
+	}
+
+	/**
+	 * Thrown in the stream thread, to abandon a read waiting for input
+	 * when the caller wants something else.
+	**/
+	private static class CommandPendingException extends IOException {
+	}
+
+	/**
+	 * The stream thread side of the decompressor, and the input it reads.
+	 *
+	 * This holds no strong reference to the decompressor.
+	**/
+	private static class Pump implements Runnable {
+		private final int readAheadSize;
+		private Owner owner;
+		private volatile Thread thread;
+
+		/// Input consumed by the decoder, to be read again by the stream.
+		private byte[] replayBytes;
+		private int replayOff;
+
+		private byte[] inputBytes;
+		private int inputOff;
+		private int inputLen;
+		private boolean hasFinished;
+
+		// The handoff slot. All other fields are published by writes to state.
+		private volatile int state = WAITING;
+		private Thread caller;
+		private int command;
+		private int requestLen;
+		private int result;
+		private Throwable failure;
+
+		/// The stream thread reads into this, since the caller's buffer may change while it waits for input.
+		private byte[] outBytes = new byte[0];
+		private int outOff;
+		private int outLen;
+		private boolean streamEnded;
+
+		// In read-ahead mode, these and the input fields are guarded by this.
+		private byte[] ring;
+		private int ringHead;
+		private int ringCount;
+		private boolean streamWaiting;
+		private boolean readAheadEnded;
+		private boolean done;
+
+		public Pump(int readAheadSize) {
+			this.readAheadSize = readAheadSize;
+		}
+
+		public void start(Owner owner) {
+			this.owner = owner;
+
+			if (readAheadSize > 0)
+				ring = new byte[readAheadSize];
+
+			TaskPool.STREAM_EXECUTOR.execute(this);
+		}
+
+		public void setInput(byte[] b, int off, int len) {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					inputBytes = b;
+					inputOff = off;
+					inputLen = len;
+					notifyAll();
 				}
+			} else {
+				inputBytes = b;
+				inputOff = off;
+				inputLen = len;
+			}
+		}
 
-				if (a.hasBuffer())
-					a.setResult(Integer.valueOf(stream.read(a.getBytes(), a.getOffset(), a.getLength())));
-				else
-					a.setResult();
+		public boolean needsInput() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					return ringCount == 0 && inputLen == 0 && replayBytes == null && !hasFinished && !readAheadEnded && (owner == null || streamWaiting);
+				}
 			}
-		} catch (InterruptedException ex) {
-			ex.printStackTrace();
-			// This will cause setInput() to fail.
-			streamThread = null;
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			// This will cause setInput() to fail.
-			streamThread = null;
-		} finally {
-			if (stream != null) {
-				try {
-					stream.close();
-				} catch (IOException ex) {
+
+			return inputLen == 0 && replayBytes == null && outLen == 0 && !hasFinished && !streamEnded;
+		}
+
+		public int getRemaining() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					return inputLen;
 				}
 			}
+
+			return inputLen;
+		}
+
+		public void finish() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					hasFinished = true;
+					notifyAll();
+				}
+			} else {
+				hasFinished = true;
+			}
 		}
-	}
 
-	private class SelfInputStream extends InputStream {
-		public void close() throws IOException {
-			finish();
+		public boolean finished() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					return ringCount == 0 && readAheadEnded;
+				}
+			}
+
+			return outLen == 0 && (streamEnded || (hasFinished && inputLen == 0));
 		}
 
-		public int available() throws IOException {
-			return getRemaining();
+		/**
+		 * Make the stream read consumed bytes before the remaining input.
+		**/
+		public synchronized void replay(byte[] consumed, int remaining) {
+			replayBytes = (consumed.length > 0 ? consumed : null);
+			replayOff = 0;
+			inputOff += inputLen - remaining;
+			inputLen = remaining;
+			notifyAll();
 		}
 
+		/**
+		 * Return output from the stream.
+		 *
+		 * @return the number of bytes, or zero if the stream needs input
+		 *         or has ended.
+		**/
 		public int read(byte[] b, int off, int len) throws IOException {
-			if (inputLen == 0 && hasFinished)
-				return -1;
+			if (readAheadSize > 0)
+				return drainRing(b, off, len);
 
-			int n = min(len, inputLen);
+			if (outLen == 0) {
+				if (streamEnded || len == 0) return 0;
 
-			System.arraycopy(inputBytes, inputOff, b, off, n);
-			inputLen -= n;
-			inputOff += n;
+				if (state == NEEDS_INPUT) {
+					if (inputLen == 0 && !hasFinished) return 0;
+				} else {
+					// Only change the request between reads.
+					if (outBytes.length < len)
+						outBytes = new byte[len];
+
+					requestLen = len;
+				}
+
+				post(READ);
+
+				if (state == NEEDS_INPUT) return 0;
+
+				if (failure != null) {
+					Throwable ex = failure;
+
+					failure = null;
+					rethrow(ex);
+				}
+
+				if (result < 0) {
+					streamEnded = true;
+
+					return 0;
+				}
+
+				outOff = 0;
+				outLen = result;
+			}
+
+			int n = min(len, outLen);
+
+			System.arraycopy(outBytes, outOff, b, off, n);
+			outOff += n;
+			outLen -= n;
 
 			return n;
 		}
 
-		public int read() throws IOException {
-			if (inputLen == 0)
-				return -1;
+		/**
+		 * Start over with a new stream, and forget all input.
+		**/
+		public void reset() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					inputLen = 0;
+					replayBytes = null;
+
+					if (owner == null) {
+						hasFinished = false;
+
+						return;
+					}
+
+					command = RESET;
+					notifyAll();
+
+					try {
+						while (command == RESET)
+							wait();
+					} catch (InterruptedException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
 
-			byte b = inputBytes[inputOff + inputLen--];
-			inputOff += 1;
+				return;
+			}
 
-			return (b < 0 ? 256 + b : b);
+			// Closing the old stream calls finish(), so do it first.
+			if (owner != null) {
+				post(RESET);
+				failure = null;
+			}
+
+			replayBytes = null;
+			inputLen = 0;
+			outLen = 0;
+			streamEnded = false;
+			hasFinished = false;
 		}
-	}
 
-	private static class Action {
-		private byte[] bytes;
-		private int off;
-		private int len;
-		private boolean recreateStream;
-		private Object result;
-
-		public Action(byte[] bytes, int off, int len, boolean recreateStream) {
-			this.bytes = bytes;
-			this.off = off;
-			this.len = len;
-			this.recreateStream = recreateStream;
+		/**
+		 * Stop the stream thread, and wait for it.
+		**/
+		public void end() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					command = END;
+					notifyAll();
+
+					try {
+						while (!done)
+							wait();
+					} catch (InterruptedException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			} else {
+				post(END);
+			}
+
+			owner = null;
 		}
 
-		public String toString() {
-			return "[" + getClass().getName() +
-				": bytes=" + bytes +
-				", off=" + off +
-				", len=" + len +
-				", recreateStream=" + recreateStream +
-				", result=" + result +
-				"]";
+		/**
+		 * Stop the stream thread, without waiting.
+		 *
+		 * Only used once the decompressor is gone, so the caller is not
+		 * waiting for a turn.
+		**/
+		public void abandon() {
+			if (readAheadSize > 0) {
+				synchronized (this) {
+					command = END;
+					notifyAll();
+				}
+			} else {
+				command = END;
+				caller = null;
+				state = RUNNING;
+				LockSupport.unpark(thread);
+			}
 		}
 
-		public byte[] getBytes() {
-			return bytes;
+		public void run() {
+			thread = Thread.currentThread();
+
+			try {
+				if (readAheadSize > 0)
+					readAhead();
+				else
+					pump();
+			} finally {
+				thread = null;
+			}
 		}
 
-		public int getOffset() {
-			return off;
+		/**
+		 * Create the stream, if the decompressor is still around.
+		 *
+		 * This is a separate function, so the stream thread does not keep
+		 * the decompressor reachable afterwards.
+		**/
+		private InputStream createInputStream() throws IOException {
+			StreamDecompressor decompressor = owner.get();
+
+			if (decompressor == null)
+				throw new IOException("decompressor was garbage collected");
+
+			return decompressor.createInputStream(new SelfInputStream());
 		}
 
-		public int getLength() {
-			return len;
+		/**
+		 * Hand a command to the stream thread, and wait until it is done
+		 * or needs input.
+		**/
+		private void post(int command) {
+			this.command = command;
+			caller = Thread.currentThread();
+			state = RUNNING;
+			LockSupport.unpark(thread);
+
+			for (int i = 0; state == RUNNING; ++i) {
+				if (i >= SPIN_COUNT)
+					LockSupport.park(this);
+			}
 		}
 
-		public boolean hasBuffer() {
-			return bytes != null;
+		/**
+		 * Called by the stream thread to hand the turn back to the caller,
+		 * and wait for the next command.
+		**/
+		private void handBack(int newState) {
+			state = newState;
+			LockSupport.unpark(caller);
+			awaitCommand();
 		}
 
-		public boolean isEnd() {
-			return len == -1;
+		private void awaitCommand() {
+			for (int i = 0; state != RUNNING; ++i) {
+				if (i >= SPIN_COUNT)
+					LockSupport.park(this);
+			}
 		}
 
-		public boolean wantsNewStream() {
-			return recreateStream;
+		/**
+		 * The stream thread loop, taking turns with the caller.
+		**/
+		private void pump() {
+			InputStream stream = null;
+
+			awaitCommand();
+
+			try {
+				for (;;) {
+					try {
+						if (command == END) break;
+
+						if (command == RESET) {
+							if (stream != null)
+								stream.close();
+
+							stream = null;
+						} else {
+							if (stream == null)
+								stream = createInputStream();
+
+							result = stream.read(outBytes, 0, requestLen);
+						}
+					} catch (CommandPendingException ex) {
+						// Run the new command.
+						continue;
+					} catch (Throwable ex) {
+						failure = ex;
+					}
+
+					handBack(WAITING);
+				}
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException ex) {
+					}
+				}
+
+				state = WAITING;
+				LockSupport.unpark(caller);
+			}
 		}
 
-		public synchronized Object waitForResult() throws InterruptedException {
-			while (result == null)
-				wait();
+		/**
+		 * Return read-ahead output, waiting for the stream thread if it is
+		 * still working.
+		 *
+		 * @return the number of bytes, or zero if the stream thread needs
+		 *         input or has ended.
+		**/
+		private synchronized int drainRing(byte[] b, int off, int len) throws IOException {
+			for (;;) {
+				if (ringCount > 0) {
+					int n = min(len, ringCount);
+					int first = min(n, ring.length - ringHead);
 
-			return result;
+					System.arraycopy(ring, ringHead, b, off, first);
+					System.arraycopy(ring, 0, b, off + first, n - first);
+					ringHead = (ringHead + n) % ring.length;
+					ringCount -= n;
+					notifyAll();
+
+					return n;
+				}
+
+				if (failure != null) {
+					Throwable ex = failure;
+
+					failure = null;
+					notifyAll();
+					rethrow(ex);
+				}
+
+				if (readAheadEnded) return 0;
+
+				if (streamWaiting && inputLen == 0 && replayBytes == null && !hasFinished) return 0;
+
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					throw new IOException(ex);
+				}
+			}
 		}
 
-		public synchronized void setResult() {
-			setResult(this);
+		/**
+		 * The stream thread loop in read-ahead mode.
+		**/
+		private void readAhead() {
+			InputStream stream = null;
+			byte[] buf = new byte[min(readAheadSize, 1 << 16)];
+
+			try {
+				for (;;) {
+					int cmd;
+					int space;
+
+					synchronized (this) {
+						while (command == READ && (ringCount == ring.length || readAheadEnded || failure != null))
+							wait();
+
+						cmd = command;
+						space = ring.length - ringCount;
+					}
+
+					if (cmd == END) break;
+
+					if (cmd == RESET) {
+						// Closing calls finish(), so clear it afterwards.
+						if (stream != null) {
+							try {
+								stream.close();
+							} catch (IOException ex) {
+							}
+						}
+
+						stream = null;
+
+						synchronized (this) {
+							ringHead = 0;
+							ringCount = 0;
+							readAheadEnded = false;
+							failure = null;
+							hasFinished = false;
+							command = READ;
+							notifyAll();
+						}
+
+						continue;
+					}
+
+					try {
+						if (stream == null)
+							stream = createInputStream();
+
+						int n = stream.read(buf, 0, min(buf.length, space));
+
+						synchronized (this) {
+							if (n < 0) {
+								readAheadEnded = true;
+							} else {
+								int tail = (ringHead + ringCount) % ring.length;
+								int first = min(n, ring.length - tail);
+
+								System.arraycopy(buf, 0, ring, tail, first);
+								System.arraycopy(buf, first, ring, 0, n - first);
+								ringCount += n;
+							}
+
+							notifyAll();
+						}
+					} catch (CommandPendingException ex) {
+						// Run the new command.
+					} catch (Throwable ex) {
+						synchronized (this) {
+							failure = ex;
+							notifyAll();
+						}
+					}
+				}
+			} catch (InterruptedException ex) {
+				// Nobody to tell.
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException ex) {
+					}
+				}
+
+				synchronized (this) {
+					done = true;
+					notifyAll();
+				}
+			}
 		}
 
-		public synchronized void setResult(Object result) {
-			this.result = result;
-			notifyAll();
+		private class SelfInputStream extends InputStream {
+			public void close() throws IOException {
+				finish();
+			}
+
+			public int available() throws IOException {
+				return getRemaining();
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) return 0;
+
+				if (readAheadSize > 0) {
+					synchronized (Pump.this) {
+						for (;;) {
+							if (command != READ)
+								throw new CommandPendingException();
+
+							int n = readInput(b, off, len);
+
+							if (n != 0) return n;
+
+							streamWaiting = true;
+							Pump.this.notifyAll();
+
+							try {
+								Pump.this.wait();
+							} catch (InterruptedException ex) {
+								throw new IOException(ex);
+							} finally {
+								streamWaiting = false;
+							}
+						}
+					}
+				}
+
+				for (;;) {
+					int n = readInput(b, off, len);
+
+					if (n != 0) return n;
+
+					handBack(NEEDS_INPUT);
+
+					if (command != READ)
+						throw new CommandPendingException();
+				}
+			}
+
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+
+				if (read(b, 0, 1) < 0)
+					return -1;
+
+				return b[0] & 0xFF;
+			}
+
+			/**
+			 * Read replayed bytes or input.
+			 *
+			 * @return the number of bytes read, -1 at the end, or zero if
+			 *         there is no input right now.
+			**/
+			private int readInput(byte[] b, int off, int len) {
+				if (replayBytes != null) {
+					int n = min(len, replayBytes.length - replayOff);
+
+					System.arraycopy(replayBytes, replayOff, b, off, n);
+					replayOff += n;
+
+					if (replayOff == replayBytes.length)
+						replayBytes = null;
+
+					return n;
+				}
+
+				if (inputLen > 0) {
+					int n = min(len, inputLen);
+
+					System.arraycopy(inputBytes, inputOff, b, off, n);
+					inputLen -= n;
+					inputOff += n;
+
+					return n;
+				}
+
+				if (hasFinished)
+					return -1;
+
+				return 0;
+			}
 		}
 	}
 }
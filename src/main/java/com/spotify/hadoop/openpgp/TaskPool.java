@@ -0,0 +1,107 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The threads decrypting and compressing in parallel, shared by all
+ * streams.
+ *
+ * Tasks are short and CPU-bound, so one thread per processor is enough.
+ * The ForkJoinPool common pool is used if the runtime has one. The
+ * executor is created on first use.
+ *
+ * Tasks return their IOException instead of throwing it, since the
+ * common pool wraps checked exceptions.
+ *
+ * Tasks that hold their thread for as long as a stream runs, like the
+ * StreamDecompressor pumps and the PipelineOutputStream consumers, use
+ * STREAM_EXECUTOR instead. It cannot have a fixed size without risking
+ * starvation, so it runs virtual threads if the runtime has them, else
+ * a pool whose idle threads exit after a minute.
+**/
+class TaskPool {
+	/// Seconds an idle stream thread is kept.
+	private static final long IDLE_TIMEOUT = 60;
+
+	public static final ExecutorService EXECUTOR = createExecutor();
+
+	public static final ExecutorService STREAM_EXECUTOR = createStreamExecutor();
+
+	/**
+	 * Wait for a task returning its failure, or null.
+	**/
+	public static void await(Future<IOException> future) throws IOException {
+		IOException failure;
+
+		try {
+			failure = future.get();
+		} catch (InterruptedException ex) {
+			future.cancel(false);
+			throw new InterruptedIOException("interrupted while waiting for a task");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw (Error) cause;
+		}
+
+		if (failure != null) throw failure;
+	}
+
+	private static ExecutorService createExecutor() {
+		try {
+			// Java 8 and later.
+			return (ExecutorService) Class.forName("java.util.concurrent.ForkJoinPool").getMethod("commonPool").invoke(null);
+		} catch (Exception ex) {
+			// Use a pool of our own.
+		}
+
+		return Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			createThreadFactory("TaskPool-"));
+	}
+
+	private static ExecutorService createStreamExecutor() {
+		try {
+			// Java 21 and later.
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception ex) {
+			// Use platform threads.
+		}
+
+		return new ThreadPoolExecutor(
+			0, Integer.MAX_VALUE,
+			IDLE_TIMEOUT, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			createThreadFactory("TaskPool-stream-"));
+	}
+
+	/**
+	 * Return a factory of daemon threads, numbered after a name prefix.
+	**/
+	private static ThreadFactory createThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+
+				t.setDaemon(true);
+
+				return t;
+			}
+		};
+	}
+}
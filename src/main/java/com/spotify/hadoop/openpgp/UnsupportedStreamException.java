@@ -0,0 +1,15 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown by a StreamDecoder for streams it cannot decode.
+ *
+ * StreamDecompressor then falls back to its createInputStream() stream.
+**/
+public class UnsupportedStreamException extends IOException {
+	public UnsupportedStreamException(String msg) {
+		super(msg);
+	}
+}
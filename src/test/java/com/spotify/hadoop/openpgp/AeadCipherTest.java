@@ -0,0 +1,70 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.util.encoders.Hex;
+
+
+public class AeadCipherTest {
+	@Test
+	public void hkdf() {
+		// RFC 5869, test cases 1 and 3.
+		byte[] ikm = new byte[22];
+
+		Arrays.fill(ikm, (byte) 0x0B);
+
+		assertEquals(
+			"3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865",
+			new String(Hex.encode(AeadCipher.hkdf(
+				Hex.decode("000102030405060708090a0b0c"),
+				ikm,
+				Hex.decode("f0f1f2f3f4f5f6f7f8f9"),
+				42))));
+		assertEquals(
+			"8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8",
+			new String(Hex.encode(AeadCipher.hkdf(null, ikm, new byte[0], 42))));
+	}
+
+	@Test
+	public void getChunkSizeOctet() {
+		assertEquals(0, AeadCipher.getChunkSizeOctet(64));
+		assertEquals(12, AeadCipher.getChunkSizeOctet(1 << 18));
+
+		try {
+			AeadCipher.getChunkSizeOctet(1000);
+			fail();
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void processChunk() throws Exception {
+		for (int aeadAlgorithm : new int[] { AeadCipher.EAX, AeadCipher.GCM }) {
+			AeadCipher cipher = new AeadCipher(SymmetricKeyAlgorithmTags.AES_128, aeadAlgorithm, 0, new byte[16], new byte[AeadCipher.SALT_LENGTH]);
+			AEADBlockCipher aead = cipher.newCipher();
+			byte[] plain = "Hello world!\n".getBytes("UTF-8");
+			byte[] encrypted = new byte[plain.length + AeadCipher.TAG_LENGTH];
+			byte[] decrypted = new byte[plain.length];
+
+			assertEquals(encrypted.length, cipher.processChunk(aead, true, 3, plain, 0, plain.length, encrypted, 0));
+			assertEquals(plain.length, cipher.processChunk(aead, false, 3, encrypted, 0, encrypted.length, decrypted, 0));
+			assertTrue(Arrays.equals(plain, decrypted));
+
+			// The chunk index is authenticated.
+			try {
+				cipher.processChunk(aead, false, 4, encrypted, 0, encrypted.length, decrypted, 0);
+				fail();
+			} catch (IOException ex) {
+			}
+
+			// The final tag depends on the length.
+			assertFalse(Arrays.equals(cipher.getFinalTag(aead, 1, 13), cipher.getFinalTag(aead, 1, 14)));
+		}
+	}
+}
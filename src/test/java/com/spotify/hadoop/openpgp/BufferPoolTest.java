@@ -0,0 +1,55 @@
+package com.spotify.hadoop.openpgp;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class BufferPoolTest {
+	@Test
+	public void borrowRoundsUp() {
+		BufferPool pool = new BufferPool(1 << 20);
+
+		assertEquals(BufferPool.MIN_SIZE, pool.borrow(1).length);
+		assertEquals(1 << 12, pool.borrow(3000).length);
+		assertEquals(1 << 12, pool.borrow(1 << 12).length);
+		assertEquals(BufferPool.MAX_SIZE + 1, pool.borrow(BufferPool.MAX_SIZE + 1).length);
+	}
+
+	@Test
+	public void release() {
+		BufferPool pool = new BufferPool(1 << 20);
+		byte[] b = pool.borrow(1000);
+
+		pool.release(b);
+		assertEquals(b.length, pool.size());
+
+		// Only arrays of the same size class are handed out again.
+		assertNotSame(b, pool.borrow(5000));
+		assertSame(b, pool.borrow(1000));
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void releaseBounded() {
+		BufferPool pool = new BufferPool(1 << 13);
+
+		pool.release(new byte[1 << 12]);
+		pool.release(new byte[1 << 12]);
+		pool.release(new byte[1 << 12]);
+		assertEquals(1 << 13, pool.size());
+
+		pool.clear();
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void releaseForeign() {
+		BufferPool pool = new BufferPool(1 << 20);
+
+		pool.release(null);
+		pool.release(new byte[1000]);
+		pool.release(new byte[16]);
+		pool.release(new byte[BufferPool.MAX_SIZE * 2]);
+		assertEquals(0, pool.size());
+	}
+}
@@ -0,0 +1,114 @@
+package com.spotify.hadoop.openpgp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+
+
+public class CfbCipherTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	@Test
+	public void process() throws Exception {
+		int[] algorithms = new int[] { SymmetricKeyAlgorithmTags.AES_128, SymmetricKeyAlgorithmTags.CAST5 };
+		String[] providers = new String[] { "BC", GnuPgUtils.resolveCipherProvider("jdk") };
+		Random random = new Random(42);
+
+		for (int algorithm : algorithms) {
+			for (String provider : providers) {
+				for (boolean resync : new boolean[] { false, true }) {
+					byte[] key = new byte[GnuPgUtils.getSymmetricKeyLength(algorithm)];
+					byte[] plain = new byte[1000];
+
+					random.nextBytes(key);
+					random.nextBytes(plain);
+
+					byte[] expected = encrypt(algorithm, key, plain, resync);
+					CfbCipher c = CfbCipher.getInstance(algorithm, provider, resync);
+					byte[] b = plain.clone();
+
+					c.init(true, key);
+					processPieces(c, b, new int[] { 1, 7, 16, 300, 3 });
+					assertTrue(Arrays.equals(expected, b));
+
+					c.init(false, key);
+					processPieces(c, b, new int[] { 5, 32, 11, 400 });
+					assertTrue(Arrays.equals(plain, b));
+
+					byte[] out = new byte[b.length];
+
+					c.init(false, key);
+					c.process(expected, 0, expected.length, out, 0);
+					assertTrue(Arrays.equals(plain, out));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void getAlignedLength() throws Exception {
+		byte[] key = new byte[16];
+		byte[] b = new byte[18];
+		CfbCipher c = CfbCipher.getInstance(SymmetricKeyAlgorithmTags.AES_128, "BC", true);
+
+		c.init(true, key);
+		assertEquals(98, c.getAlignedLength(100));
+		assertEquals(10, c.getAlignedLength(10));
+
+		c.process(b, 0, b.length);
+		assertEquals(96, c.getAlignedLength(100));
+
+		c = CfbCipher.getInstance(SymmetricKeyAlgorithmTags.AES_128, "BC", false);
+		c.init(true, key);
+		c.process(b, 0, b.length);
+		assertEquals(94, c.getAlignedLength(100));
+		assertEquals(10, c.getAlignedLength(10));
+	}
+
+	/**
+	 * Process b in place, in pieces of the given lengths, then the rest.
+	**/
+	private static void processPieces(CfbCipher c, byte[] b, int[] lengths) throws Exception {
+		int off = 0;
+
+		for (int len : lengths) {
+			c.process(b, off, len);
+			off += len;
+		}
+
+		c.process(b, off, b.length - off);
+	}
+
+	/**
+	 * Encrypt with the Bouncy Castle CFB cipher, resynchronizing after the
+	 * block size plus two bytes if resync is true.
+	**/
+	private static byte[] encrypt(int algorithm, byte[] key, byte[] plain, boolean resync) throws Exception {
+		String name = GnuPgUtils.getSymmetricCipherName(algorithm);
+		Cipher c = Cipher.getInstance(name + "/CFB/NoPadding", "BC");
+		SecretKeySpec spec = new SecretKeySpec(key, name);
+		int bs = c.getBlockSize();
+
+		c.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(new byte[bs]));
+
+		if (!resync) return c.doFinal(plain);
+
+		byte[] ret = new byte[plain.length];
+
+		c.doFinal(plain, 0, bs + 2, ret, 0);
+		c.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(ret, 2, bs));
+		c.doFinal(plain, bs + 2, plain.length - bs - 2, ret, bs + 2);
+
+		return ret;
+	}
+}
@@ -0,0 +1,145 @@
+package com.spotify.hadoop.openpgp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPPublicKey;
+
+
+public class EncryptionProfileTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	@Test
+	public void fromEmptyConfiguration() {
+		EncryptionProfile p = EncryptionProfile.fromConfiguration(new Configuration(false));
+
+		assertNull(p.getKey());
+		assertEquals(PGPEncryptedData.NULL, p.getEncryptionAlgorithm());
+		assertFalse(p.wantsIntegrity());
+		assertEquals(PGPCompressedData.UNCOMPRESSED, p.getCompressionAlgorithm());
+		assertEquals(PGPLiteralData.BINARY, p.getFormat());
+		assertEquals(1 << 14, p.getBufferSize());
+		assertFalse(p.isPipelined());
+		assertEquals(1, p.getCompressionThreads());
+	}
+
+	@Test
+	public void fromKeyConfiguration() {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.pubring.path", "etc/" + GnuPgUtils.PUBRING_FILE_NAME);
+		conf.set("spotify.hadoop.openpgp.encrypt.keyId", "75FAD0E0");
+		conf.set("spotify.hadoop.openpgp.compression", "zip");
+		conf.set("spotify.hadoop.openpgp.pipeline", "true");
+		conf.set("spotify.hadoop.openpgp.compression.threads", "4");
+
+		EncryptionProfile p = EncryptionProfile.fromConfiguration(conf);
+
+		assertTrue(p.getKey() instanceof PGPPublicKey);
+		assertEquals(PGPEncryptedData.CAST5, p.getEncryptionAlgorithm());
+		assertTrue(p.wantsIntegrity());
+		assertEquals(PGPCompressedData.ZIP, p.getCompressionAlgorithm());
+		assertTrue(p.isPipelined());
+		assertEquals(4, p.getCompressionThreads());
+	}
+
+	@Test
+	public void fromPassPhraseConfiguration() {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+		conf.set("spotify.hadoop.openpgp.integrity.sign", "false");
+		conf.set("spotify.hadoop.openpgp.compression", "auto");
+
+		EncryptionProfile p = EncryptionProfile.fromConfiguration(conf);
+
+		assertEquals("42", p.getKey());
+		assertEquals(PGPEncryptedData.CAST5, p.getEncryptionAlgorithm());
+		assertFalse(p.wantsIntegrity());
+		assertEquals(OpenPgpCompressor.AUTO_COMPRESSION, p.getCompressionAlgorithm());
+	}
+
+	@Test
+	public void fromAeadConfiguration() {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+		conf.set("spotify.hadoop.openpgp.encryption.mode", "gcm");
+		conf.set("spotify.hadoop.openpgp.encryption.chunkSize", "65536");
+
+		EncryptionProfile p = EncryptionProfile.fromConfiguration(conf);
+
+		assertEquals(PGPEncryptedData.AES_128, p.getEncryptionAlgorithm());
+		assertEquals(AeadCipher.GCM, p.getAeadAlgorithm());
+		assertEquals(1 << 16, p.getChunkSize());
+
+		conf.set("spotify.hadoop.openpgp.encryption.chunkSize", "1000");
+
+		try {
+			EncryptionProfile.fromConfiguration(conf);
+			fail();
+		} catch (IllegalArgumentException ex) {
+		}
+
+		conf.set("spotify.hadoop.openpgp.encryption.chunkSize", "65536");
+		conf.set("spotify.hadoop.openpgp.compression", "bzip2");
+
+		try {
+			EncryptionProfile.fromConfiguration(conf);
+			fail();
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	@Test
+	public void fromProviderConfiguration() {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+		conf.set("spotify.hadoop.openpgp.provider", "jdk");
+
+		EncryptionProfile p = EncryptionProfile.fromConfiguration(conf);
+
+		assertEquals(PGPEncryptedData.AES_128, p.getEncryptionAlgorithm());
+		assertFalse(p.getCipherProvider().equals("BC"));
+
+		conf.set("spotify.hadoop.openpgp.provider", "BC");
+		p = EncryptionProfile.fromConfiguration(conf);
+
+		assertEquals(PGPEncryptedData.CAST5, p.getEncryptionAlgorithm());
+		assertEquals("BC", p.getCipherProvider());
+	}
+
+	@Test
+	public void fromSigningKeyConfiguration() {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.secring.path", "etc/" + GnuPgUtils.SECRING_FILE_NAME);
+		conf.set("spotify.hadoop.openpgp.sign.keyId", "0x75FAD0E0");
+
+		EncryptionProfile p = EncryptionProfile.fromConfiguration(conf);
+
+		assertNotNull(p.getSigningKey());
+		assertEquals(0xA2E72D0275FAD0E0L, p.getSigningKey().getKeyID());
+		assertEquals(PublicKeyAlgorithmTags.RSA_GENERAL, p.getSigningKeyAlgorithm());
+		assertEquals(HashAlgorithmTags.SHA256, p.getHashAlgorithm());
+	}
+
+	@Test(expectedExceptions = KeyNotFoundException.class)
+	public void fromMissingKeyConfiguration() {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.pubring.path", "etc/" + GnuPgUtils.PUBRING_FILE_NAME);
+		conf.set("spotify.hadoop.openpgp.encrypt.keyId", "DEADBEEF");
+
+		EncryptionProfile.fromConfiguration(conf);
+	}
+}
@@ -0,0 +1,65 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+
+
+public class GnuPgUtilsTest {
+	@Test
+	public void getPublicKeyRingCollectionCached() throws Exception {
+		File pubring = copyToTemp(new File("etc", GnuPgUtils.PUBRING_FILE_NAME));
+
+		try {
+			PGPPublicKeyRingCollection col = GnuPgUtils.getPublicKeyRingCollection(pubring);
+
+			assertSame(col, GnuPgUtils.getPublicKeyRingCollection(pubring));
+			assertNotNull(GnuPgUtils.getPublicKey(col, "75FAD0E0"));
+		} finally {
+			pubring.delete();
+		}
+	}
+
+	@Test
+	public void getPublicKeyRingCollectionReloaded() throws Exception {
+		File pubring = copyToTemp(new File("etc", GnuPgUtils.PUBRING_FILE_NAME));
+
+		try {
+			PGPPublicKeyRingCollection col = GnuPgUtils.getPublicKeyRingCollection(pubring);
+
+			assertTrue(pubring.setLastModified(pubring.lastModified() - 10000));
+			assertNotSame(col, GnuPgUtils.getPublicKeyRingCollection(pubring));
+		} finally {
+			pubring.delete();
+		}
+	}
+
+	static File copyToTemp(File src) throws IOException {
+		File dest = File.createTempFile("gnupgutils", ".gpg");
+		FileInputStream in = new FileInputStream(src);
+
+		try {
+			FileOutputStream out = new FileOutputStream(dest);
+
+			try {
+				byte[] buf = new byte[4096];
+				int n;
+
+				while ((n = in.read(buf)) >= 0)
+					out.write(buf, 0, n);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		return dest;
+	}
+}
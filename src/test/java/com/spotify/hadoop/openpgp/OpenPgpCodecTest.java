@@ -1,15 +1,26 @@
 package com.spotify.hadoop.openpgp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.NoSuchProviderException;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
 
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
 
@@ -37,4 +48,485 @@ public class OpenPgpCodecTest {
 
 		assertTrue(codec.getDecompressorType().isInstance(codec.createDecompressor()));
 	}
+
+	@Test
+	public void setConfWithoutKey() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.secring.path", "etc/" + GnuPgUtils.SECRING_FILE_NAME);
+		conf.set("spotify.hadoop.openpgp.pubring.path", "etc/" + GnuPgUtils.PUBRING_FILE_NAME);
+		conf.set("spotify.hadoop.openpgp.encrypt.keyId", "00000000");
+		codec.setConf(conf);
+
+		InputStream in = codec.createInputStream(ClassLoader.getSystemResourceAsStream("hello.txt.gpg"));
+
+		assertEquals("Hello world!\n", readAll(in));
+
+		try {
+			codec.getEncryptionProfile();
+			fail();
+		} catch (KeyNotFoundException ex) {
+		}
+	}
+
+	@Test
+	public void createInputStream() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.secring.path", "etc/" + GnuPgUtils.SECRING_FILE_NAME);
+		codec.setConf(conf);
+
+		InputStream in = codec.createInputStream(ClassLoader.getSystemResourceAsStream("hello.txt.gpg"));
+		byte[] buffer = new byte[1024];
+		int n = in.read(buffer);
+
+		assertEquals("Hello world!\n", new String(buffer, 0, n, "UTF-8"));
+		assertEquals(-1, in.read(buffer));
+		in.close();
+	}
+
+	@Test
+	public void createInputStreamThreaded() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.secring.path", "etc/" + GnuPgUtils.SECRING_FILE_NAME);
+		conf.setBoolean("spotify.hadoop.openpgp.decompressor.threaded", true);
+		codec.setConf(conf);
+
+		InputStream in = codec.createInputStream(ClassLoader.getSystemResourceAsStream("hello.txt.gpg"));
+
+		assertEquals("Hello world!\n", readAll(in));
+	}
+
+	@Test
+	public void createInputStreamReadAhead() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+		conf.setInt("spotify.hadoop.openpgp.decompressor.readAhead", 1 << 12);
+		codec.setConf(conf);
+
+		String text = OpenPgpPacketDecoderTest.createText();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		bout.write(OpenPgpPacketDecoderTest.encode(text, "42", PGPEncryptedData.AES_128, PGPCompressedData.ZLIB));
+		bout.write(OpenPgpPacketDecoderTest.encode("second\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.UNCOMPRESSED));
+
+		InputStream in = codec.createInputStream(new ByteArrayInputStream(bout.toByteArray()));
+
+		assertEquals(text + "second\n", readAll(in));
+	}
+
+	@Test
+	public void createInputStreamBzip2() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+		codec.setConf(conf);
+
+		byte[] data = OpenPgpPacketDecoderTest.encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.BZIP2);
+		InputStream in = codec.createInputStream(new ByteArrayInputStream(data));
+
+		assertEquals("Hello world!\n", readAll(in));
+	}
+
+	@Test
+	public void createInputStreamBzip2Threads() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.compression", "bzip2");
+		conf.setInt("spotify.hadoop.openpgp.decompressor.threads", 3);
+		codec.setConf(conf);
+
+		String text = OpenPgpPacketDecoderTest.createText();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream out = codec.createOutputStream(bout);
+
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+
+		byte[] data = bout.toByteArray();
+
+		assertEquals(text, readAll(codec.createInputStream(new ByteArrayInputStream(data))));
+
+		// Only ParallelBZip2InputStream checks the block CRC.
+		int pos = indexOf(data, new byte[] { 'B', 'Z', 'h', '9', 0x31, 0x41, 0x59, 0x26, 0x53, 0x59 });
+
+		assertTrue(pos > 0);
+		data[pos + 10] ^= 1;
+
+		try {
+			readAll(codec.createInputStream(new ByteArrayInputStream(data)));
+			fail();
+		} catch (IOException ex) {
+		}
+	}
+
+	@Test
+	public void createInputStreamConcatenated() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+		codec.setConf(conf);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		bout.write(OpenPgpPacketDecoderTest.encode("first\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.ZIP));
+		bout.write(OpenPgpPacketDecoderTest.encode("second\n", "42", PGPEncryptedData.AES_256, PGPCompressedData.ZLIB));
+
+		InputStream in = codec.createInputStream(new ByteArrayInputStream(bout.toByteArray()));
+
+		assertEquals("first\nsecond\n", readAll(in));
+	}
+
+	@Test
+	public void createInputStreamConcatenatedBzip2() throws Exception {
+		String text = OpenPgpPacketDecoderTest.createText();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		bout.write(OpenPgpPacketDecoderTest.encode("first\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.BZIP2));
+		bout.write(OpenPgpPacketDecoderTest.encode("second\n", "42", PGPEncryptedData.AES_256, PGPCompressedData.ZLIB));
+		bout.write(OpenPgpPacketDecoderTest.encode(text, "42", PGPEncryptedData.AES_128, PGPCompressedData.BZIP2));
+		bout.write(OpenPgpPacketDecoderTest.encode("last\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.BZIP2));
+
+		for (String mode : new String[] { "", "spotify.hadoop.openpgp.decompressor.threaded" }) {
+			OpenPgpCodec codec = new OpenPgpCodec();
+			Configuration conf = new Configuration(false);
+
+			conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+
+			if (mode.length() > 0)
+				conf.setBoolean(mode, true);
+
+			codec.setConf(conf);
+
+			InputStream in = codec.createInputStream(new ByteArrayInputStream(bout.toByteArray()));
+
+			assertEquals("first\nsecond\n" + text + "last\n", readAll(in));
+		}
+	}
+
+	@Test
+	public void createInputStreamManyBzip2() throws Exception {
+		byte[] message = OpenPgpPacketDecoderTest.encode("line\n", "42", PGPEncryptedData.AES_256, PGPCompressedData.BZIP2);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		final StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 2000; ++i) {
+			bout.write(message);
+			sb.append("line\n");
+		}
+
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+		codec.setConf(conf);
+
+		// Each message goes through a fallback of its own, which must not
+		// nest the input of the previous one.
+		final InputStream in = codec.createInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		final Throwable[] error = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					assertEquals(sb.toString(), readAll(in));
+				} catch (Throwable ex) {
+					error[0] = ex;
+				}
+			}
+		}, "createInputStreamManyBzip2", 1 << 18);
+
+		thread.start();
+		thread.join();
+
+		if (error[0] != null) throw new AssertionError(error[0]);
+	}
+
+	@Test
+	public void createOutputStreamAead() throws Exception {
+		String text = OpenPgpPacketDecoderTest.createText();
+
+		for (String compression : new String[] { "uncompressed", "zip", "zlib", "auto", "bzip2" }) {
+			OpenPgpCodec codec = new OpenPgpCodec();
+			Configuration conf = new Configuration(false);
+
+			conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+			conf.set("spotify.hadoop.openpgp.encryption.mode", "eax");
+			conf.set("spotify.hadoop.openpgp.compression", compression);
+			codec.setConf(conf);
+
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			OutputStream out;
+
+			try {
+				out = codec.createOutputStream(bout);
+			} catch (IllegalArgumentException ex) {
+				// The packet decoder does not decompress BZip2.
+				assertEquals("bzip2", compression);
+				continue;
+			}
+
+			assertFalse(compression.equals("bzip2"));
+			out.write(text.getBytes("UTF-8"));
+			out.close();
+
+			assertEquals(text, readAll(codec.createInputStream(new ByteArrayInputStream(bout.toByteArray()))));
+		}
+	}
+
+	@Test
+	public void createInputStreamVerified() throws Exception {
+		byte[] data = OpenPgpPacketDecoderTest.encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.ZIP);
+		byte[] tampered = OpenPgpPacketDecoderTest.encode(OpenPgpPacketDecoderTest.createText(), "42", PGPEncryptedData.CAST5, PGPCompressedData.UNCOMPRESSED);
+
+		tampered[tampered.length - 100] ^= 1;
+
+		for (String mode : new String[] { "", "spotify.hadoop.openpgp.decompressor.threaded" }) {
+			OpenPgpCodec codec = new OpenPgpCodec();
+			Configuration conf = new Configuration(false);
+
+			conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+			conf.setBoolean("spotify.hadoop.openpgp.integrity.verify", true);
+
+			if (mode.length() > 0)
+				conf.setBoolean(mode, true);
+
+			codec.setConf(conf);
+
+			assertEquals("Hello world!\n", readAll(codec.createInputStream(new ByteArrayInputStream(data))));
+
+			try {
+				readAll(codec.createInputStream(new ByteArrayInputStream(OpenPgpPacketDecoderTest.readResource("hello.txt-sym.gpg"))));
+				fail();
+			} catch (IOException ex) {
+			}
+
+			try {
+				readAll(codec.createInputStream(new ByteArrayInputStream(tampered)));
+				fail();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	@Test
+	public void createInputStreamSplit() throws Exception {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+		conf.setLong("spotify.hadoop.openpgp.blockSize", 1000);
+		checkSplits(conf);
+	}
+
+	@Test
+	public void createInputStreamSplitBzip2() throws Exception {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+		conf.set("spotify.hadoop.openpgp.compression", "bzip2");
+		conf.setLong("spotify.hadoop.openpgp.blockSize", 1000);
+		checkSplits(conf);
+	}
+
+	@Test
+	public void createInputStreamSplitFalseMarker() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.setLong("spotify.hadoop.openpgp.blockSize", 1000);
+		codec.setConf(conf);
+
+		// A marker and a literal data packet header, in the plaintext.
+		byte[] fake = { (byte) 0xA8, 3, 'P', 'G', 'P', (byte) 0xCB, 10, 'b', 0, 0, 0, 0, 0, 0, 0, 0, 0, '\n' };
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+		for (int i = 0; i < 500; ++i)
+			text.write(i == 250 ? fake : "Hello world!\n".getBytes("UTF-8"));
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream out = codec.createOutputStream(bout);
+
+		out.write(text.toByteArray());
+		out.close();
+
+		byte[] data = bout.toByteArray();
+		int pos = indexOf(data, fake);
+
+		assertTrue(pos > 0);
+		assertTrue(BlockMarker.matches(data, pos));
+
+		String first = readAll(codec.createInputStream(createFile(data), 0, pos - 1));
+		String second = readAll(codec.createInputStream(createFile(data), pos - 1, data.length));
+
+		assertEquals(new String(text.toByteArray(), "UTF-8"), first + second);
+		assertTrue(second.length() > 0);
+	}
+
+	@Test
+	public void confirmMarkerLargeMessage() throws Exception {
+		EncryptionProfile profile = OpenPgpCompressorTest.createProfile(
+			null,
+			PGPEncryptedData.NULL,
+			false,
+			PGPCompressedData.UNCOMPRESSED,
+			PGPLiteralData.BINARY,
+			1 << 10);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		BlockMarker.write(bout);
+
+		OutputStream out = OpenPgpCompressor.createOutputStream(bout, profile);
+
+		out.write(new byte[1 << 20]);
+		out.close();
+
+		// About a thousand chunks, only the first ones walked.
+		SeekableByteArrayInputStream file = new SeekableByteArrayInputStream(bout.toByteArray());
+
+		assertTrue(BlockMarker.confirm(new FSDataInputStream(file), 0));
+		assertTrue(file.seeks <= BlockMarker.MAX_CHUNKS + 2);
+	}
+
+	/**
+	 * Write block format output, and check that it reads back whole, and
+	 * split at every 777 bytes.
+	**/
+	private static void checkSplits(Configuration conf) throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+
+		codec.setConf(conf);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream out = codec.createOutputStream(bout);
+		String text = OpenPgpPacketDecoderTest.createText();
+
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+
+		byte[] data = bout.toByteArray();
+		StringBuilder sb = new StringBuilder();
+		int splits = 0;
+
+		assertEquals(text, readAll(codec.createInputStream(new ByteArrayInputStream(data))));
+
+		for (int start = 0; start < data.length; start += 777) {
+			String split = readAll(codec.createInputStream(createFile(data), start, Math.min(start + 777, data.length)));
+
+			// Every split holds whole lines.
+			assertTrue(split.length() == 0 || split.endsWith("\n"));
+
+			if (split.length() > 0) ++splits;
+
+			sb.append(split);
+		}
+
+		assertEquals(text, sb.toString());
+		assertTrue(splits > 1);
+	}
+
+	@Test
+	public void createInputStreamSplitSingleMessage() throws Exception {
+		OpenPgpCodec codec = new OpenPgpCodec();
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+		codec.setConf(conf);
+
+		byte[] data = OpenPgpPacketDecoderTest.encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.ZIP);
+		int half = data.length / 2;
+
+		assertEquals("Hello world!\n", readAll(codec.createInputStream(createFile(data), 0, half)));
+		assertEquals("", readAll(codec.createInputStream(createFile(data), half, data.length)));
+	}
+
+	private static int indexOf(byte[] b, byte[] sub) {
+		for (int i = 0; i + sub.length <= b.length; ++i) {
+			int j = 0;
+
+			while (j < sub.length && b[i + j] == sub[j])
+				++j;
+
+			if (j == sub.length) return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return a seekable stream over data, like FileSystem#open().
+	**/
+	static FSDataInputStream createFile(byte[] data) throws IOException {
+		return new FSDataInputStream(new SeekableByteArrayInputStream(data));
+	}
+
+	/**
+	 * Read the stream to the end, and close it.
+	**/
+	static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+
+		try {
+			for (;;) {
+				int n = in.read(buffer);
+
+				if (n < 0) break;
+
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private static class SeekableByteArrayInputStream extends ByteArrayInputStream implements Seekable, PositionedReadable {
+		public int seeks;
+
+		public SeekableByteArrayInputStream(byte[] data) {
+			super(data);
+		}
+
+		public void seek(long pos) throws IOException {
+			if (pos > count) throw new IOException("Seek past end");
+
+			++seeks;
+
+			this.pos = (int) pos;
+		}
+
+		public long getPos() {
+			return pos;
+		}
+
+		public boolean seekToNewSource(long targetPos) {
+			return false;
+		}
+
+		public int read(long position, byte[] b, int off, int len) {
+			if (position >= count) return -1;
+
+			len = Math.min(len, count - (int) position);
+			System.arraycopy(buf, (int) position, b, off, len);
+
+			return len;
+		}
+
+		public void readFully(long position, byte[] b, int off, int len) throws IOException {
+			if (read(position, b, off, len) < len) throw new EOFException();
+		}
+
+		public void readFully(long position, byte[] b) throws IOException {
+			readFully(position, b, 0, b.length);
+		}
+	}
 }
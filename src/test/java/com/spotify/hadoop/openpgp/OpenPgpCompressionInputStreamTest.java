@@ -0,0 +1,95 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+
+public class OpenPgpCompressionInputStreamTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	private static final OpenPgpDecompressor.PrivateKeyFactory KEY_FACTORY = new OpenPgpDecompressor.PrivateKeyFactory() {
+		public PGPPrivateKey getPrivateKey(long id) {
+			return OpenPgpDecompressorTest.getPrivateKey(id);
+		}
+	};
+
+	@Test
+	public void readPublicKeyEncrypted() throws Exception {
+		assertEquals("Hello world!\n", read(OpenPgpPacketDecoderTest.readResource("hello.txt.gpg"), 1 << 10));
+	}
+
+	@Test
+	public void readSymmetrical() throws Exception {
+		assertEquals("Hello world!\n", read(OpenPgpPacketDecoderTest.readResource("hello.txt-sym.gpg"), 3));
+	}
+
+	@Test
+	public void readConcatenated() throws Exception {
+		String text = OpenPgpPacketDecoderTest.createText();
+		byte[] a = OpenPgpPacketDecoderTest.encode(text, "42", PGPEncryptedData.CAST5, PGPCompressedData.ZIP);
+		byte[] b = OpenPgpPacketDecoderTest.encode("second\n", OpenPgpCompressorTest.getPublicKey(), PGPEncryptedData.AES_128, PGPCompressedData.UNCOMPRESSED);
+
+		assertEquals(text + "second\n", read(concat(a, b), 100));
+	}
+
+	@Test
+	public void readBzip2() throws Exception {
+		byte[] data = OpenPgpPacketDecoderTest.encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.BZIP2);
+
+		assertEquals("Hello world!\n", read(data, 10));
+	}
+
+	@Test
+	public void readByteByByte() throws Exception {
+		byte[] data = OpenPgpPacketDecoderTest.readResource("hello.txt-sym.gpg");
+		InputStream in = new OpenPgpCompressionInputStream(new ByteArrayInputStream(data), KEY_FACTORY, "42", 5);
+		StringBuilder sb = new StringBuilder();
+
+		for (;;) {
+			int c = in.read();
+
+			if (c < 0) break;
+
+			sb.append((char) c);
+		}
+
+		assertEquals("Hello world!\n", sb.toString());
+		assertEquals(-1, in.read());
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void readWrongPassPhrase() throws Exception {
+		InputStream in = new OpenPgpCompressionInputStream(
+			new ByteArrayInputStream(OpenPgpPacketDecoderTest.readResource("hello.txt-sym.gpg")),
+			KEY_FACTORY,
+			"43",
+			1 << 10);
+
+		OpenPgpCodecTest.readAll(in);
+	}
+
+	private static String read(byte[] data, int bufferSize) throws IOException {
+		InputStream in = new OpenPgpCompressionInputStream(new ByteArrayInputStream(data), KEY_FACTORY, "42", bufferSize);
+
+		return OpenPgpCodecTest.readAll(in);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] ret = new byte[a.length + b.length];
+
+		System.arraycopy(a, 0, ret, 0, a.length);
+		System.arraycopy(b, 0, ret, a.length, b.length);
+
+		return ret;
+	}
+}
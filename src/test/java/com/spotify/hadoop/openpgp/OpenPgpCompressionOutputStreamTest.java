@@ -0,0 +1,109 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPLiteralData;
+
+
+public class OpenPgpCompressionOutputStreamTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	private static final EncryptionProfile PROFILE = OpenPgpCompressorTest.createProfile(
+		"42",
+		PGPEncryptedData.CAST5,
+		true,
+		PGPCompressedData.ZIP,
+		PGPLiteralData.BINARY,
+		1 << 10);
+
+	@Test
+	public void write() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OpenPgpCompressionOutputStream out = new OpenPgpCompressionOutputStream(bout, PROFILE);
+		String text = OpenPgpPacketDecoderTest.createText();
+
+		out.write(text.getBytes("UTF-8"));
+		out.write('!');
+		out.close();
+
+		assertEquals(text + "!", decrypt(bout.toByteArray()));
+	}
+
+	@Test
+	public void finishTwice() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OpenPgpCompressionOutputStream out = new OpenPgpCompressionOutputStream(bout, PROFILE);
+
+		out.write("first\n".getBytes("UTF-8"));
+		out.finish();
+
+		int n = bout.size();
+
+		// Nothing written, so nothing to finish.
+		out.finish();
+		assertEquals(n, bout.size());
+
+		out.resetState();
+		out.write("second\n".getBytes("UTF-8"));
+		out.close();
+
+		assertEquals("first\nsecond\n", decrypt(bout.toByteArray()));
+	}
+
+	@Test
+	public void writeEmpty() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+		new OpenPgpCompressionOutputStream(bout, PROFILE).close();
+
+		assertTrue(bout.size() > 0);
+		assertEquals("", decrypt(bout.toByteArray()));
+	}
+
+	@Test
+	public void writeBlocks() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OpenPgpCompressionOutputStream out = new OpenPgpCompressionOutputStream(bout, PROFILE, 1000);
+		String text = OpenPgpPacketDecoderTest.createText();
+		byte[] b = text.getBytes("UTF-8");
+
+		out.write(b, 0, 10);
+		out.write(b[10]);
+		out.write(b, 11, b.length - 11);
+		out.close();
+
+		byte[] data = bout.toByteArray();
+		int markers = 0;
+
+		for (int i = 0; i + 12 <= data.length; ++i) {
+			if (BlockMarker.matches(data, i)) ++markers;
+		}
+
+		// Every block but the last holds at least 1000 bytes.
+		assertEquals(b.length / 1000 + 1, markers);
+		assertEquals(text, decrypt(data));
+	}
+
+	/**
+	 * Decrypt all concatenated messages.
+	**/
+	private static String decrypt(byte[] data) throws IOException {
+		OpenPgpCodec codec = new OpenPgpCodec();
+
+		codec.getConf().set("spotify.hadoop.openpgp.decrypt.passPhrase", "42");
+
+		InputStream in = codec.createInputStream(new ByteArrayInputStream(data));
+
+		return OpenPgpCodecTest.readAll(in);
+	}
+}
@@ -1,9 +1,15 @@
 package com.spotify.hadoop.openpgp;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
 
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
@@ -12,6 +18,8 @@ import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
 
@@ -24,16 +32,14 @@ public class OpenPgpCompressorTest {
 	@Test
 	public void createPlainOutputStream() throws Exception {
 		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		OutputStream cout = OpenPgpCompressor.createOutputStream(
-			bout,
+		EncryptionProfile profile = createProfile(
 			getPublicKey(),
 			PGPEncryptedData.NULL,
 			false,
 			PGPCompressedData.UNCOMPRESSED,
 			PGPLiteralData.UTF8,
-			"",
-			PGPLiteralData.NOW,
 			1 << 14);
+		OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
 
 		final byte[] DATA = "Hello World!".getBytes("UTF-8");
 
@@ -50,6 +56,288 @@ public class OpenPgpCompressorTest {
 		assertEquals(both, bout.toByteArray());
 	}
 
+	@Test
+	public void reuse() throws Exception {
+		EncryptionProfile profile = createProfile(
+			"42",
+			PGPEncryptedData.CAST5,
+			true,
+			PGPCompressedData.ZLIB,
+			PGPLiteralData.BINARY,
+			1 << 10);
+		OpenPgpCompressor c = new OpenPgpCompressor(new Configuration(false), profile);
+		String text = OpenPgpPacketDecoderTest.createText();
+
+		assertEquals(text, decrypt(compress(c, text)));
+
+		c.reset();
+		assert c.needsInput();
+		assert !c.finished();
+		assertEquals(0, c.getBytesRead());
+
+		assertEquals("second\n", decrypt(compress(c, "second\n")));
+		c.end();
+	}
+
+	@Test
+	public void createJdkCipherOutputStream() throws Exception {
+		String provider = GnuPgUtils.resolveCipherProvider("jdk");
+		String text = OpenPgpPacketDecoderTest.createText();
+		OpenPgpDecompressor.PrivateKeyFactory keyFactory = new OpenPgpDecompressor.PrivateKeyFactory() {
+			public PGPPrivateKey getPrivateKey(long id) {
+				return OpenPgpDecompressorTest.getPrivateKey(id);
+			}
+		};
+
+		assertFalse(provider.equals("BC"));
+
+		// CAST5 falls back to Bouncy Castle.
+		for (int encryption : new int[] { PGPEncryptedData.AES_128, PGPEncryptedData.AES_256, PGPEncryptedData.CAST5 }) {
+			for (Object key : new Object[] { getPublicKey(), "42" }) {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				EncryptionProfile profile = new EncryptionProfile(
+					key,
+					encryption,
+					true,
+					PGPCompressedData.ZIP,
+					PGPLiteralData.BINARY,
+					1 << 10,
+					null,
+					0,
+					0,
+					0,
+					0,
+					provider,
+					false,
+					1);
+				OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+				cout.write(text.getBytes("UTF-8"));
+				cout.close();
+
+				// Read by Bouncy Castle, checking the MDC.
+				InputStream in = OpenPgpDecompressor.createInputStream(new ByteArrayInputStream(bout.toByteArray()), true, keyFactory, "42", null, provider);
+
+				assertEquals(text, OpenPgpCodecTest.readAll(in));
+
+				in = new OpenPgpCompressionInputStream(new ByteArrayInputStream(bout.toByteArray()), keyFactory, "42", true, 1 << 10);
+				assertEquals(text, OpenPgpCodecTest.readAll(in));
+			}
+		}
+	}
+
+	@Test
+	public void createPipelinedOutputStream() throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 20; ++i)
+			sb.append(OpenPgpPacketDecoderTest.createText());
+
+		byte[] data = sb.toString().getBytes("UTF-8");
+
+		// The output is the same, when not encrypted.
+		assertEquals(createOutputStream(data, PGPEncryptedData.NULL, false), createOutputStream(data, PGPEncryptedData.NULL, true));
+
+		for (int encryption : new int[] { PGPEncryptedData.CAST5, PGPEncryptedData.AES_128 }) {
+			byte[] encrypted = createOutputStream(data, encryption, true);
+			InputStream in = OpenPgpDecompressor.createInputStream(new ByteArrayInputStream(encrypted), true, null, "42", null);
+
+			assertEquals(sb.toString(), OpenPgpCodecTest.readAll(in));
+		}
+	}
+
+	@Test
+	public void createPipelinedOutputStreamFailure() throws Exception {
+		byte[] data = new byte[1 << 20];
+		int consumers = PipelineOutputStreamTest.countConsumers();
+
+		new Random(42).nextBytes(data);
+
+		for (int i = 0; i < 20; ++i) {
+			EncryptionProfile profile = new EncryptionProfile(
+				"42",
+				PGPEncryptedData.AES_128,
+				true,
+				PGPCompressedData.ZLIB,
+				PGPLiteralData.BINARY,
+				1 << 14,
+				null,
+				0,
+				0,
+				0,
+				0,
+				"BC",
+				true,
+				1);
+			OutputStream cout = OpenPgpCompressor.createOutputStream(new OutputStream() {
+				private int count;
+
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					count += len;
+
+					if (count > 100000) throw new IOException("disk full");
+				}
+			}, profile);
+
+			try {
+				for (int off = 0; off < data.length; off += 10000)
+					cout.write(data, off, Math.min(10000, data.length - off));
+			} catch (IOException ex) {
+			}
+
+			try {
+				cout.close();
+				fail();
+			} catch (IOException ex) {
+				assertEquals("disk full", ex.getMessage());
+			}
+		}
+
+		assertEquals(consumers, PipelineOutputStreamTest.awaitConsumers(consumers));
+	}
+
+	@Test
+	public void createParallelOutputStream() throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		while (sb.length() < 3 * ParallelDeflaterOutputStream.BLOCK_SIZE)
+			sb.append(OpenPgpPacketDecoderTest.createText());
+
+		byte[] data = sb.toString().getBytes("UTF-8");
+
+		for (int compression : new int[] { PGPCompressedData.ZIP, PGPCompressedData.ZLIB, PGPCompressedData.BZIP2 }) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			EncryptionProfile profile = new EncryptionProfile(
+				"42",
+				PGPEncryptedData.AES_128,
+				true,
+				compression,
+				PGPLiteralData.BINARY,
+				1 << 14,
+				null,
+				0,
+				0,
+				0,
+				0,
+				"BC",
+				false,
+				3);
+			OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+			cout.write(data);
+			cout.close();
+
+			for (int threads : new int[] { 1, 3 }) {
+				InputStream in = OpenPgpDecompressor.createInputStream(new ByteArrayInputStream(bout.toByteArray()), true, null, "42", null, "BC", threads);
+
+				assertEquals(sb.toString(), OpenPgpCodecTest.readAll(in));
+			}
+		}
+	}
+
+	@Test
+	public void createAutoOutputStream() throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 20; ++i)
+			sb.append(OpenPgpPacketDecoderTest.createText());
+
+		byte[] text = sb.toString().getBytes("UTF-8");
+		byte[] noise = new byte[text.length];
+
+		new Random(42).nextBytes(noise);
+
+		for (byte[] data : new byte[][] { text, new byte[100], noise }) {
+			long compressed = OpenPgpCompressor.getAutoCompressedCount();
+			long uncompressed = OpenPgpCompressor.getAutoUncompressedCount();
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			EncryptionProfile profile = createProfile(
+				null,
+				PGPEncryptedData.NULL,
+				false,
+				OpenPgpCompressor.AUTO_COMPRESSION,
+				PGPLiteralData.BINARY,
+				1 << 14);
+			OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+			cout.write(data);
+			cout.close();
+
+			boolean compressible = (data != noise);
+			Object po = new PGPObjectFactory(bout.toByteArray()).nextObject();
+
+			assertEquals(compressible, po instanceof PGPCompressedData);
+			assertEquals(compressed + (compressible ? 1 : 0), OpenPgpCompressor.getAutoCompressedCount());
+			assertEquals(uncompressed + (compressible ? 0 : 1), OpenPgpCompressor.getAutoUncompressedCount());
+
+			InputStream in = OpenPgpDecompressor.createInputStream(new ByteArrayInputStream(bout.toByteArray()), false, null, "", null);
+
+			assertTrue(Arrays.equals(data, ParallelBZip2OutputStreamTest.readAll(in, data.length)));
+		}
+	}
+
+	/**
+	 * Return data compressed with ZLIB, and encrypted with the pass
+	 * phrase "42" and an MDC.
+	**/
+	private static byte[] createOutputStream(byte[] data, int encryption, boolean pipelined) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		EncryptionProfile profile = createProfile(
+			"42",
+			encryption,
+			encryption != PGPEncryptedData.NULL,
+			PGPCompressedData.ZLIB,
+			PGPLiteralData.BINARY,
+			1 << 14);
+		OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile, null, pipelined, "", PGPLiteralData.NOW);
+
+		// In pieces, to exercise the hand-overs.
+		for (int off = 0; off < data.length; off += 10000)
+			cout.write(data, off, Math.min(10000, data.length - off));
+
+		cout.close();
+
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Return an unsigned, unpipelined profile, with a single compression
+	 * thread and the CFB mode of Bouncy Castle.
+	**/
+	static EncryptionProfile createProfile(Object key, int encryption, boolean integrity, int compression, int format, int bufferSize) {
+		return new EncryptionProfile(key, encryption, integrity, compression, format, bufferSize, null, 0, 0, 0, 0, "BC", false, 1);
+	}
+
+	private static byte[] compress(OpenPgpCompressor c, String text) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		byte[] b = text.getBytes("UTF-8");
+		byte[] buf = new byte[100];
+
+		c.setInput(b, 0, b.length);
+		c.finish();
+
+		while (!c.finished()) {
+			int n = c.compress(buf, 0, buf.length);
+
+			bout.write(buf, 0, n);
+		}
+
+		assertEquals(b.length, c.getBytesRead());
+		assertEquals(bout.size(), c.getBytesWritten());
+
+		return bout.toByteArray();
+	}
+
+	private static String decrypt(byte[] data) throws IOException {
+		InputStream in = new OpenPgpCompressionInputStream(new ByteArrayInputStream(data), null, "42", 1 << 10);
+
+		return OpenPgpCodecTest.readAll(in);
+	}
+
 	public static PGPPublicKey getPublicKey() {
 		try {
 			PGPPublicKeyRingCollection col = GnuPgUtils.createPublicKeyRingCollection(new File("etc", GnuPgUtils.PUBRING_FILE_NAME));
@@ -1,5 +1,6 @@
 package com.spotify.hadoop.openpgp;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.File;
 import java.io.InputStream;
@@ -9,6 +10,8 @@ import java.security.NoSuchProviderException;
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
 
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
@@ -63,6 +66,41 @@ public class OpenPgpDecompressorTest {
 		assertEquals("Hello world!\n", data);
 	}
 
+	@Test
+	public void createInputStreamSigned() throws Exception {
+		String text = OpenPgpPacketDecoderTest.createText();
+		byte[] data = OpenPgpPacketDecoderTest.encodeSigned(text, "42", PGPEncryptedData.AES_128, PGPCompressedData.ZIP);
+		InputStream din = OpenPgpDecompressor.createInputStream(
+			new ByteArrayInputStream(data),
+			true,
+			null,
+			"42",
+			OpenPgpPacketDecoderTest.SIGNATURE_KEYS);
+
+		assertEquals(text, OpenPgpCodecTest.readAll(din));
+	}
+
+	@Test
+	public void createInputStreamSignatureTampered() throws Exception {
+		String text = OpenPgpPacketDecoderTest.createText();
+		byte[] data = OpenPgpPacketDecoderTest.encodeSigned(text, null, PGPEncryptedData.NULL, PGPCompressedData.UNCOMPRESSED);
+
+		data[data.length - 400] ^= 1;
+
+		InputStream din = OpenPgpDecompressor.createInputStream(
+			new ByteArrayInputStream(data),
+			false,
+			null,
+			null,
+			OpenPgpPacketDecoderTest.SIGNATURE_KEYS);
+
+		try {
+			OpenPgpCodecTest.readAll(din);
+			fail();
+		} catch (IOException ex) {
+		}
+	}
+
 	public static PGPPrivateKey getPrivateKey(long id) {
 		try {
 			PGPSecretKeyRingCollection col = GnuPgUtils.createSecretKeyRingCollection(new File("etc", GnuPgUtils.SECRING_FILE_NAME));
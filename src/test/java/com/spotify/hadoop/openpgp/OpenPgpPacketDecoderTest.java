@@ -0,0 +1,522 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+
+
+public class OpenPgpPacketDecoderTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	private static final OpenPgpDecompressor.PrivateKeyFactory KEY_FACTORY = new OpenPgpDecompressor.PrivateKeyFactory() {
+		public PGPPrivateKey getPrivateKey(long id) {
+			return OpenPgpDecompressorTest.getPrivateKey(id);
+		}
+	};
+
+	static final OpenPgpDecompressor.PublicKeyFactory SIGNATURE_KEYS = new OpenPgpDecompressor.PublicKeyFactory() {
+		public PGPPublicKey getPublicKey(long id) {
+			try {
+				return GnuPgUtils.createPublicKeyRingCollection(new File("etc", GnuPgUtils.PUBRING_FILE_NAME)).getPublicKey(id);
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	};
+
+	@Test
+	public void decodePublicKeyEncrypted() throws Exception {
+		assertEquals("Hello world!\n", decode(readResource("hello.txt.gpg"), KEY_FACTORY, null, 1 << 10));
+	}
+
+	@Test
+	public void decodeSymmetrical() throws Exception {
+		assertEquals("Hello world!\n", decode(readResource("hello.txt-sym.gpg"), null, "42", 1 << 10));
+	}
+
+	@Test
+	public void decodeByteByByte() throws Exception {
+		assertEquals("Hello world!\n", decode(readResource("hello.txt.gpg"), KEY_FACTORY, null, 1));
+		assertEquals("Hello world!\n", decode(readResource("hello.txt-sym.gpg"), null, "42", 1));
+	}
+
+	@Test
+	public void decodeCompressed() throws Exception {
+		String text = createText();
+
+		for (int compression : new int[] { PGPCompressedData.UNCOMPRESSED, PGPCompressedData.ZIP, PGPCompressedData.ZLIB }) {
+			byte[] data = encode(text, OpenPgpCompressorTest.getPublicKey(), PGPEncryptedData.AES_128, compression);
+
+			assertEquals(text, decode(data, KEY_FACTORY, null, 7));
+		}
+	}
+
+	@Test
+	public void decodeConcatenated() throws Exception {
+		byte[] a = encode("first\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.ZIP);
+		byte[] b = encode("second\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.UNCOMPRESSED);
+		byte[] both = new byte[a.length + b.length];
+
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+
+		OpenPgpPacketDecoder d = new OpenPgpPacketDecoder(null, "42");
+		byte[] buf = new byte[1 << 10];
+
+		d.setInput(both, 0, both.length);
+		assertEquals("first\n", readAll(d, buf));
+		assertEquals(b.length, d.getRemaining());
+
+		d.reset();
+		d.setInput(both, a.length, b.length);
+		assertEquals("second\n", readAll(d, buf));
+		assertEquals(0, d.getRemaining());
+	}
+
+	@Test
+	public void decodeNeedsInput() throws Exception {
+		byte[] data = readResource("hello.txt-sym.gpg");
+		OpenPgpPacketDecoder d = new OpenPgpPacketDecoder(null, "42");
+		byte[] buf = new byte[1 << 10];
+
+		d.setInput(data, 0, data.length / 2);
+		assertEquals(0, d.decode(buf, 0, buf.length));
+		assertEquals(0, d.getRemaining());
+	}
+
+	@Test(expectedExceptions = UnsupportedStreamException.class)
+	public void decodeBzip2() throws Exception {
+		byte[] data = encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.BZIP2);
+
+		decode(data, null, "42", 1 << 10);
+	}
+
+	@Test
+	public void getConsumedInput() throws Exception {
+		byte[] data = encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.BZIP2);
+		OpenPgpPacketDecoder d = new OpenPgpPacketDecoder(null, "42");
+		byte[] buf = new byte[1 << 10];
+
+		d.setInput(data, 0, data.length);
+
+		try {
+			d.decode(buf, 0, buf.length);
+			fail();
+		} catch (UnsupportedStreamException ex) {
+		}
+
+		byte[] consumed = d.getConsumedInput();
+
+		assertEquals(data.length, consumed.length + d.getRemaining());
+
+		for (int i = 0; i < consumed.length; ++i)
+			assertEquals(data[i], consumed[i]);
+	}
+
+	@Test(expectedExceptions = KeyNotFoundException.class)
+	public void decodeWithoutKey() throws Exception {
+		decode(readResource("hello.txt.gpg"), null, null, 1 << 10);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void decodeWrongPassPhrase() throws Exception {
+		decode(readResource("hello.txt-sym.gpg"), null, "43", 1 << 10);
+	}
+
+	@Test
+	public void decodeVerified() throws Exception {
+		String text = createText();
+
+		for (int compression : new int[] { PGPCompressedData.UNCOMPRESSED, PGPCompressedData.ZIP }) {
+			byte[] data = encode(text, OpenPgpCompressorTest.getPublicKey(), PGPEncryptedData.AES_128, compression);
+
+			assertEquals(text, decode(data, KEY_FACTORY, null, true, 7, new ByteArrayOutputStream()));
+		}
+
+		byte[] data = encode("Hello world!\n", "42", PGPEncryptedData.CAST5, PGPCompressedData.ZLIB);
+
+		assertEquals("Hello world!\n", decode(data, null, "42", true, 1, new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void decodeTampered() throws Exception {
+		String text = createText();
+		byte[] data = encode(text, "42", PGPEncryptedData.AES_128, PGPCompressedData.UNCOMPRESSED);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// Change plaintext near the end.
+		data[data.length - 100] ^= 1;
+
+		try {
+			decode(data, null, "42", true, 1 << 10, out);
+			fail();
+		} catch (IOException ex) {
+		}
+
+		assertTrue(out.size() <= text.length() - OpenPgpPacketDecoder.HOLDBACK);
+
+		// Without verification, the change goes unnoticed.
+		assertFalse(text.equals(decode(data, null, "42", 1 << 10)));
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void decodeUnprotected() throws Exception {
+		// Symmetrically encrypted data without modification detection code.
+		decode(readResource("hello.txt-sym.gpg"), null, "42", true, 1 << 10, new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void decodeSigned() throws Exception {
+		String text = createText();
+
+		for (int compression : new int[] { PGPCompressedData.UNCOMPRESSED, PGPCompressedData.ZLIB }) {
+			byte[] data = encodeSigned(text, null, PGPEncryptedData.NULL, compression);
+
+			assertEquals(text, decode(data, null, null, false, SIGNATURE_KEYS, 7, new ByteArrayOutputStream()));
+
+			// Without verification, the signature packets are skipped.
+			assertEquals(text, decode(data, null, null, 1 << 10));
+		}
+
+		byte[] data = encodeSigned(text, OpenPgpCompressorTest.getPublicKey(), PGPEncryptedData.AES_128, PGPCompressedData.ZIP);
+
+		assertEquals(text, decode(data, KEY_FACTORY, null, true, SIGNATURE_KEYS, 1 << 10, new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void decodeSignatureTampered() throws Exception {
+		String text = createText();
+		byte[] data = encodeSigned(text, null, PGPEncryptedData.NULL, PGPCompressedData.UNCOMPRESSED);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// Change plaintext near the end, before the signature packet.
+		data[data.length - 400] ^= 1;
+
+		try {
+			decode(data, null, null, false, SIGNATURE_KEYS, 1 << 10, out);
+			fail();
+		} catch (IOException ex) {
+		}
+
+		assertTrue(out.size() <= text.length() - OpenPgpPacketDecoder.HOLDBACK);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void decodeUnsigned() throws Exception {
+		decode(readResource("hello.txt.gpg"), KEY_FACTORY, null, false, SIGNATURE_KEYS, 1 << 10, new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void decodeAead() throws Exception {
+		String text = createText();
+
+		for (int aeadAlgorithm : new int[] { AeadCipher.EAX, AeadCipher.GCM }) {
+			byte[] data = encodeAead(text, "42", aeadAlgorithm);
+
+			for (int parallelism : new int[] { 1, 4 }) {
+				assertEquals(text, decode(data, null, "42", parallelism, 7, new ByteArrayOutputStream()));
+				assertEquals(text, decode(data, null, "42", parallelism, 1 << 16, new ByteArrayOutputStream()));
+			}
+
+			data = encodeAead(text, OpenPgpCompressorTest.getPublicKey(), aeadAlgorithm);
+
+			assertEquals(text, decode(data, KEY_FACTORY, null, 4, 1 << 10, new ByteArrayOutputStream()));
+		}
+
+		// No chunks, only the final tag.
+		assertEquals("", decode(encodeAead("", "42", AeadCipher.GCM), null, "42", 1, 1, new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void decodeAeadTampered() throws Exception {
+		String text = createText();
+		byte[] data = encodeAead(text, "42", AeadCipher.GCM);
+
+		data[data.length / 2] ^= 1;
+
+		for (int parallelism : new int[] { 1, 4 }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			try {
+				decode(data, null, "42", parallelism, 1 << 10, out);
+				fail();
+			} catch (IOException ex) {
+			}
+
+			// Chunks are authenticated before being returned.
+			assertTrue(out.size() < text.length() / 2);
+		}
+	}
+
+	@Test
+	public void decodeAeadTruncated() throws Exception {
+		byte[] data = encodeAead(createText(), "42", AeadCipher.EAX);
+
+		// Into the final tag, and dropping it.
+		for (int cut : new int[] { 5, AeadCipher.TAG_LENGTH }) {
+			byte[] truncated = new byte[data.length - cut];
+
+			System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+			try {
+				decode(truncated, null, "42", 1, 1 << 10, new ByteArrayOutputStream());
+				fail();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	@Test
+	public void decodeParallelCfb() throws Exception {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 10; ++i)
+			sb.append(createText());
+
+		String text = sb.toString();
+
+		// Integrity protected, with the modification detection code.
+		byte[] data = encode(text, "42", PGPEncryptedData.AES_128, PGPCompressedData.UNCOMPRESSED);
+		OpenPgpPacketDecoder d = new OpenPgpPacketDecoder(null, "42", true);
+
+		d.setParallelism(4);
+		assertEquals(text, decode(d, data, 1 << 12, new ByteArrayOutputStream()));
+
+		data[data.length - 100] ^= 1;
+		d = new OpenPgpPacketDecoder(null, "42", true);
+		d.setParallelism(4);
+
+		try {
+			decode(d, data, 1 << 12, new ByteArrayOutputStream());
+			fail();
+		} catch (IOException ex) {
+		}
+
+		// Resynchronized after the prefix, without integrity protection.
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		EncryptionProfile profile = OpenPgpCompressorTest.createProfile(
+			OpenPgpCompressorTest.getPublicKey(),
+			PGPEncryptedData.CAST5,
+			false,
+			PGPCompressedData.UNCOMPRESSED,
+			PGPLiteralData.BINARY,
+			1 << 10);
+		OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+		cout.write(text.getBytes("UTF-8"));
+		cout.close();
+
+		assertEquals(text, decode(bout.toByteArray(), KEY_FACTORY, null, 3, 1 << 14, new ByteArrayOutputStream()));
+
+		// Shorter than a segment.
+		assertEquals("Hello world!\n", decode(readResource("hello.txt-sym.gpg"), null, "42", 4, 1, new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void decodeJdkCipher() throws Exception {
+		String text = createText();
+
+		// With and without the OpenPGP CFB mode, which falls back to
+		// Bouncy Castle.
+		for (byte[] data : new byte[][] { encode(text, "42", PGPEncryptedData.AES_128, PGPCompressedData.ZLIB), readResource("hello.txt-sym.gpg") }) {
+			String expected = (data.length > 1000 ? text : "Hello world!\n");
+
+			for (int parallelism : new int[] { 1, 2 }) {
+				OpenPgpPacketDecoder d = new OpenPgpPacketDecoder(null, "42");
+
+				d.setParallelism(parallelism);
+				d.setCipherProvider(GnuPgUtils.resolveCipherProvider("jdk"));
+				assertEquals(expected, decode(d, data, 1 << 10, new ByteArrayOutputStream()));
+			}
+		}
+	}
+
+	/**
+	 * Decode all of data, supplying it in chunks of the given size.
+	**/
+	private static String decode(byte[] data, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, int chunkSize) throws IOException {
+		return decode(data, keyFactory, passPhrase, false, chunkSize, new ByteArrayOutputStream());
+	}
+
+	/**
+	 * Decode all of data into out, supplying it in chunks of the given size.
+	**/
+	private static String decode(byte[] data, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, boolean verifyIntegrity, int chunkSize, ByteArrayOutputStream out) throws IOException {
+		return decode(data, keyFactory, passPhrase, verifyIntegrity, null, chunkSize, out);
+	}
+
+	private static String decode(byte[] data, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, boolean verifyIntegrity, OpenPgpDecompressor.PublicKeyFactory signatureKeys, int chunkSize, ByteArrayOutputStream out) throws IOException {
+		return decode(new OpenPgpPacketDecoder(keyFactory, passPhrase, verifyIntegrity, signatureKeys), data, chunkSize, out);
+	}
+
+	/**
+	 * Decode all of data, decrypting AEAD chunks parallelism at a time.
+	**/
+	private static String decode(byte[] data, OpenPgpDecompressor.PrivateKeyFactory keyFactory, String passPhrase, int parallelism, int chunkSize, ByteArrayOutputStream out) throws IOException {
+		OpenPgpPacketDecoder d = new OpenPgpPacketDecoder(keyFactory, passPhrase);
+
+		d.setParallelism(parallelism);
+
+		return decode(d, data, chunkSize, out);
+	}
+
+	private static String decode(OpenPgpPacketDecoder d, byte[] data, int chunkSize, ByteArrayOutputStream out) throws IOException {
+		byte[] buf = new byte[13];
+		int off = 0;
+
+		for (;;) {
+			int n = d.decode(buf, 0, buf.length);
+
+			if (n < 0) break;
+
+			if (n > 0) {
+				out.write(buf, 0, n);
+			} else if (off < data.length) {
+				int len = Math.min(chunkSize, data.length - off);
+
+				d.setInput(data, off, len);
+				off += len;
+			} else {
+				d.finish();
+			}
+		}
+
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private static String readAll(OpenPgpPacketDecoder d, byte[] buf) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (;;) {
+			int n = d.decode(buf, 0, buf.length);
+
+			if (n < 0) break;
+
+			assertTrue(n > 0);
+			out.write(buf, 0, n);
+		}
+
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	static byte[] encode(String text, Object key, int encryption, int compression) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		EncryptionProfile profile = OpenPgpCompressorTest.createProfile(
+			key,
+			encryption,
+			true,
+			compression,
+			PGPLiteralData.BINARY,
+			1 << 10);
+		OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+		cout.write(text.getBytes("UTF-8"));
+		cout.close();
+
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Encode text like encode(), AEAD encrypted with AES-128 in chunks
+	 * of 1 KiB.
+	**/
+	static byte[] encodeAead(String text, Object key, int aeadAlgorithm) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		EncryptionProfile profile = new EncryptionProfile(
+			key,
+			PGPEncryptedData.AES_128,
+			true,
+			PGPCompressedData.UNCOMPRESSED,
+			PGPLiteralData.BINARY,
+			1 << 10,
+			null,
+			0,
+			0,
+			aeadAlgorithm,
+			1 << 10,
+			"BC",
+			false,
+			1);
+		OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+		cout.write(text.getBytes("UTF-8"));
+		cout.close();
+
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Encode text like encode(), signed by the test key.
+	**/
+	static byte[] encodeSigned(String text, Object key, int encryption, int compression) throws Exception {
+		PGPSecretKeyRingCollection col = GnuPgUtils.createSecretKeyRingCollection(new File("etc", GnuPgUtils.SECRING_FILE_NAME));
+		PGPSecretKey signingKey = GnuPgUtils.getSecretKey(col, "75FAD0E0");
+		EncryptionProfile profile = new EncryptionProfile(
+			key,
+			encryption,
+			encryption != PGPEncryptedData.NULL,
+			compression,
+			PGPLiteralData.BINARY,
+			1 << 10,
+			signingKey.extractPrivateKey("".toCharArray(), "BC"),
+			signingKey.getPublicKey().getAlgorithm(),
+			PGPUtil.SHA256,
+			0,
+			0,
+			"BC",
+			false,
+			1);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream cout = OpenPgpCompressor.createOutputStream(bout, profile);
+
+		cout.write(text.getBytes("UTF-8"));
+		cout.close();
+
+		return bout.toByteArray();
+	}
+
+	static String createText() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 5000; ++i)
+			sb.append("Line ").append(i).append('\n');
+
+		return sb.toString();
+	}
+
+	static byte[] readResource(String name) throws IOException {
+		InputStream in = ClassLoader.getSystemResourceAsStream(name);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1 << 10];
+
+		try {
+			for (;;) {
+				int n = in.read(buf);
+
+				if (n < 0) break;
+
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,112 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class OpenPgpSeekableInputStreamTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	private byte[] data;
+	private byte[] indexData;
+	private String text;
+	private OpenPgpCodec codec;
+
+	@BeforeClass
+	public void write() throws Exception {
+		Configuration conf = new Configuration(false);
+
+		conf.set("spotify.hadoop.openpgp.encrypt.passPhrase", "42");
+		conf.setLong("spotify.hadoop.openpgp.blockSize", 1000);
+		codec = new OpenPgpCodec();
+		codec.setConf(conf);
+		text = OpenPgpPacketDecoderTest.createText();
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ByteArrayOutputStream iout = new ByteArrayOutputStream();
+		OutputStream out = codec.createIndexedOutputStream(bout, iout);
+
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+
+		data = bout.toByteArray();
+		indexData = iout.toByteArray();
+	}
+
+	@Test
+	public void index() throws Exception {
+		BlockIndex index = BlockIndex.read(new ByteArrayInputStream(indexData));
+
+		assertTrue(index.size() > 1);
+
+		for (int i = 0; i < index.size(); ++i) {
+			assertTrue(BlockMarker.matches(data, (int) index.getFileOffset(i)));
+
+			if (i > 0) {
+				// Blocks end at line breaks.
+				assertEquals('\n', text.charAt((int) index.getPlaintextOffset(i) - 1));
+			}
+		}
+
+		assertEquals(-1, index.find(-1));
+		assertEquals(0, index.find(0));
+		assertEquals(1, index.find(index.getPlaintextOffset(1)));
+		assertEquals(index.size() - 1, index.find(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void seek() throws Exception {
+		OpenPgpSeekableInputStream in = open();
+		byte[] b = new byte[50];
+
+		for (int pos : new int[] { 4321, 0, 999, 1000, 1001, text.length() - 50, 17 }) {
+			in.seek(pos);
+			assertEquals(pos, in.getPos());
+			assertEquals(text.substring(pos, pos + 50), read(in, b));
+			assertEquals(pos + 50, in.getPos());
+		}
+
+		in.close();
+	}
+
+	@Test
+	public void readAcrossBlocks() throws Exception {
+		OpenPgpSeekableInputStream in = open();
+
+		in.seek(10);
+		assertEquals(text.substring(10), OpenPgpCodecTest.readAll(in));
+	}
+
+	@Test(expectedExceptions = EOFException.class)
+	public void seekPastEnd() throws Exception {
+		OpenPgpSeekableInputStream in = open();
+
+		in.seek(text.length() + 1);
+		in.read();
+	}
+
+	private OpenPgpSeekableInputStream open() throws Exception {
+		return codec.createSeekableInputStream(OpenPgpCodecTest.createFile(data), new ByteArrayInputStream(indexData));
+	}
+
+	private static String read(OpenPgpSeekableInputStream in, byte[] b) throws Exception {
+		int n = 0;
+
+		while (n < b.length) {
+			int m = in.read(b, n, b.length - n);
+
+			assertTrue(m > 0);
+			n += m;
+		}
+
+		return new String(b, "UTF-8");
+	}
+}
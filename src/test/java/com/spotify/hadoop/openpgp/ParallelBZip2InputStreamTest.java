@@ -0,0 +1,73 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.apache.bzip2.CBZip2OutputStream;
+
+
+public class ParallelBZip2InputStreamTest {
+	@Test
+	public void read() throws Exception {
+		Random random = new Random(42);
+		byte[] data = new byte[2 * 1000 * 1000];
+
+		for (int i = 0; i < data.length; ++i)
+			data[i] = (byte) ('a' + random.nextInt(8));
+
+		// Blocks written by Bouncy Castle, and by the parallel encoder.
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		CBZip2OutputStream bz = new CBZip2OutputStream(bout);
+
+		bz.write(data);
+		bz.close();
+
+		ParallelBZip2OutputStream pbz = new ParallelBZip2OutputStream(bout, 2);
+
+		pbz.write(data, 0, 1000);
+		pbz.close();
+
+		byte[] b = ParallelBZip2OutputStreamTest.readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(bout.toByteArray()), 3), data.length);
+
+		assertEquals(data.length + 1000, b.length);
+
+		for (int i = 0; i < b.length; ++i)
+			assertEquals(data[i % data.length], b[i]);
+	}
+
+	@Test
+	public void readCorrupt() throws Exception {
+		byte[] data = new byte[100000];
+
+		new Random(42).nextBytes(data);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		CBZip2OutputStream bz = new CBZip2OutputStream(bout);
+
+		bz.write(data);
+		bz.close();
+
+		byte[] b = bout.toByteArray();
+
+		b[b.length / 2] ^= 1;
+
+		try {
+			ParallelBZip2OutputStreamTest.readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(b), 2), data.length);
+			fail();
+		} catch (IOException ex) {
+			// Expected.
+		}
+
+		try {
+			ParallelBZip2OutputStreamTest.readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(b, 0, b.length - 20), 2), data.length);
+			fail();
+		} catch (IOException ex) {
+			// Expected.
+		}
+	}
+}
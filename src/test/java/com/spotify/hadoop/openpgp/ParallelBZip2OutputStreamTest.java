@@ -0,0 +1,88 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.apache.bzip2.CBZip2InputStream;
+
+
+public class ParallelBZip2OutputStreamTest {
+	@Test
+	public void write() throws Exception {
+		Random random = new Random(42);
+		byte[] data = new byte[2 * ParallelBZip2OutputStream.BLOCK_SIZE + 12345];
+
+		// Runs of four grow in the first run-length encoding.
+		for (int i = 0; i < data.length; ++i)
+			data[i] = (byte) (i % 5 == 4 ? random.nextInt(256) : 'a' + random.nextInt(2) * (i / 5 % 2));
+
+		for (int len : new int[] { 0, 1, 100, data.length }) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			ParallelBZip2OutputStream out = new ParallelBZip2OutputStream(bout, 2);
+
+			out.write(data, 0, len);
+			out.close();
+
+			// A single stream, read by the Bouncy Castle decoder.
+			byte[] b = readAll(new CBZip2InputStream(new ByteArrayInputStream(bout.toByteArray())), len);
+
+			assertEquals(len, b.length);
+
+			for (int i = 0; i < len; ++i)
+				assertEquals(data[i], b[i]);
+		}
+	}
+
+	@Test
+	public void crc() throws Exception {
+		byte[] data = "123456789".getBytes("US-ASCII");
+
+		// The check value of CRC-32/BZIP2.
+		assertEquals(0xFC891918, ~BZip2Stream.updateCrc(-1, data, 0, data.length));
+	}
+
+	@Test
+	public void writeBits() throws Exception {
+		byte[] data = new byte[100];
+		Random random = new Random(42);
+
+		random.nextBytes(data);
+
+		for (int off = 0; off < 16; ++off) {
+			for (int len : new int[] { 0, 3, 8, 13, 64, 700 }) {
+				BZip2Stream.Writer w = new BZip2Stream.Writer(0);
+
+				w.writeBits(5, 3);
+				w.writeBits(data, off, len);
+				w.align();
+
+				byte[] b = w.getBuffer();
+
+				assertEquals(5, BZip2Stream.readBits(b, 0, 3));
+
+				for (int i = 0; i < len; ++i)
+					assertEquals(BZip2Stream.readBits(data, off + i, 1), BZip2Stream.readBits(b, 3 + i, 1));
+			}
+		}
+	}
+
+	/**
+	 * Return all bytes of a stream, expecting about n.
+	**/
+	static byte[] readAll(InputStream in, int n) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(n);
+		byte[] buf = new byte[1 << 16];
+
+		for (int len = in.read(buf); len >= 0; len = in.read(buf))
+			bout.write(buf, 0, len);
+
+		in.close();
+
+		return bout.toByteArray();
+	}
+}
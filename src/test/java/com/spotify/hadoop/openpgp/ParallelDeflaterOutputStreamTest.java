@@ -0,0 +1,70 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class ParallelDeflaterOutputStreamTest {
+	@Test
+	public void combineAdler32() throws Exception {
+		byte[] data = new byte[100000];
+		Random random = new Random(42);
+
+		random.nextBytes(data);
+
+		for (int split : new int[] { 0, 1, 65521, 70000, data.length }) {
+			Adler32 a1 = new Adler32();
+			Adler32 a2 = new Adler32();
+			Adler32 a = new Adler32();
+
+			a1.update(data, 0, split);
+			a2.update(data, split, data.length - split);
+			a.update(data);
+
+			assertEquals(a.getValue(), ParallelDeflaterOutputStream.combineAdler32(a1.getValue(), a2.getValue(), data.length - split));
+		}
+	}
+
+	@Test
+	public void write() throws Exception {
+		if (!ParallelDeflaterOutputStream.isAvailable()) return;
+
+		Random random = new Random(42);
+		byte[] data = new byte[3 * ParallelDeflaterOutputStream.BLOCK_SIZE + 123];
+
+		// Compressible, with matches across blocks.
+		for (int i = 0; i < data.length; ++i)
+			data[i] = (byte) ('a' + random.nextInt(4));
+
+		for (int len : new int[] { 0, 100, data.length }) {
+			for (boolean zlib : new boolean[] { false, true }) {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(bout, Deflater.DEFAULT_COMPRESSION, zlib, 2);
+
+				out.write(data, 0, len);
+				out.close();
+
+				byte[] b = new byte[data.length];
+				Inflater inflater = new Inflater(!zlib);
+
+				inflater.setInput(bout.toByteArray());
+				assertEquals(len, inflater.inflate(b));
+				assertTrue(inflater.finished());
+
+				for (int i = 0; i < len; ++i)
+					assertEquals(data[i], b[i]);
+
+				// The Adler-32 trailer is checked by the inflater.
+				if (zlib) assertEquals(0, inflater.getRemaining());
+
+				inflater.end();
+			}
+		}
+	}
+}
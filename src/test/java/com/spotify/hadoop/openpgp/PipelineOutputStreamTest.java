@@ -0,0 +1,145 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class PipelineOutputStreamTest {
+	@Test
+	public void write() throws Exception {
+		byte[] data = new byte[5 * PipelineOutputStream.BLOCK_SIZE + 123];
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		PipelineOutputStream out = new PipelineOutputStream(bout);
+		Random random = new Random(42);
+
+		random.nextBytes(data);
+
+		for (int off = 0; off < data.length; ) {
+			int n = Math.min(data.length - off, random.nextInt(100000));
+
+			out.write(data, off, n);
+			off += n;
+		}
+
+		out.close();
+		assertTrue(Arrays.equals(data, bout.toByteArray()));
+	}
+
+	@Test
+	public void flush() throws Exception {
+		final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		final int[] flushedSize = new int[1];
+		PipelineOutputStream out = new PipelineOutputStream(new OutputStream() {
+			public void write(int b) {
+				bout.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				bout.write(b, off, len);
+			}
+
+			public void flush() {
+				flushedSize[0] = bout.size();
+			}
+		});
+
+		out.write(new byte[1000]);
+		out.flush();
+		assertEquals(1000, bout.size());
+		assertEquals(1000, flushedSize[0]);
+		out.close();
+	}
+
+	@Test
+	public void failure() throws Exception {
+		PipelineOutputStream out = new PipelineOutputStream(new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("disk full");
+			}
+		});
+
+		try {
+			for (int i = 0; i < 2 * PipelineOutputStream.DEPTH + 2; ++i)
+				out.write(new byte[PipelineOutputStream.BLOCK_SIZE]);
+
+			out.close();
+			fail();
+		} catch (IOException ex) {
+			assertEquals("disk full", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void abortInterruptedClose() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		int consumers = countConsumers();
+		PipelineOutputStream out = new PipelineOutputStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					throw new IOException(ex);
+				}
+			}
+		});
+
+		out.write(new byte[PipelineOutputStream.BLOCK_SIZE + 1]);
+		Thread.currentThread().interrupt();
+
+		try {
+			out.close();
+			fail();
+		} catch (IOException ex) {
+		}
+
+		Thread.interrupted();
+		out.abort();
+		release.countDown();
+		assertEquals(consumers, awaitConsumers(consumers));
+	}
+
+	/**
+	 * Return the number of threads running PipelineOutputStream
+	 * consumers.
+	**/
+	static int countConsumers() {
+		int ret = 0;
+
+		for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+			for (StackTraceElement frame : e.getValue()) {
+				if (frame.getClassName().equals(PipelineOutputStream.class.getName()) && frame.getMethodName().equals("consume")) {
+					++ret;
+					break;
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Wait up to five seconds for the consumers to go down to a number,
+	 * and return how many are left.
+	**/
+	static int awaitConsumers(int n) throws InterruptedException {
+		int ret = countConsumers();
+
+		for (int i = 0; i < 50 && ret > n; ++i) {
+			Thread.sleep(100);
+			ret = countConsumers();
+		}
+
+		return ret;
+	}
+}
@@ -0,0 +1,79 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.File;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+
+public class PrivateKeyCacheTest {
+	static {
+		java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	// The encryption subkey of the test key ring.
+	public static final long KEY_ID = 0x63C1475D9F76D455L;
+
+	public static final File SECRING = new File("etc", GnuPgUtils.SECRING_FILE_NAME);
+
+	@Test
+	public void getPrivateKeyCached() throws Exception {
+		PrivateKeyCache cache = new PrivateKeyCache(2);
+		PGPPrivateKey key = cache.getPrivateKey(SECRING, KEY_ID, "", 60000);
+
+		assertEquals(KEY_ID, key.getKeyID());
+		assertSame(key, cache.getPrivateKey(SECRING, KEY_ID, "", 60000));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void getPrivateKeyExpired() throws Exception {
+		PrivateKeyCache cache = new PrivateKeyCache(2);
+		PGPPrivateKey key = cache.getPrivateKey(SECRING, KEY_ID, "", 60000);
+
+		assertNotSame(key, cache.getPrivateKey(SECRING, KEY_ID, "", 0));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void getPrivateKeyByPassPhrase() throws Exception {
+		PrivateKeyCache cache = new PrivateKeyCache(2);
+		PGPPrivateKey key = cache.getPrivateKey(SECRING, KEY_ID, "", 60000);
+
+		// The test key is unprotected, so any pass phrase unlocks it.
+		assertNotSame(key, cache.getPrivateKey(SECRING, KEY_ID, "other", 60000));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void getPrivateKeyReloaded() throws Exception {
+		PrivateKeyCache cache = new PrivateKeyCache(2);
+		File secring = GnuPgUtilsTest.copyToTemp(SECRING);
+
+		try {
+			PGPPrivateKey key = cache.getPrivateKey(secring, KEY_ID, "", 60000);
+
+			assertTrue(secring.setLastModified(secring.lastModified() - 10000));
+			assertNotSame(key, cache.getPrivateKey(secring, KEY_ID, "", 60000));
+			assertEquals(1, cache.size());
+		} finally {
+			secring.delete();
+		}
+	}
+
+	@Test
+	public void capacity() throws Exception {
+		PrivateKeyCache cache = new PrivateKeyCache(1);
+		File secring = GnuPgUtilsTest.copyToTemp(SECRING);
+
+		try {
+			cache.getPrivateKey(SECRING, KEY_ID, "", 60000);
+			cache.getPrivateKey(secring, KEY_ID, "", 60000);
+			assertEquals(1, cache.size());
+		} finally {
+			secring.delete();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.spotify.hadoop.openpgp;
+
+import java.io.File;
+
+import org.testng.annotations.*;
+import static org.testng.AssertJUnit.*;
+
+
+public class PublicKeyIndexTest {
+	private PublicKeyIndex index;
+
+	@BeforeClass
+	public void setUp() throws Exception {
+		index = new PublicKeyIndex(GnuPgUtils.createPublicKeyRingCollection(new File("etc", GnuPgUtils.PUBRING_FILE_NAME)));
+	}
+
+	@Test
+	public void size() {
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void getPublicKeyByShortId() {
+		assertEquals(0xA2E72D0275FAD0E0L, index.getPublicKey("75FAD0E0").getKeyID());
+		assertEquals(0x63C1475D9F76D455L, index.getPublicKey("9f76d455").getKeyID());
+	}
+
+	@Test
+	public void getPublicKeyByLongId() {
+		assertEquals(0xA2E72D0275FAD0E0L, index.getPublicKey("A2E72D0275FAD0E0").getKeyID());
+		assertEquals(0x63C1475D9F76D455L, index.getPublicKey("0x63C1475D9F76D455").getKeyID());
+	}
+
+	@Test
+	public void getPublicKeyBySuffix() {
+		assertEquals(0x63C1475D9F76D455L, index.getPublicKey("D455").getKeyID());
+	}
+
+	@Test
+	public void getPublicKeyByFingerprint() {
+		assertEquals(0x63C1475D9F76D455L, index.getPublicKey("A39A898EC2065CF7166726C763C1475D9F76D455").getKeyID());
+	}
+
+	@Test
+	public void getPublicKeyNull() {
+		assertNull(index.getPublicKey(null));
+	}
+
+	@Test(expectedExceptions = KeyNotFoundException.class)
+	public void getPublicKeyNotFound() {
+		index.getPublicKey("DEADBEEF");
+	}
+
+	@Test(expectedExceptions = KeyNotFoundException.class)
+	public void getPublicKeyInvalid() {
+		index.getPublicKey("not hex");
+	}
+}
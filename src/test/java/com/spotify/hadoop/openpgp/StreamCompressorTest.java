@@ -3,6 +3,8 @@ package com.spotify.hadoop.openpgp;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import static java.lang.Math.*;
+
 import org.apache.hadoop.conf.Configuration;
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
@@ -120,6 +122,51 @@ public class StreamCompressorTest {
 		c.end();
 	}
 
+	@Test
+	public void bounded() throws Exception {
+		StreamCompressor c = createHeaded(4, 16);
+		byte[] b = new byte[1000];
+
+		for (int i = 0; i < b.length; ++i)
+			b[i] = (byte) i;
+
+		c.setInput(b, 0, b.length);
+		c.finish();
+
+		byte[] out = new byte[HEADER_BYTES.length + b.length + 1];
+		int n = 0;
+
+		// Small output buffers make the chain write ahead of compress().
+		while (!c.finished()) {
+			assert !c.needsInput();
+			n += c.compress(out, n, min(5, out.length - n));
+			assertTrue(c.getBufferLength() <= 16);
+		}
+
+		assertEquals(HEADER_BYTES.length + b.length, n);
+		assertEquals(HEADER, new String(out, 0, HEADER_BYTES.length, "UTF-8"));
+
+		for (int i = 0; i < b.length; ++i)
+			assertEquals(b[i], out[HEADER_BYTES.length + i]);
+
+		c.end();
+	}
+
+	@Test
+	public void needsInputWhenFull() throws Exception {
+		StreamCompressor c = createHeaded(4, 4);
+		byte[] buf = new byte[1];
+
+		// The header does not fit, so the buffer is beyond its maximum.
+		assertEquals(1, c.compress(buf, 0, 1));
+		assert !c.needsInput();
+
+		while (!c.needsInput())
+			assertEquals(1, c.compress(buf, 0, 1));
+
+		c.end();
+	}
+
 	StreamCompressor createIdentity() throws Exception {
 		return new StreamCompressor(new Configuration(false)) {
 			protected OutputStream createOutputStream(OutputStream out) {
@@ -129,7 +176,11 @@ public class StreamCompressorTest {
 	}
 
 	StreamCompressor createHeaded() throws Exception {
-		return new StreamCompressor(new Configuration(false)) {
+		return createHeaded(1024, StreamCompressor.DEFAULT_MAX_BUFFER_SIZE);
+	}
+
+	StreamCompressor createHeaded(int initialBufferSize, int maxBufferSize) throws Exception {
+		return new StreamCompressor(new Configuration(false), initialBufferSize, maxBufferSize) {
 			protected OutputStream createOutputStream(OutputStream out) throws IOException {
 				out.write(HEADER_BYTES, 0, 3);
 				out.write(HEADER_BYTES[3]);
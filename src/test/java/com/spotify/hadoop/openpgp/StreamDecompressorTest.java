@@ -1,6 +1,9 @@
 package com.spotify.hadoop.openpgp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.InputStream;
+import java.io.IOException;
 
 import org.testng.annotations.*;
 import static org.testng.AssertJUnit.*;
@@ -99,6 +102,254 @@ public class StreamDecompressorTest {
 		c.end();
 	}
 
+	@Test
+	public void decompressNeedsInput() throws Exception {
+		// This stream blocks until it has all twelve bytes.
+		StreamDecompressor c = new StreamDecompressor(null) {
+			protected InputStream createInputStream(InputStream in) {
+				final DataInputStream din = new DataInputStream(in);
+
+				return new InputStream() {
+					public int read(byte[] b, int off, int len) throws IOException {
+						din.readFully(b, off, 12);
+
+						return 12;
+					}
+
+					public int read() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+		byte[] b = "Hello World!".getBytes("UTF-8");
+		byte[] buf = new byte[b.length + 1];
+
+		c.setInput(b, 0, 6);
+		assertEquals(0, c.decompress(buf, 0, buf.length));
+		assert c.needsInput();
+
+		c.setInput(b, 6, 6);
+		assertEquals(5, c.decompress(buf, 0, 5));
+		assertEquals(7, c.decompress(buf, 5, 8));
+		assertEquals("Hello World!", new String(buf, 0, b.length, "UTF-8"));
+		c.end();
+	}
+
+	@Test
+	public void reset() throws Exception {
+		StreamDecompressor c = createIdentity();
+		byte[] b = "Hello World!".getBytes("UTF-8");
+		byte[] buf = new byte[b.length + 1];
+
+		c.setInput(b, 0, 6);
+		assertEquals(6, c.decompress(buf, 0, buf.length));
+		assertEquals(0, c.decompress(buf, 0, buf.length));
+
+		c.reset();
+		c.setInput(b, 6, 6);
+		c.finish();
+		assertEquals(6, c.decompress(buf, 0, buf.length));
+		assertEquals("World!", new String(buf, 0, 6, "UTF-8"));
+		c.end();
+	}
+
+	@Test
+	public void decompressReadAhead() throws Exception {
+		StreamDecompressor c = createReadAheadIdentity(5);
+		byte[] b = "Hello World!".getBytes("UTF-8");
+		byte[] buf = new byte[b.length + 1];
+
+		c.setInput(b, 0, 6);
+		assertEquals(5, c.decompress(buf, 0, buf.length));
+		assertEquals(1, c.decompress(buf, 5, 8));
+		assertEquals(0, c.decompress(buf, 6, 7));
+		assert c.needsInput();
+
+		c.setInput(b, 6, 6);
+		c.finish();
+
+		int n = 6;
+
+		while (!c.finished())
+			n += c.decompress(buf, n, buf.length - n);
+
+		assertEquals(b.length, n);
+		assertEquals("Hello World!", new String(buf, 0, b.length, "UTF-8"));
+		c.end();
+	}
+
+	@Test
+	public void resetReadAhead() throws Exception {
+		StreamDecompressor c = createReadAheadIdentity(1 << 10);
+		byte[] b = "Hello World!".getBytes("UTF-8");
+		byte[] buf = new byte[b.length + 1];
+
+		c.setInput(b, 0, 6);
+		assertEquals(6, c.decompress(buf, 0, buf.length));
+
+		c.reset();
+		c.setInput(b, 6, 6);
+		c.finish();
+		assertEquals(6, c.decompress(buf, 0, buf.length));
+		assertEquals(0, c.decompress(buf, 6, 7));
+		assert c.finished();
+		assertEquals("World!", new String(buf, 0, 6, "UTF-8"));
+		c.end();
+	}
+
+	StreamDecompressor createReadAheadIdentity(final int size) {
+		return new StreamDecompressor(null) {
+			protected InputStream createInputStream(InputStream in) {
+				return in;
+			}
+
+			protected int getReadAheadSize() {
+				return size;
+			}
+		};
+	}
+
+	@Test
+	public void reapCollected() throws Exception {
+		startAndDrop();
+		assertTrue(StreamDecompressor.getRunningPumpCount() > 0);
+
+		// Other tests may leave decompressors behind too.
+		for (int i = 0; i < 100 && StreamDecompressor.getRunningPumpCount() > 0; ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		assertEquals(0, StreamDecompressor.getRunningPumpCount());
+	}
+
+	/**
+	 * Start a stream thread, and forget about the decompressor.
+	**/
+	private void startAndDrop() throws Exception {
+		StreamDecompressor c = createIdentity();
+		byte[] b = "Hello World!".getBytes("UTF-8");
+		byte[] buf = new byte[b.length];
+
+		c.setInput(b, 0, b.length);
+		assertEquals(b.length, c.decompress(buf, 0, buf.length));
+		assertEquals(0, c.decompress(buf, 0, buf.length));
+	}
+
+	@Test
+	public void decompressDecoder() throws Exception {
+		StreamDecompressor c = createIdentityDecoder(-1);
+		byte[] b = "Hello World!".getBytes("UTF-8");
+
+		c.setInput(b, 0, 6);
+
+		byte[] buf = new byte[b.length + 1];
+
+		assertEquals(6, c.decompress(buf, 0, buf.length));
+		assertEquals(0, c.decompress(buf, 6, 7));
+		assert c.needsInput();
+
+		c.setInput(b, 6, 6);
+		c.finish();
+
+		assertEquals(6, c.decompress(buf, 6, 7));
+		assertEquals(0, c.decompress(buf, 12, 1));
+		assert c.finished();
+		assertEquals("Hello World!", new String(buf, 0, b.length, "UTF-8"));
+		c.end();
+	}
+
+	@Test
+	public void decompressFallBack() throws Exception {
+		StreamDecompressor c = createIdentityDecoder(4);
+		byte[] b = "Hello World!".getBytes("UTF-8");
+
+		c.setInput(b, 0, b.length);
+		c.finish();
+
+		// The decoder gives up after consuming four bytes, and the
+		// stream gets them all.
+		byte[] buf = new byte[b.length + 1];
+
+		assertEquals(4, c.decompress(buf, 0, buf.length));
+		assertEquals(8, c.decompress(buf, 4, 9));
+		assertEquals(0, c.decompress(buf, 12, 1));
+		assert c.finished();
+		assertEquals("Hello World!", new String(buf, 0, b.length, "UTF-8"));
+		c.end();
+	}
+
+	/**
+	 * Create a decompressor with an identity decoder.
+	 *
+	 * @param failAfter if non-negative, the decoder consumes this many
+	 *                  bytes and gives up.
+	**/
+	StreamDecompressor createIdentityDecoder(final int failAfter) {
+		return new StreamDecompressor(null) {
+			protected InputStream createInputStream(InputStream in) {
+				return in;
+			}
+
+			protected StreamDecoder createDecoder() {
+				return new StreamDecoder() {
+					private ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+					private byte[] bytes;
+					private int off;
+					private int len;
+					private boolean finished;
+
+					public void setInput(byte[] b, int off, int len) {
+						this.bytes = b;
+						this.off = off;
+						this.len = len;
+					}
+
+					public int getRemaining() {
+						return len;
+					}
+
+					public void finish() {
+						finished = true;
+					}
+
+					public int decode(byte[] b, int off, int len) throws IOException {
+						if (this.len == 0)
+							return (finished ? -1 : 0);
+
+						if (failAfter >= 0) {
+							consumed.write(bytes, this.off, failAfter);
+							this.off += failAfter;
+							this.len -= failAfter;
+
+							throw new UnsupportedStreamException("giving up");
+						}
+
+						int n = Math.min(len, this.len);
+
+						System.arraycopy(bytes, this.off, b, off, n);
+						consumed.write(bytes, this.off, n);
+						this.off += n;
+						this.len -= n;
+
+						return n;
+					}
+
+					public void reset() {
+						consumed.reset();
+						len = 0;
+						finished = false;
+					}
+
+					public byte[] getConsumedInput() {
+						return consumed.toByteArray();
+					}
+				};
+			}
+		};
+	}
+
 	StreamDecompressor createIdentity() {
 		return new StreamDecompressor(null) {
 			protected InputStream createInputStream(InputStream in) {